@@ -4,6 +4,7 @@ public class HarTimings {
     private long blocked;
     private long dns;
     private long connect;
+    private long ssl = -1;
     private long send;
     private long wait;
     private long receive;
@@ -20,6 +21,11 @@ public class HarTimings {
         this.receive = receive;
     }
 
+    public HarTimings(long blocked, long dns, long connect, long ssl, long send, long wait, long receive) {
+        this(blocked, dns, connect, send, wait, receive);
+        this.ssl = ssl;
+    }
+
     public Long getBlocked() {
         return blocked;
     }
@@ -44,6 +50,18 @@ public class HarTimings {
         this.connect = connect;
     }
 
+    /**
+     * The time spent on the TLS handshake, which HAR 1.2 counts as part of the connect time too, or -1 if the request
+     * didn't make one.
+     */
+    public long getSsl() {
+        return ssl;
+    }
+
+    public void setSsl(long ssl) {
+        this.ssl = ssl;
+    }
+
     public long getSend() {
         return send;
     }
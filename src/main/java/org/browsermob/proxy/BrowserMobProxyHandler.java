@@ -6,6 +6,7 @@ import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.browsermob.proxy.http.*;
 import org.browsermob.proxy.jetty.http.*;
+import org.browsermob.proxy.jetty.http.nio.SocketChannelListener;
 import org.browsermob.proxy.jetty.jetty.Server;
 import org.browsermob.proxy.jetty.util.InetAddrPort;
 import org.browsermob.proxy.jetty.util.URI;
@@ -17,7 +18,6 @@ import java.io.InputStream;
 import java.net.*;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 public class BrowserMobProxyHandler extends SeleniumProxyHandler {
@@ -73,28 +73,13 @@ public class BrowserMobProxyHandler extends SeleniumProxyHandler {
             }
         }
 
-        super.handleConnect(pathInContext, pathParams, request, response);
+        // the browser still expects a certificate for the host it asked for
+        handleConnect(pathInContext, pathParams, request, response, altHost != null ? host : null);
     }
 
     @Override
-    protected void wireUpSslWithCyberVilliansCA(String host, SeleniumProxyHandler.SslRelay listener) {
-        List<String> originalHosts = httpClient.originalHosts(host);
-        if (originalHosts != null && !originalHosts.isEmpty()) {
-            if (originalHosts.size() == 1) {
-                host = originalHosts.get(0);
-            } else {
-                // Warning: this is NASTY, but people rarely even run across this and those that do are solved by this
-                // ok, this really isn't legal in real SSL land, but we'll make an exception and just pretend it's a wildcard
-                String first = originalHosts.get(0);
-                host = "*" + first.substring(first.indexOf('.'));
-            }
-        }
-        super.wireUpSslWithCyberVilliansCA(host, listener);
-    }
-
-    @Override
-    protected SslRelay getSslRelayOrCreateNew(URI uri, InetAddrPort addrPort, HttpServer server) throws Exception {
-        SslRelay relay = super.getSslRelayOrCreateNew(uri, addrPort, server);
+    protected SslRelay getSslRelayOrCreateNew(URI uri, InetAddrPort addrPort, HttpServer server, String requestedHost) throws Exception {
+        SslRelay relay = super.getSslRelayOrCreateNew(uri, addrPort, server, requestedHost);
         relay.setNukeDirOrFile(null);
 
         synchronized (sslRelays) {
@@ -372,6 +357,15 @@ public class BrowserMobProxyHandler extends SeleniumProxyHandler {
                 if (sl.getBufferSize() != 8192 * headerBufferMultiplier) {
                     sl.setBufferSize(8192 * headerBufferMultiplier);
                 }
+            } else if (listener instanceof SocketChannelListener) {
+                SocketChannelListener scl = (SocketChannelListener) listener;
+                if (scl.getBufferReserve() != 512 * headerBufferMultiplier) {
+                    scl.setBufferReserve(512 * headerBufferMultiplier);
+                }
+
+                if (scl.getBufferSize() != 8192 * headerBufferMultiplier) {
+                    scl.setBufferSize(8192 * headerBufferMultiplier);
+                }
             }
         }
     }
@@ -380,7 +374,18 @@ public class BrowserMobProxyHandler extends SeleniumProxyHandler {
         this.httpClient = httpClient;
     }
 
+    @Override
+    protected void stopSslRelay(SslRelay relay) {
+        super.stopSslRelay(relay);
+
+        synchronized (sslRelays) {
+            sslRelays.remove(relay);
+        }
+    }
+
     public void cleanup() {
+        stopSslRelays();
+
         synchronized (sslRelays) {
             for (SslRelay relay : sslRelays) {
                 if (relay.getHttpServer() != null && relay.isStarted()) {
@@ -3,7 +3,13 @@ package org.browsermob.proxy;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import org.browsermob.proxy.selenium.CertificateAuthority;
+import org.browsermob.proxy.selenium.CertificateStore;
+import org.browsermob.proxy.selenium.KeyPairPool;
 
+import java.io.File;
+import java.security.GeneralSecurityException;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -16,8 +22,37 @@ public class ProxyManager {
     private Map<Integer, ProxyServer> proxies = new ConcurrentHashMap<Integer, ProxyServer>();
 
     @Inject
-    public ProxyManager(Provider<ProxyServer> proxyServerProvider) {
+    public ProxyManager(Provider<ProxyServer> proxyServerProvider, @Named("certStore") String certStore,
+                        @Named("certKey") String certKey, @Named("reuseCertKey") boolean reuseCertKey) {
         this.proxyServerProvider = proxyServerProvider;
+
+        // certificates come from a CA shared by every proxy, so they share the store and the key pairs too
+        CertificateAuthority ca = CertificateAuthority.getCyberVillains();
+        if (certStore.length() > 0) {
+            ca.setStore(new CertificateStore(new File(certStore)));
+        }
+        if (certKey.length() > 0) {
+            setKeyAlgorithm(ca.getKeyPairPool(), certKey);
+        }
+        if (reuseCertKey) {
+            ca.getKeyPairPool().setReuseKey(true);
+        }
+    }
+
+    /**
+     * @param certKey an algorithm and key size such as RSA:2048 or EC:256; the size can be left out
+     */
+    static void setKeyAlgorithm(KeyPairPool keyPairs, String certKey) {
+        String[] parts = certKey.split(":");
+        String algorithm = parts[0].toUpperCase();
+        try {
+            int keySize = parts.length > 1 ? Integer.parseInt(parts[1]) : KeyPairPool.EC.equals(algorithm) ? 256 : 2048;
+            keyPairs.setAlgorithm(algorithm, keySize);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a key algorithm and size: " + certKey, e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Not a key algorithm and size: " + certKey, e);
+        }
     }
 
     public ProxyServer create(Map<String, String> options, int port) throws Exception {
@@ -5,15 +5,21 @@ import org.apache.http.HttpResponseInterceptor;
 import org.browsermob.core.har.*;
 import org.browsermob.core.util.ThreadUtils;
 import org.browsermob.proxy.http.BrowserMobHttpClient;
+import org.browsermob.proxy.http.SimulatedListener;
+import org.browsermob.proxy.http.SimulatedSocketChannelListener;
+import org.browsermob.proxy.http.SimulatedSocketListener;
+import org.browsermob.proxy.jetty.http.AsyncNCSARequestLog;
 import org.browsermob.proxy.jetty.http.HttpContext;
-import org.browsermob.proxy.jetty.http.HttpListener;
-import org.browsermob.proxy.jetty.http.SocketListener;
 import org.browsermob.proxy.jetty.jetty.Server;
 import org.browsermob.proxy.jetty.util.InetAddrPort;
+import org.browsermob.proxy.selenium.CertificateAuthority;
+import org.browsermob.proxy.selenium.KeyPairPool;
 import org.openqa.selenium.Proxy;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -28,6 +34,13 @@ public class ProxyServer {
     private HarPage currentPage;
     private BrowserMobProxyHandler handler;
     private int pageCount = 1;
+    private SimulatedListener listener;
+    private boolean useNio = false;
+    private long downstreamKbps = 500 * 1024 * 8;
+    private long upstreamKbps;
+    private long latency;
+    private boolean throttleBrowserLeg = false;
+    private AsyncNCSARequestLog accessLog;
 
     public ProxyServer() {
     }
@@ -42,7 +55,12 @@ public class ProxyServer {
         }
 
         server = new Server();
-        HttpListener listener = new SocketListener(new InetAddrPort(getPort()));
+        server.setRequestLog(accessLog);
+        if (useNio) {
+            listener = new SimulatedSocketChannelListener(new InetAddrPort(getPort()));
+        } else {
+            listener = new SimulatedSocketListener(new InetAddrPort(getPort()));
+        }
         server.addListener(listener);
         HttpContext context = new HttpContext();
         context.setContextPath("/");
@@ -54,7 +72,7 @@ public class ProxyServer {
         client = new BrowserMobHttpClient();
         client.prepareForBrowser();
         handler.setHttpClient(client);
-        client.setDownstreamKbps(500 * 1024 * 8);
+        applyThrottling();
 
         context.addHandler(handler);
 
@@ -91,6 +109,55 @@ public class ProxyServer {
         this.port = port;
     }
 
+    public boolean isUseNio() {
+        return useNio;
+    }
+
+    /**
+     * Whether browser connections are accepted by a selector-based listener, which parks them between requests
+     * rather than holding a thread for each open connection. Must be set before the proxy is started.
+     */
+    public void setUseNio(boolean useNio) {
+        if (server != null) {
+            throw new IllegalStateException("The listener can't be changed once the proxy has started");
+        }
+        this.useNio = useNio;
+    }
+
+    /**
+     * Writes a line in NCSA combined format for every request the browser makes through this proxy, to its own file.
+     * Lines are written in batches by a thread of the log, so requests never wait on the disk; if they come faster than
+     * they can be written, the excess is dropped and counted in {@link AsyncNCSARequestLog#getDropped()}. A filename
+     * containing yyyy_mm_dd rolls over nightly. Null stops logging.
+     */
+    public void setAccessLog(String filename) throws Exception {
+        AsyncNCSARequestLog old = accessLog;
+        accessLog = null;
+        if (filename != null) {
+            accessLog = new AsyncNCSARequestLog(filename);
+        }
+
+        if (server != null) {
+            server.setRequestLog(accessLog);
+            if (server.isStarted()) {
+                if (old != null) {
+                    old.stop();
+                }
+                if (accessLog != null) {
+                    accessLog.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * The access log set with {@link #setAccessLog(String)}, whose counters tell how many lines were written and
+     * dropped, or null.
+     */
+    public AsyncNCSARequestLog getAccessLog() {
+        return accessLog;
+    }
+
     public Har getHar() {
         return client.getHar();
     }
@@ -137,6 +204,15 @@ public class ProxyServer {
         client.remapHost(source, target);
     }
 
+    /**
+     * Remaps all the given hosts in one go, then clears the DNS cache once. Sources may be exact host names or wildcards
+     * such as *.example.com; see {@link org.browsermob.proxy.http.HostRemappings}.
+     */
+    public void remapHosts(Map<String, String> mappings) {
+        client.remapHosts(mappings);
+        client.clearDNSCache();
+    }
+
     public void addRequestInterceptor(HttpRequestInterceptor i) {
         client.addRequestInterceptor(i);
     }
@@ -146,15 +222,133 @@ public class ProxyServer {
     }
 
     public void setDownstreamKbps(long downstreamKbps) {
-        client.setDownstreamKbps(downstreamKbps);
+        this.downstreamKbps = downstreamKbps;
+        applyThrottling();
     }
 
     public void setUpstreamKbps(long upstreamKbps) {
-        client.setUpstreamKbps(upstreamKbps);
+        this.upstreamKbps = upstreamKbps;
+        applyThrottling();
     }
 
     public void setLatency(long latency) {
-        client.setLatency(latency);
+        this.latency = latency;
+        applyThrottling();
+    }
+
+    public boolean isThrottleBrowserLeg() {
+        return throttleBrowserLeg;
+    }
+
+    /**
+     * Chooses which leg of the proxy the bandwidth and latency settings are applied to. By default they are applied
+     * to the upstream connections made by the HTTP client, which keeps the simulated delays inside the HAR timings
+     * but does not cover CONNECT tunnels that are not intercepted. When set to true they are applied to the
+     * browser-facing connections instead, so every byte the browser sends or receives - including tunnelled
+     * traffic - is shaped. The settings are only ever applied to one leg so traffic is never throttled twice.
+     */
+    public void setThrottleBrowserLeg(boolean throttleBrowserLeg) {
+        this.throttleBrowserLeg = throttleBrowserLeg;
+        applyThrottling();
+    }
+
+    private void applyThrottling() {
+        if (client == null) {
+            return;
+        }
+
+        if (throttleBrowserLeg) {
+            client.setDownstreamKbps(0);
+            client.setUpstreamKbps(0);
+            client.setLatency(0);
+            listener.setDownstreamKbps(downstreamKbps);
+            listener.setUpstreamKbps(upstreamKbps);
+            listener.setLatency(latency);
+        } else {
+            client.setDownstreamKbps(downstreamKbps);
+            client.setUpstreamKbps(upstreamKbps);
+            client.setLatency(latency);
+            listener.setDownstreamKbps(0);
+            listener.setUpstreamKbps(0);
+            listener.setLatency(0);
+        }
+    }
+
+    /**
+     * Chooses how HTTPS is intercepted. By default TLS is terminated on the browser's own connection, with a
+     * certificate picked from the host name the browser sends (SNI). When set to false, a separate SSL listener is
+     * started for every host and the browser is tunnelled to it, as older versions did.
+     */
+    public void setInterceptSslInProcess(boolean interceptSslInProcess) {
+        handler.setInterceptSslInProcess(interceptSslInProcess);
+    }
+
+    /**
+     * Sets how many SSL listeners are kept running when HTTPS isn't intercepted in process, one for each host. Beyond
+     * that the least recently used idle ones are stopped. 64 by default.
+     */
+    public void setMaxSslRelays(int maxSslRelays) {
+        handler.setMaxSslRelays(maxSslRelays);
+    }
+
+    public int getSslRelayCount() {
+        return handler.getSslRelayCount();
+    }
+
+    public long getSslRelaysStarted() {
+        return handler.getSslRelaysStarted();
+    }
+
+    public long getSslRelaysEvicted() {
+        return handler.getSslRelaysEvicted();
+    }
+
+    /**
+     * Gives HTTPS hosts a wildcard certificate for their registrable domain, such as *.example.com, so that sites
+     * sharding their assets over img1.example.com, img2.example.com and so on need one certificate rather than one
+     * for each. Off by default.
+     */
+    public void setWildcardCertificates(boolean wildcardCertificates) {
+        handler.setWildcardCertificates(wildcardCertificates);
+    }
+
+    /**
+     * Sets the kind of key forged certificates get, such as RSA with 2048 bits (the default) or {@link KeyPairPool#EC}
+     * with 256, which are far cheaper to generate. Certificates are forged by a CA shared by every proxy in the JVM, so
+     * this applies to all of them.
+     */
+    public void setCertificateKeyAlgorithm(String algorithm, int keySize) throws GeneralSecurityException {
+        CertificateAuthority.getCyberVillains().getKeyPairPool().setAlgorithm(algorithm, keySize);
+    }
+
+    /**
+     * Gives every forged certificate the same key pair; see {@link KeyPairPool#setReuseKey(boolean)}. Like the key
+     * algorithm, this applies to every proxy in the JVM.
+     */
+    public void setReuseCertificateKey(boolean reuseKey) {
+        CertificateAuthority.getCyberVillains().getKeyPairPool().setReuseKey(reuseKey);
+    }
+
+    /**
+     * Mints the certificates browsers will be shown for the hosts now, rather than during the first request to each.
+     */
+    public void mintCertificates(Collection<String> hostnames) throws GeneralSecurityException {
+        handler.mintCertificates(hostnames);
+    }
+
+    /**
+     * Sets the protocols offered to HTTPS servers, TLSv1.3 and TLSv1.2 by default. Older servers may need TLSv1 too.
+     */
+    public void setSslProtocols(String... protocols) {
+        client.setSslProtocols(protocols);
+    }
+
+    /**
+     * Sets how many seconds connections to an HTTPS server can resume the session an earlier connection negotiated,
+     * rather than going through a full handshake. An hour by default.
+     */
+    public void setSslSessionTimeout(int seconds) {
+        client.setSslSessionTimeout(seconds);
     }
 
     public void setRequestTimeout(int requestTimeout) {
@@ -205,6 +399,23 @@ public class ProxyServer {
         client.setDNSCacheTimeout(timeout);
     }
 
+    /**
+     * Re-resolves host names that are in use shortly before their cached entries expire, so requests stop waiting on
+     * DNS once a name is warm. Off by default, as it removes DNS time a real browser would see from the HAR; turn it
+     * on when generating load rather than measuring.
+     */
+    public void setDNSPrefetchEnabled(boolean prefetchEnabled) {
+        client.setDNSPrefetchEnabled(prefetchEnabled);
+    }
+
+    /**
+     * Resolves host names through a DNS cache shared by every proxy in the JVM rather than one of this proxy's own.
+     * Host remappings, {@link #clearDNSCache()} and {@link #setDNSCacheTimeout(int)} keep applying to this proxy only.
+     */
+    public void setSharedDNSCache(boolean sharedCache) {
+        client.setSharedDNSCache(sharedCache);
+    }
+
     public void waitForNetworkTrafficToStop(final long quietPeriodInMs, long timeoutInMs) {
         long start = System.currentTimeMillis();
         boolean result = ThreadUtils.waitFor(new ThreadUtils.WaitCondition() {
@@ -16,6 +16,7 @@ import org.browsermob.proxy.ProxyManager;
 import org.browsermob.proxy.ProxyServer;
 
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 
 @At("/proxy")
@@ -144,6 +145,25 @@ public class ProxyResource {
                 proxy.setLatency(Integer.parseInt(latency));
             } catch (NumberFormatException e) { }
         }
+        String browserLeg = request.param("browserLeg");
+        if (browserLeg != null) {
+            proxy.setThrottleBrowserLeg(Boolean.parseBoolean(browserLeg));
+        }
+        return Reply.saying().ok();
+    }
+
+    @Put
+    @At("/:port/dns")
+    public Reply<?> dns(@Named("port") int port, Request request) {
+        ProxyServer proxy = proxyManager.get(port);
+        String prefetch = request.param("prefetch");
+        if (prefetch != null) {
+            proxy.setDNSPrefetchEnabled(Boolean.parseBoolean(prefetch));
+        }
+        String sharedCache = request.param("sharedCache");
+        if (sharedCache != null) {
+            proxy.setSharedDNSCache(Boolean.parseBoolean(sharedCache));
+        }
         return Reply.saying().ok();
     }
 
@@ -158,19 +178,23 @@ public class ProxyResource {
     @At("/:port/hosts")
     public Reply<?> remapHosts(@Named("port") int port, Request request) {
         ProxyServer proxy = proxyManager.get(port);
-        @SuppressWarnings("unchecked") Map<String, String> headers = request.read(Map.class).as(Json.class);
+        @SuppressWarnings("unchecked") Map<String, String> hosts = request.read(Map.class).as(Json.class);
 
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            proxy.remapHost(key, value);
-            proxy.setDNSCacheTimeout(0);
-            proxy.clearDNSCache();
-        }
+        proxy.remapHosts(hosts);
 
         return Reply.saying().ok();
     }
 
+    @Post
+    @At("/:port/certificates")
+    public Reply<?> mintCertificates(@Named("port") int port, Request request) throws Exception {
+        ProxyServer proxy = proxyManager.get(port);
+        @SuppressWarnings("unchecked") List<String> hostnames = request.read(List.class).as(Json.class);
+
+        proxy.mintCertificates(hostnames);
+
+        return Reply.saying().ok();
+    }
 
     private int parseResponseCode(String response)
     {
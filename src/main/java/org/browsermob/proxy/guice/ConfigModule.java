@@ -24,6 +24,13 @@ public class ConfigModule implements Module {
         ArgumentAcceptingOptionSpec<Integer> portSpec =
                 parser.accepts("port", "The port to listen on")
                         .withOptionalArg().ofType(Integer.class).defaultsTo(8080);
+        ArgumentAcceptingOptionSpec<String> certStoreSpec =
+                parser.accepts("certStore", "A directory to keep forged SSL certificates in across restarts")
+                        .withRequiredArg().ofType(String.class).defaultsTo("");
+        ArgumentAcceptingOptionSpec<String> certKeySpec =
+                parser.accepts("certKey", "The kind of key forged SSL certificates get, e.g. RSA:2048 (the default) or EC:256")
+                        .withRequiredArg().ofType(String.class).defaultsTo("");
+        parser.accepts("reuseCertKey", "Give every forged SSL certificate the same key pair");
         parser.acceptsAll(asList("help", "?"), "This help text");
 
         OptionSet options = parser.parse(args);
@@ -39,5 +46,8 @@ public class ConfigModule implements Module {
         }
 
         binder.bind(Key.get(Integer.class, new NamedImpl("port"))).toInstance(portSpec.value(options));
+        binder.bind(Key.get(String.class, new NamedImpl("certStore"))).toInstance(certStoreSpec.value(options));
+        binder.bind(Key.get(String.class, new NamedImpl("certKey"))).toInstance(certKeySpec.value(options));
+        binder.bind(Key.get(Boolean.class, new NamedImpl("reuseCertKey"))).toInstance(options.has("reuseCertKey"));
     }
 }
@@ -5,13 +5,27 @@ import org.browsermob.proxy.util.Log;
 import org.xbill.DNS.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BrowserMobHostNameResolver implements HostNameResolver {
     private static final Log LOG = new Log();
@@ -23,16 +37,86 @@ public class BrowserMobHostNameResolver implements HostNameResolver {
         }
     };
 
-    private Map<String, String> remappings = new ConcurrentHashMap<String, String>();
-    private Map<String, List<String>> reverseMapping = new ConcurrentHashMap<String, List<String>>();
+    private final HostRemappings remappings = new HostRemappings();
 
-    private Cache cache;
+    // negative answers carry no TTL we can get at through Lookup, so cache them briefly
+    private static final long NEGATIVE_TTL = 10;
+
+    // how long to hold on to IPv4 answers waiting for the AAAA lookup to catch up (RFC 8305 suggests 50ms)
+    private static final long RESOLUTION_DELAY_MS = 50;
+
+    private static final ExecutorService lookupExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "BrowserMobHostNameResolver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // prefetching re-resolves names that were read at least this often since they were cached...
+    private static final int PREFETCH_MINIMUM_HITS = 2;
+    // ...once they get within the last tenth of their TTL, or this close to expiring, whichever is sooner
+    private static final long PREFETCH_MINIMUM_WINDOW_MS = 2000;
+    private static final long PREFETCH_INTERVAL_MS = 1000;
+
+    private static Set<BrowserMobHostNameResolver> prefetching = new CopyOnWriteArraySet<BrowserMobHostNameResolver>();
+
+    static {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(PREFETCH_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        // this is OK
+                    }
+
+                    for (BrowserMobHostNameResolver resolver : prefetching) {
+                        try {
+                            resolver.prefetch();
+                        } catch (Exception e) {
+                            LOG.severe("Unexpected problem while prefetching DNS entries", e);
+                        }
+                    }
+                }
+            }
+        }, "BrowserMobHostNameResolver Prefetch Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private final HostNameCache privateCache;
+    private volatile HostNameCache cache;
+    // per-resolver view of the cache, so clearing it or capping its TTLs doesn't affect others sharing it
+    private volatile long clearedAt = Long.MIN_VALUE;
+    private volatile long maxAgeMs = -1;
     private Resolver resolver;
+    private final AtomicInteger rotation = new AtomicInteger();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+
+    public BrowserMobHostNameResolver() {
+        this(new HostNameCache());
+    }
+
+    public BrowserMobHostNameResolver(HostNameCache cache) {
+        this(cache, newDefaultResolver());
+    }
 
-    public BrowserMobHostNameResolver(Cache cache) {
+    public BrowserMobHostNameResolver(HostNameCache cache, Resolver resolver) {
+        this.privateCache = cache;
         this.cache = cache;
+        this.resolver = resolver;
+    }
+
+    private static Resolver newDefaultResolver() {
         try {
-            resolver = new ExtendedResolver();
+            // queries from every resolver in the JVM share one UDP channel rather than opening a socket each
+            return new MultiplexedUdpResolver();
         } catch (UnknownHostException e) {
             throw new RuntimeException(e);
         }
@@ -40,25 +124,70 @@ public class BrowserMobHostNameResolver implements HostNameResolver {
 
     @Override
     public InetAddress resolve(String hostname) throws IOException {
+        return resolveAll(hostname)[0];
+    }
+
+    /**
+     * Resolves every IPv4 and IPv6 address of the host name. The A and AAAA lookups run in parallel, and successive
+     * calls rotate through the addresses of each family so connections to multi-record hosts are spread across them.
+     * IPv6 and IPv4 addresses alternate, starting with IPv6, which is the order connections should be attempted in.
+     */
+    public InetAddress[] resolveAll(String hostname) throws IOException {
         String remapping = remappings.get(hostname);
         if (remapping != null) {
             hostname = remapping;
         }
 
         try {
-            return Address.getByAddress(hostname);
+            return new InetAddress[]{Address.getByAddress(hostname)};
         } catch (UnknownHostException e) {
             // that's fine, this just means it's not an IP address and we gotta look it up, which is common
         }
 
-        boolean isCached = this.isCached(hostname);
+        HostNameCache cache = this.cache;
+        InetAddress[] addresses = cache.get(hostname, clearedAt, maxAgeMs);
+        if (addresses != null) {
+            if (addresses.length == 0) {
+                throw new UnknownHostException(hostname);
+            }
 
-        Lookup lookup = new Lookup(Name.fromString(hostname), Type.A);
-        lookup.setCache(cache);
-        lookup.setResolver(resolver);
+            addresses = order(addresses, rotation.getAndIncrement());
+
+            // if it is a cached hit, we just record zero since we don't want
+            // to skew the data with method call timings (specially under load)
+            Date now = new Date();
+            RequestInfo.get().dns(now, now, addresses[0].getHostAddress());
+            return addresses;
+        }
 
+        // concurrent requests for a name we don't have yet all wait on a single lookup; each of them records the time
+        // it spent waiting, which is what that request would have seen anyway
         Date start = new Date();
-        Record[] records = lookup.run();
+        FutureTask<InetAddress[]> lookup = newLookupTask(hostname, cache, true);
+        FutureTask<InetAddress[]> inFlight = cache.lookups.putIfAbsent(hostname, lookup);
+        if (inFlight == null) {
+            try {
+                lookup.run();
+            } finally {
+                cache.lookups.remove(hostname, lookup);
+            }
+            inFlight = lookup;
+        } else {
+            coalesced.incrementAndGet();
+        }
+
+        try {
+            addresses = inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving " + hostname);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
         if (fakeSlow.get()) {
             fakeSlow.set(false);
             try {
@@ -69,36 +198,196 @@ public class BrowserMobHostNameResolver implements HostNameResolver {
         }
         Date end = new Date();
 
-        if (records == null || records.length == 0) {
+        addresses = order(addresses, rotation.getAndIncrement());
+
+        // TODO: Associate the the host name with the connection. We do this because when using persistent
+        // connections there won't be a lookup on the 2nd, 3rd, etc requests, and as such we wouldn't be able to
+        // know what IP address we were requesting.
+        RequestInfo.get().dns(start, end, addresses[0].getHostAddress());
+
+        return addresses;
+    }
+
+    /**
+     * @param useCached whether to check the cache again first: another lookup of the name may have finished between a
+     *                  caller missing the cache and starting this one. The caller has already counted its miss.
+     */
+    private FutureTask<InetAddress[]> newLookupTask(final String hostname, final HostNameCache cache,
+                                                    final boolean useCached) {
+        return new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+            @Override
+            public InetAddress[] call() throws Exception {
+                InetAddress[] cached = useCached ? cache.peek(hostname, clearedAt, maxAgeMs) : null;
+                if (cached != null) {
+                    if (cached.length == 0) {
+                        throw new UnknownHostException(hostname);
+                    }
+                    return cached;
+                }
+
+                return lookup(hostname, cache);
+            }
+        });
+    }
+
+    /**
+     * Starts a background lookup for every hot name that is about to expire, so it is back in the cache with a fresh
+     * TTL before the next request needs it. Requests arriving while such a lookup is in flight wait on it rather than
+     * starting their own.
+     */
+    void prefetch() {
+        final HostNameCache cache = this.cache;
+        for (final String hostname : cache.getExpiringEntries(PREFETCH_MINIMUM_HITS, PREFETCH_MINIMUM_WINDOW_MS)) {
+            final FutureTask<InetAddress[]> lookup = newLookupTask(hostname, cache, false);
+            if (cache.lookups.putIfAbsent(hostname, lookup) != null) {
+                continue;
+            }
+
+            prefetched.incrementAndGet();
+            lookupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup.run();
+                    } finally {
+                        cache.lookups.remove(hostname, lookup);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Looks up the A and AAAA records of the host name and caches the result, including a negative one.
+     */
+    private InetAddress[] lookup(String hostname, HostNameCache cache) throws IOException {
+        // the AAAA lookup goes to the background while we do the A lookup ourselves
+        final Lookup ipv6Lookup = newLookup(hostname, Type.AAAA);
+        Future<Record[]> ipv6Future = lookupExecutor.submit(new Callable<Record[]>() {
+            @Override
+            public Record[] call() throws Exception {
+                return ipv6Lookup.run();
+            }
+        });
+        Lookup ipv4Lookup = newLookup(hostname, Type.A);
+
+        Record[] ipv4Records = ipv4Lookup.run();
+        // once we have IPv4 addresses, don't hold the request up for long waiting on a slow AAAA answer
+        Record[] ipv6Records = await(ipv6Future, isEmpty(ipv4Records) ? 0 : RESOLUTION_DELAY_MS);
+
+        if (isEmpty(ipv4Records) && isEmpty(ipv6Records)) {
+            if (isNegative(ipv4Lookup) && (!ipv6Future.isDone() || isNegative(ipv6Lookup))) {
+                cache.put(hostname, new InetAddress[0], NEGATIVE_TTL);
+            }
             throw new UnknownHostException(hostname);
         }
 
-        // assembly the addr object
-        ARecord a = (ARecord) records[0];
-        InetAddress addr = InetAddress.getByAddress(hostname, a.getAddress().getAddress());
+        // assembly the addr objects
+        List<InetAddress> list = new ArrayList<InetAddress>();
+        long ttl = Long.MAX_VALUE;
+        for (Record[] records : new Record[][]{ipv6Records, ipv4Records}) {
+            if (records == null) {
+                continue;
+            }
 
-        if (!isCached) {
-            // TODO: Associate the the host name with the connection. We do this because when using persistent
-            // connections there won't be a lookup on the 2nd, 3rd, etc requests, and as such we wouldn't be able to
-            // know what IP address we were requesting.
-            RequestInfo.get().dns(start, end, addr.getHostAddress());
-        } else {
-            // if it is a cached hit, we just record zero since we don't want
-            // to skew the data with method call timings (specially under load)
-            RequestInfo.get().dns(end, end, addr.getHostAddress());
+            for (Record record : records) {
+                InetAddress address;
+                if (record instanceof AAAARecord) {
+                    address = ((AAAARecord) record).getAddress();
+                } else if (record instanceof ARecord) {
+                    address = ((ARecord) record).getAddress();
+                } else {
+                    continue;
+                }
+
+                list.add(InetAddress.getByAddress(hostname, address.getAddress()));
+                ttl = Math.min(ttl, record.getTTL());
+            }
+        }
+        if (list.isEmpty()) {
+            throw new UnknownHostException(hostname);
+        }
+
+        InetAddress[] addresses = list.toArray(new InetAddress[list.size()]);
+        cache.put(hostname, addresses, ttl);
+
+        return addresses;
+    }
+
+    /**
+     * Orders the addresses for connecting: each family is rotated by the offset and the families are then interleaved,
+     * IPv6 first.
+     */
+    static InetAddress[] order(InetAddress[] addresses, int offset) {
+        List<InetAddress> ipv6 = new ArrayList<InetAddress>();
+        List<InetAddress> ipv4 = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                ipv6.add(address);
+            } else {
+                ipv4.add(address);
+            }
         }
 
-        return addr;
+        offset = offset & Integer.MAX_VALUE;
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(ipv6.size(), ipv4.size()); j++) {
+            if (j < ipv6.size()) {
+                ordered[i++] = ipv6.get((offset + j) % ipv6.size());
+            }
+            if (j < ipv4.size()) {
+                ordered[i++] = ipv4.get((offset + j) % ipv4.size());
+            }
+        }
+
+        return ordered;
+    }
+
+    private Lookup newLookup(String hostname, int type) throws TextParseException {
+        // the lookup gets a throwaway cache: answers are kept in our own cache instead, so concurrent lookups don't
+        // all contend on the single lock inside org.xbill.DNS.Cache
+        Lookup lookup = new Lookup(Name.fromString(hostname), type);
+        lookup.setCache(null);
+        lookup.setResolver(resolver);
+        return lookup;
+    }
+
+    private static Record[] await(Future<Record[]> future, long timeout) {
+        try {
+            return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            LOG.warn("AAAA lookup failed: %s", e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
 
+    private static boolean isEmpty(Record[] records) {
+        return records == null || records.length == 0;
+    }
+
+    private static boolean isNegative(Lookup lookup) {
+        return lookup.getResult() == Lookup.HOST_NOT_FOUND || lookup.getResult() == Lookup.TYPE_NOT_FOUND;
+    }
+
+    /**
+     * Remaps a host name, or every host matching a wildcard such as *.example.com, to another name or an IP address.
+     * See {@link HostRemappings} for the patterns supported.
+     */
     public void remap(String source, String target) {
         remappings.put(source, target);
-        List<String> list = reverseMapping.get(target);
-        if (list == null) {
-            list = new ArrayList<String>();
-        }
-        list.add(source);
-        reverseMapping.put(target, list);
+    }
+
+    /**
+     * Applies all the remappings at once, so no lookup sees only some of them.
+     */
+    public void remapAll(Map<String, String> mappings) {
+        remappings.putAll(mappings);
     }
 
     public String remapping(String host) {
@@ -106,18 +395,83 @@ public class BrowserMobHostNameResolver implements HostNameResolver {
     }
 
     public List<String> original(String host) {
-        return reverseMapping.get(host);
+        return remappings.getSources(host);
     }
 
+    /**
+     * Forgets every cached name. When the shared cache is in use, the entries are only hidden from this resolver.
+     */
     public void clearCache() {
-        this.cache.clearCache();
+        clearedAt = System.currentTimeMillis();
+        privateCache.clear();
     }
 
+    /**
+     * Caps how long, in seconds, a cached name is used by this resolver. A negative value honors the TTL of the records
+     * and 0 disables caching. When the shared cache is in use, other resolvers sharing it are unaffected.
+     */
     public void setCacheTimeout(int timeout) {
-        cache.setMaxCache(timeout);
+        maxAgeMs = timeout < 0 ? -1 : timeout * 1000L;
+        privateCache.setMaxTtl(timeout);
+    }
+
+    public boolean isCached(String hostname) {
+        return cache.contains(hostname, clearedAt, maxAgeMs);
+    }
+
+    public boolean isSharedCache() {
+        return cache == HostNameCache.getShared();
+    }
+
+    /**
+     * Switches between this resolver's own cache and the process-wide shared one. With the shared cache, a name
+     * resolved through any proxy in the JVM is a cache hit for all of them, while remappings, {@link #clearCache()} and
+     * {@link #setCacheTimeout(int)} still apply to this resolver only.
+     */
+    public void setSharedCache(boolean sharedCache) {
+        cache = sharedCache ? HostNameCache.getShared() : privateCache;
+    }
+
+    public HostNameCache getCache() {
+        return cache;
+    }
+
+    public boolean isPrefetchEnabled() {
+        return prefetching.contains(this);
+    }
+
+    /**
+     * Turns refresh-ahead on or off. When on, names that are in use get resolved again in the background shortly before
+     * their cached entry expires, which keeps DNS off the critical path of requests to them. This is off by default
+     * because it hides the DNS lookups a real browser would make from the HAR.
+     */
+    public void setPrefetchEnabled(boolean prefetchEnabled) {
+        if (prefetchEnabled) {
+            prefetching.add(this);
+        } else {
+            prefetching.remove(this);
+        }
+    }
+
+    /**
+     * The number of background lookups started to refresh names ahead of their expiry.
+     */
+    public long getPrefetchedLookups() {
+        return prefetched.get();
+    }
+
+    /**
+     * Stops all background work on behalf of this resolver.
+     */
+    public void release() {
+        setPrefetchEnabled(false);
+        privateCache.release();
     }
 
-    public boolean isCached(String hostname) throws TextParseException {
-        return cache.lookupRecords(Name.fromString(hostname), Type.ANY, 3).isSuccessful();
+    /**
+     * The number of resolutions that were satisfied by waiting on a lookup another request already had in flight.
+     */
+    public long getCoalescedLookups() {
+        return coalesced.get();
     }
 }
@@ -78,12 +78,11 @@ import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestExecutor;
 import org.browsermob.core.har.*;
+import org.browsermob.proxy.jetty.util.ByteArrayPool;
 import org.browsermob.proxy.util.CappedByteArrayOutputStream;
 import org.browsermob.proxy.util.Log;
 import org.eclipse.jetty.util.MultiMap;
 import org.eclipse.jetty.util.UrlEncoded;
-import org.xbill.DNS.Cache;
-import org.xbill.DNS.DClass;
 
 import java.io.*;
 import java.net.URI;
@@ -139,7 +138,7 @@ public class BrowserMobHttpClient {
         ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
 
         SchemeRegistry schemeRegistry = new SchemeRegistry();
-        hostNameResolver = new BrowserMobHostNameResolver(new Cache(DClass.ANY));
+        hostNameResolver = new BrowserMobHostNameResolver();
 
         this.socketFactory = new SimulatedSocketFactory(hostNameResolver);
         schemeRegistry.register(new Scheme("http", socketFactory, 80));
@@ -216,6 +215,10 @@ public class BrowserMobHttpClient {
         hostNameResolver.remap(source, target);
     }
 
+    public void remapHosts(Map<String, String> mappings) {
+        hostNameResolver.remapAll(mappings);
+    }
+
     public void addRequestInterceptor(HttpRequestInterceptor i) {
         httpClient.addRequestInterceptor(i);
     }
@@ -747,10 +750,10 @@ public class BrowserMobHttpClient {
         }
         
         if (captureContent && null != response && null != response.getEntity()) {
+        	final char[] buffer = ByteArrayPool.getCharArray(0x10000);
         	try {
         		
         		StringBuilder out = new StringBuilder();
-        		final char[] buffer = new char[0x10000];
         		int read;
         		InputStreamReader in;
         		
@@ -782,6 +785,8 @@ public class BrowserMobHttpClient {
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
+			} finally {
+				ByteArrayPool.returnCharArray(buffer);
 			}
         }
 
@@ -859,6 +864,7 @@ public class BrowserMobHttpClient {
         rewriteRules.clear();
         credsProvider.clear();
         httpClientConnMgr.shutdown();
+        hostNameResolver.release();
         HttpClientInterrupter.release(this);
     }
 
@@ -896,6 +902,20 @@ public class BrowserMobHttpClient {
         sslSocketFactory.setLatency(latency);
     }
 
+    /**
+     * Sets the protocols offered to HTTPS servers, TLSv1.3 and TLSv1.2 by default.
+     */
+    public void setSslProtocols(String... protocols) {
+        sslSocketFactory.setProtocols(protocols);
+    }
+
+    /**
+     * Sets how many seconds HTTPS sessions can be resumed for; see {@link TrustingSSLSocketFactory}.
+     */
+    public void setSslSessionTimeout(int seconds) {
+        sslSocketFactory.setSessionTimeout(seconds);
+    }
+
     public void setRequestTimeout(int requestTimeout) {
         this.requestTimeout = requestTimeout;
     }
@@ -1126,9 +1146,17 @@ public class BrowserMobHttpClient {
         this.hostNameResolver.setCacheTimeout(timeout);
     }
 
+    public void setDNSPrefetchEnabled(boolean prefetchEnabled) {
+        this.hostNameResolver.setPrefetchEnabled(prefetchEnabled);
+    }
+
+    public void setSharedDNSCache(boolean sharedCache) {
+        this.hostNameResolver.setSharedCache(sharedCache);
+    }
+
     public static long copyWithStats(InputStream is, OutputStream os) throws IOException {
         long bytesCopied = 0;
-        byte[] buffer = new byte[BUFFER];
+        byte[] buffer = ByteArrayPool.getByteArray(BUFFER);
         int length;
 
         try {
@@ -1151,6 +1179,8 @@ public class BrowserMobHttpClient {
                 }
             } while (length != -1);
         } finally {
+            ByteArrayPool.returnByteArray(buffer);
+
             try {
                 is.close();
             } catch (IOException e) {
@@ -0,0 +1,257 @@
+package org.browsermob.proxy.http;
+
+import org.browsermob.proxy.util.Log;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache of resolved host names used by {@link BrowserMobHostNameResolver}.
+ * <p/>
+ * Unlike org.xbill.DNS.Cache, which serializes every access on a single monitor, lookups here go through a
+ * ConcurrentHashMap split in to many segments, so concurrent page loads don't queue up behind each other. Every
+ * entry expires after its own TTL (optionally capped with {@link #setMaxTtl(int)}) and expired entries are swept out
+ * periodically by a shared background thread.
+ */
+public class HostNameCache {
+    private static final Log LOG = new Log();
+
+    private static final int CONCURRENCY_LEVEL = 32;
+    private static final long CLEANUP_INTERVAL_MS = 30000;
+
+    private static Set<HostNameCache> caches = new CopyOnWriteArraySet<HostNameCache>();
+
+    static {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(CLEANUP_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        // this is OK
+                    }
+
+                    for (HostNameCache cache : caches) {
+                        try {
+                            cache.evictExpired();
+                        } catch (Exception e) {
+                            LOG.severe("Unexpected problem while evicting expired DNS entries", e);
+                        }
+                    }
+                }
+            }
+        }, "HostNameCache Cleanup Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final HostNameCache shared = new HostNameCache();
+
+    /**
+     * Returns the process-wide cache that resolvers can share, so proxies running in the same JVM resolve a host name
+     * once between them. It is never released.
+     */
+    public static HostNameCache getShared() {
+        return shared;
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>(256, 0.75f, CONCURRENCY_LEVEL);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile int maxTtl = -1;
+
+    // lookups currently on their way to filling this cache, so concurrent misses for a name can wait on a single one
+    final ConcurrentMap<String, FutureTask<InetAddress[]>> lookups = new ConcurrentHashMap<String, FutureTask<InetAddress[]>>();
+
+    public HostNameCache() {
+        caches.add(this);
+    }
+
+    /**
+     * Returns the cached addresses for the host name, or null if there is no live entry. An empty array means the
+     * name is cached as not existing. Counts towards the hit and miss statistics.
+     */
+    public InetAddress[] get(String hostname) {
+        return get(hostname, Long.MIN_VALUE, -1);
+    }
+
+    /**
+     * Like {@link #get(String)}, but additionally treats an entry as missing if it was cached at or before
+     * storedAfter, or more than maxAgeMs ago when maxAgeMs isn't negative. This lets a user of a shared cache clear it,
+     * or cap its TTLs, for itself only.
+     */
+    public InetAddress[] get(String hostname, long storedAfter, long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(hostname);
+        if (entry != null && entry.isExpired(now)) {
+            entries.remove(hostname, entry);
+            entry = null;
+        }
+
+        if (entry == null || !entry.isVisible(now, storedAfter, maxAgeMs)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        entry.hits.incrementAndGet();
+        return entry.addresses;
+    }
+
+    /**
+     * Caches the addresses for the host name for the given number of seconds, or less if a maximum TTL is set.
+     */
+    public void put(String hostname, InetAddress[] addresses, long ttlSeconds) {
+        if (maxTtl >= 0 && ttlSeconds > maxTtl) {
+            ttlSeconds = maxTtl;
+        }
+
+        if (ttlSeconds <= 0) {
+            return;
+        }
+
+        entries.put(hostname, new Entry(addresses, System.currentTimeMillis(), ttlSeconds * 1000));
+    }
+
+    /**
+     * Checks for a live entry without touching the hit and miss statistics.
+     */
+    public boolean contains(String hostname) {
+        return contains(hostname, Long.MIN_VALUE, -1);
+    }
+
+    /**
+     * Checks for an entry that {@link #get(String, long, long)} would return, without touching the statistics.
+     */
+    public boolean contains(String hostname, long storedAfter, long maxAgeMs) {
+        return peek(hostname, storedAfter, maxAgeMs) != null;
+    }
+
+    /**
+     * Returns what {@link #get(String, long, long)} would, without touching the statistics; for a caller that has
+     * already counted its miss and looks again.
+     */
+    InetAddress[] peek(String hostname, long storedAfter, long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(hostname);
+        return entry != null && !entry.isExpired(now) && entry.isVisible(now, storedAfter, maxAgeMs)
+                ? entry.addresses : null;
+    }
+
+    public void remove(String hostname) {
+        entries.remove(hostname);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes every expired entry.
+     *
+     * @return the number of entries removed
+     */
+    public int evictExpired() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+                evicted++;
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Finds the live, positive entries that are about to expire and have been read at least the given number of
+     * times since they were cached. An entry is about to expire once it is in the last tenth of its TTL, or within
+     * the minimum window, whichever is longer.
+     */
+    public List<String> getExpiringEntries(int minimumHits, long minimumWindowMs) {
+        long now = System.currentTimeMillis();
+        List<String> hostnames = new ArrayList<String>();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.addresses.length == 0 || entry.isExpired(now) || entry.hits.get() < minimumHits) {
+                continue;
+            }
+
+            long window = Math.max(entry.ttl / 10, minimumWindowMs);
+            if (entry.expires - now <= window) {
+                hostnames.add(mapEntry.getKey());
+            }
+        }
+
+        return hostnames;
+    }
+
+    /**
+     * Stops the background cleanup from visiting this cache. The cache can still be used afterwards. Has no effect on
+     * the shared cache.
+     */
+    public void release() {
+        if (this != shared) {
+            caches.remove(this);
+        }
+    }
+
+    public int getMaxTtl() {
+        return maxTtl;
+    }
+
+    /**
+     * Caps how long, in seconds, any entry may be cached regardless of its TTL. A negative value (the default) honors
+     * the TTL of the records and 0 disables caching altogether.
+     */
+    public void setMaxTtl(int maxTtl) {
+        this.maxTtl = maxTtl;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Entry {
+        private final InetAddress[] addresses;
+        private final long stored;
+        private final long ttl;
+        private final long expires;
+        private final AtomicInteger hits = new AtomicInteger();
+
+        private Entry(InetAddress[] addresses, long stored, long ttl) {
+            this.addresses = addresses;
+            this.stored = stored;
+            this.ttl = ttl;
+            this.expires = stored + ttl;
+        }
+
+        private boolean isVisible(long now, long storedAfter, long maxAgeMs) {
+            return stored > storedAfter && (maxAgeMs < 0 || now - stored < maxAgeMs);
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+}
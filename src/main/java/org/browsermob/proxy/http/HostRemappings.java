@@ -0,0 +1,160 @@
+package org.browsermob.proxy.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Host name remappings, used by {@link BrowserMobHostNameResolver} before it resolves a name.
+ * <p/>
+ * Besides exact host names, a source can be a wildcard such as <code>*.cdn.example.com</code>, which matches every
+ * subdomain of cdn.example.com but not cdn.example.com itself, or a suffix such as <code>.example.com</code>, which
+ * matches example.com and all of its subdomains. A lone <code>*</code> matches every host. An exact mapping wins over a
+ * wildcard and a longer wildcard wins over a shorter one.
+ * <p/>
+ * The rules are kept in a trie keyed on the labels of the host name in reverse order (com, example, cdn...), so
+ * matching costs one map lookup per label no matter how many rules there are. Lookups never block, and
+ * {@link #putAll(Map)} builds a new trie aside and swaps it in, so a bulk load becomes visible all at once.
+ */
+public class HostRemappings {
+    private volatile Table table = new Table();
+
+    /**
+     * Returns the target the host name is remapped to, or null if no rule matches it.
+     */
+    public String get(String host) {
+        String[] labels = labels(host);
+        Node node = table.root;
+        String match = null;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            // there are labels left in front of this node, so the host is a subdomain of it
+            if (node.subdomains != null) {
+                match = node.subdomains;
+            }
+
+            node = node.children.get(labels[i]);
+            if (node == null) {
+                return match;
+            }
+        }
+
+        return node.exact != null ? node.exact : match;
+    }
+
+    /**
+     * Returns the sources that remap to the target, as given to {@link #put(String, String)}, or null if there are
+     * none. A suffix source <code>.example.com</code> is reported as example.com and *.example.com.
+     */
+    public List<String> getSources(String target) {
+        return table.sources.get(target);
+    }
+
+    public synchronized void put(String source, String target) {
+        table.put(source, target);
+    }
+
+    /**
+     * Adds all the mappings. Concurrent lookups see either none or all of them.
+     */
+    public synchronized void putAll(Map<String, String> mappings) {
+        Table copy = table.copy();
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            copy.put(mapping.getKey(), mapping.getValue());
+        }
+        table = copy;
+    }
+
+    private static String[] labels(String host) {
+        host = host.toLowerCase();
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+
+        return host.isEmpty() ? new String[0] : host.split("\\.");
+    }
+
+    private static class Table {
+        private final Node root;
+        private final ConcurrentMap<String, List<String>> sources;
+
+        private Table() {
+            this(new Node(), new ConcurrentHashMap<String, List<String>>());
+        }
+
+        private Table(Node root, ConcurrentMap<String, List<String>> sources) {
+            this.root = root;
+            this.sources = sources;
+        }
+
+        private void put(String source, String target) {
+            if (source.equals("*")) {
+                root.subdomains = target;
+            } else if (source.startsWith("*.")) {
+                node(source.substring(2)).subdomains = target;
+            } else if (source.startsWith(".")) {
+                Node node = node(source.substring(1));
+                node.exact = target;
+                node.subdomains = target;
+                addSource(target, source.substring(1));
+                source = "*" + source;
+            } else {
+                node(source).exact = target;
+            }
+
+            addSource(target, source);
+        }
+
+        private Node node(String host) {
+            String[] labels = labels(host);
+            Node node = root;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                Node child = node.children.get(labels[i]);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(labels[i], child);
+                }
+                node = child;
+            }
+
+            return node;
+        }
+
+        private void addSource(String target, String source) {
+            List<String> list = sources.get(target);
+            if (list == null) {
+                list = Collections.synchronizedList(new ArrayList<String>());
+                sources.put(target, list);
+            }
+            list.add(source);
+        }
+
+        private Table copy() {
+            ConcurrentMap<String, List<String>> sourcesCopy = new ConcurrentHashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> entry : sources.entrySet()) {
+                sourcesCopy.put(entry.getKey(), Collections.synchronizedList(new ArrayList<String>(entry.getValue())));
+            }
+
+            return new Table(root.copy(), sourcesCopy);
+        }
+    }
+
+    private static class Node {
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+        private volatile String exact;
+        private volatile String subdomains;
+
+        private Node copy() {
+            Node copy = new Node();
+            copy.exact = exact;
+            copy.subdomains = subdomains;
+            for (Map.Entry<String, Node> child : children.entrySet()) {
+                copy.children.put(child.getKey(), child.getValue().copy());
+            }
+
+            return copy;
+        }
+    }
+}
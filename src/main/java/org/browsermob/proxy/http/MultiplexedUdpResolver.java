@@ -0,0 +1,417 @@
+package org.browsermob.proxy.http;
+
+import org.browsermob.proxy.util.Log;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Resolver} that sends every UDP query in the JVM over one shared, unconnected {@link DatagramChannel}.
+ * <p/>
+ * {@link SimpleResolver} opens (and binds) a new UDP socket for every query, which at high query rates uses up
+ * ephemeral ports and pays the socket setup each time. Here a single background thread receives all the answers and
+ * hands each to the query waiting on it, matched by server address and message ID. IDs are picked at random among
+ * those not outstanding, and an answer is only accepted if it repeats the question that was asked.
+ * <p/>
+ * A query that goes unanswered is sent again, to the next server if there are several, until the timeout is used up.
+ * Truncated answers, queries too large for UDP and {@link #setTCP(boolean) TCP mode} go through a
+ * {@link SimpleResolver} over TCP instead.
+ */
+public class MultiplexedUdpResolver implements Resolver {
+    private static final Log LOG = new Log();
+
+    private static final int DEFAULT_PORT = 53;
+    private static final int DEFAULT_UDP_SIZE = 512;
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1280;
+
+    private static Channel channel;
+
+    private final InetSocketAddress[] servers;
+    private volatile long timeout = 10 * 1000;
+    private volatile int retries = 3;
+    private volatile boolean useTCP;
+    private volatile boolean ignoreTruncation;
+    private volatile OPTRecord queryOPT;
+    private volatile TSIG tsig;
+
+    /**
+     * Uses the name servers of the system configuration.
+     */
+    public MultiplexedUdpResolver() throws UnknownHostException {
+        this(ResolverConfig.getCurrentConfig().servers());
+    }
+
+    public MultiplexedUdpResolver(String... servers) throws UnknownHostException {
+        if (servers == null || servers.length == 0) {
+            servers = new String[]{"localhost"};
+        }
+
+        this.servers = new InetSocketAddress[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            this.servers[i] = new InetSocketAddress(InetAddress.getByName(servers[i]), DEFAULT_PORT);
+        }
+    }
+
+    public MultiplexedUdpResolver(InetSocketAddress... servers) {
+        if (servers.length == 0) {
+            throw new IllegalArgumentException("At least one server is required");
+        }
+
+        this.servers = servers.clone();
+    }
+
+    private static synchronized Channel channel() throws IOException {
+        if (channel == null) {
+            channel = new Channel();
+        }
+
+        return channel;
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        if (useTCP) {
+            return sendTCP(query, servers[0]);
+        }
+
+        Record question = query.getQuestion();
+        Channel channel = channel();
+        int attempts = retries + 1;
+        long attemptTimeout = Math.max(1, timeout / attempts);
+
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            InetSocketAddress server = servers[attempt % servers.length];
+
+            Message request = (Message) query.clone();
+            if (queryOPT != null && request.getOPT() == null) {
+                request.addRecord(queryOPT, Section.ADDITIONAL);
+            }
+
+            Pending pending = channel.register(server, question);
+            try {
+                request.getHeader().setID(pending.id);
+                TSIG tsig = this.tsig;
+                if (tsig != null) {
+                    tsig.apply(request, null);
+                }
+
+                byte[] out = request.toWire(Message.MAXLENGTH);
+                if (out.length > maxUdpSize(request)) {
+                    return sendTCP(query, server);
+                }
+
+                channel.send(out, server);
+                byte[] in = pending.await(attemptTimeout);
+                if (in == null) {
+                    channel.timeouts.incrementAndGet();
+                    continue;
+                }
+
+                Message response;
+                try {
+                    response = new Message(in);
+                } catch (IOException e) {
+                    LOG.fine("Ignoring malformed DNS response from %s: %s", server, e.getMessage());
+                    continue;
+                }
+
+                if (tsig != null) {
+                    tsig.verify(response, in, request.getTSIG());
+                }
+
+                if (!ignoreTruncation && response.getHeader().getFlag(Flags.TC)) {
+                    return sendTCP(query, server);
+                }
+
+                return response;
+            } finally {
+                channel.unregister(pending);
+            }
+        }
+
+        throw new SocketTimeoutException("No answer to DNS query for " + (question == null ? "?" : question.getName())
+                + " after " + attempts + " attempts");
+    }
+
+    private Message sendTCP(Message query, InetSocketAddress server) throws IOException {
+        SimpleResolver resolver = new SimpleResolver(server.getAddress().getHostAddress());
+        resolver.setPort(server.getPort());
+        resolver.setTCP(true);
+        resolver.setTimeout((int) (timeout / 1000), (int) (timeout % 1000));
+        if (queryOPT != null) {
+            resolver.setEDNS(queryOPT.getVersion(), queryOPT.getPayloadSize(), queryOPT.getFlags(), null);
+        }
+        resolver.setTSIGKey(tsig);
+
+        return resolver.send(query);
+    }
+
+    private static int maxUdpSize(Message query) {
+        OPTRecord opt = query.getOPT();
+        return opt == null ? DEFAULT_UDP_SIZE : opt.getPayloadSize();
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "MultiplexedUdpResolver Async Query");
+        thread.setDaemon(true);
+        thread.start();
+
+        return id;
+    }
+
+    @Override
+    public void setPort(int port) {
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new InetSocketAddress(servers[i].getAddress(), port);
+        }
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        useTCP = flag;
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        ignoreTruncation = flag;
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+        }
+
+        queryOPT = level == -1 ? null
+                : new OPTRecord(payloadSize == 0 ? DEFAULT_EDNS_PAYLOAD_SIZE : payloadSize, 0, level, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        tsig = key;
+    }
+
+    /**
+     * Sets the time allowed for a query, including every retry.
+     */
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        timeout = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Sets how many times an unanswered query is sent again. The timeout is split evenly between the attempts.
+     */
+    public void setRetries(int retries) {
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * The number of queries sent over the shared channel, across all instances.
+     */
+    public static long getQueries() {
+        return channel == null ? 0 : channel.queries.get();
+    }
+
+    /**
+     * The number of query attempts that went unanswered, across all instances.
+     */
+    public static long getTimeouts() {
+        return channel == null ? 0 : channel.timeouts.get();
+    }
+
+    /**
+     * The shared channel and the thread that receives on it.
+     */
+    private static class Channel implements Runnable {
+        private final DatagramChannel datagramChannel;
+        private final ConcurrentMap<Key, Pending> pending = new ConcurrentHashMap<Key, Pending>();
+        private final Random random = new SecureRandom();
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private Channel() throws IOException {
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.socket().bind(new InetSocketAddress(0));
+
+            Thread thread = new Thread(this, "MultiplexedUdpResolver Receive Thread");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private Pending register(InetSocketAddress server, Record question) {
+            byte[] questionWire = question == null ? null : question.toWire(Section.QUESTION);
+            while (true) {
+                int id;
+                synchronized (random) {
+                    id = random.nextInt(0x10000);
+                }
+
+                Pending candidate = new Pending(new Key(server, id), id, questionWire);
+                if (pending.putIfAbsent(candidate.key, candidate) == null) {
+                    return candidate;
+                }
+            }
+        }
+
+        private void unregister(Pending query) {
+            pending.remove(query.key, query);
+        }
+
+        private void send(byte[] out, InetSocketAddress server) throws IOException {
+            queries.incrementAndGet();
+            datagramChannel.send(ByteBuffer.wrap(out), server);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(Message.MAXLENGTH);
+            while (true) {
+                try {
+                    buffer.clear();
+                    SocketAddress source = datagramChannel.receive(buffer);
+                    buffer.flip();
+                    if (source == null || buffer.remaining() < Header.LENGTH) {
+                        continue;
+                    }
+
+                    int id = ((buffer.get(0) & 0xFF) << 8) | (buffer.get(1) & 0xFF);
+                    Pending query = pending.get(new Key(source, id));
+                    if (query == null) {
+                        // a late answer to a query we retried or gave up on, or one we never asked
+                        continue;
+                    }
+
+                    byte[] in = new byte[buffer.remaining()];
+                    buffer.get(in);
+                    if (!query.isAnsweredBy(in)) {
+                        LOG.fine("Ignoring DNS response from %s that doesn't match the question asked", source);
+                        continue;
+                    }
+
+                    query.complete(in);
+                } catch (Exception e) {
+                    LOG.severe("Unexpected problem receiving DNS responses", e);
+                }
+            }
+        }
+    }
+
+    private static class Key {
+        private final SocketAddress server;
+        private final int id;
+
+        private Key(SocketAddress server, int id) {
+            this.server = server;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return id == key.id && server.equals(key.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + id;
+        }
+    }
+
+    private static class Pending {
+        private final Key key;
+        private final int id;
+        private final byte[] question;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile byte[] response;
+
+        private Pending(Key key, int id, byte[] question) {
+            this.key = key;
+            this.id = id;
+            this.question = question;
+        }
+
+        /**
+         * Checks the question section of the answer is the one we sent, byte for byte. It directly follows the
+         * header in both.
+         */
+        private boolean isAnsweredBy(byte[] in) {
+            if (question == null) {
+                return true;
+            }
+
+            if (in.length < Header.LENGTH + question.length) {
+                return false;
+            }
+
+            for (int i = 0; i < question.length; i++) {
+                if (in[Header.LENGTH + i] != question[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void complete(byte[] in) {
+            response = in;
+            latch.countDown();
+        }
+
+        private byte[] await(long timeout) throws IOException {
+            try {
+                latch.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a DNS response");
+            }
+
+            return response;
+        }
+    }
+}
@@ -110,6 +110,14 @@ public class RequestInfo {
         connect = ping(start, end);
     }
 
+    /**
+     * Records the address a connection was actually opened to, which may not be the first one the host name resolved
+     * to if that one was slow or refused the connection.
+     */
+    public void setResolvedAddress(String resolvedAddress) {
+        this.resolvedAddress = resolvedAddress;
+    }
+
     public void ssl(Date start, Date end) {
         ssl = ping(start, end);
     }
@@ -221,6 +229,12 @@ public class RequestInfo {
             connect = this.connect;
         }
 
-        return new HarTimings(blocked, dns, connect, send, wait, receive);
+        // unlike the others, ssl is -1 when there was no handshake, as the spec asks
+        long ssl = -1;
+        if (this.ssl != null) {
+            ssl = this.ssl;
+        }
+
+        return new HarTimings(blocked, dns, connect, ssl, send, wait, receive);
     }
 }
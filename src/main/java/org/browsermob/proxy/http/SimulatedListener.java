@@ -0,0 +1,21 @@
+package org.browsermob.proxy.http;
+
+import org.browsermob.proxy.jetty.http.HttpListener;
+
+/**
+ * A listener that shapes the browser-facing side of the connections it accepts with the bandwidth and latency model
+ * of {@link SimulatedSocket}. A rate of 0 disables shaping.
+ */
+public interface SimulatedListener extends HttpListener {
+    public long getDownstreamKbps();
+
+    public void setDownstreamKbps(long downstreamKbps);
+
+    public long getUpstreamKbps();
+
+    public void setUpstreamKbps(long upstreamKbps);
+
+    public long getLatency();
+
+    public void setLatency(long latency);
+}
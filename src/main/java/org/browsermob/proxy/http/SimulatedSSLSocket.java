@@ -15,22 +15,12 @@ public class SimulatedSSLSocket extends SSLSocket {
     private long downstreamKbps;
     private long upstreamKbps;
     private long latency;
-    private Date handshakeStart;
-    private RequestInfo requestInfo;
 
     public SimulatedSSLSocket(SSLSocket socket, long downstreamKbps, long upstreamKbps, long latency) {
         this.socket = SimulatedSocket.configure(socket);
         this.downstreamKbps = downstreamKbps;
         this.upstreamKbps = upstreamKbps;
         this.latency = latency;
-        this.addHandshakeCompletedListener(new HandshakeCompletedListener() {
-            @Override
-            public void handshakeCompleted(HandshakeCompletedEvent handshakeCompletedEvent) {
-                if (requestInfo != null) {
-                    requestInfo.ssl(handshakeStart, new Date());
-                }
-            }
-        });
     }
 
     @Override
@@ -78,9 +68,14 @@ public class SimulatedSSLSocket extends SSLSocket {
         socket.removeHandshakeCompletedListener(handshakeCompletedListener);
     }
 
+    /**
+     * Runs the handshake, recording how long it took as the current request's SSL time.
+     */
     @Override
     public void startHandshake() throws IOException {
+        Date start = new Date();
         socket.startHandshake();
+        RequestInfo.get().ssl(start, new Date());
     }
 
     @Override
@@ -139,8 +134,6 @@ public class SimulatedSSLSocket extends SSLSocket {
         socket.connect(endpoint);
         Date end = new Date();
         RequestInfo.get().connect(start, end);
-        handshakeStart = new Date();
-        requestInfo = RequestInfo.get();
     }
 
     @Override
@@ -149,8 +142,6 @@ public class SimulatedSSLSocket extends SSLSocket {
         socket.connect(endpoint, timeout);
         Date end = new Date();
         RequestInfo.get().connect(start, end);
-        handshakeStart = new Date();
-        requestInfo = RequestInfo.get();
     }
 
     @Override
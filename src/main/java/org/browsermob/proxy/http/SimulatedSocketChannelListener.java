@@ -0,0 +1,69 @@
+package org.browsermob.proxy.http;
+
+import org.browsermob.proxy.jetty.http.nio.SocketChannelListener;
+import org.browsermob.proxy.jetty.util.InetAddrPort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The NIO counterpart of {@link SimulatedSocketListener}: connections wait for their next request on a selector
+ * rather than in a thread of their own, and the browser-facing side of each is shaped the same way. CONNECT tunnels
+ * are only relayed on the shared tunnel selector while nothing is being shaped, since the relay bypasses the streams.
+ */
+public class SimulatedSocketChannelListener extends SocketChannelListener implements SimulatedListener {
+    private volatile long downstreamKbps;
+    private volatile long upstreamKbps;
+    private volatile long latency;
+
+    public SimulatedSocketChannelListener(InetAddrPort address) {
+        super(address);
+    }
+
+    @Override
+    protected InputStream newInputStream(Socket socket) throws IOException {
+        return new SimulatedInputStream(socket.getInputStream(), upstreamKbps, latency);
+    }
+
+    @Override
+    protected OutputStream newOutputStream(Socket socket) throws IOException {
+        return new SimulatedOutputStream(socket.getOutputStream(), downstreamKbps, latency);
+    }
+
+    @Override
+    public boolean isShaped() {
+        return downstreamKbps > 0 || upstreamKbps > 0 || latency > 0;
+    }
+
+    @Override
+    public long getDownstreamKbps() {
+        return downstreamKbps;
+    }
+
+    @Override
+    public void setDownstreamKbps(long downstreamKbps) {
+        this.downstreamKbps = downstreamKbps;
+    }
+
+    @Override
+    public long getUpstreamKbps() {
+        return upstreamKbps;
+    }
+
+    @Override
+    public void setUpstreamKbps(long upstreamKbps) {
+        this.upstreamKbps = upstreamKbps;
+    }
+
+    @Override
+    public long getLatency() {
+        return latency;
+    }
+
+    @Override
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+}
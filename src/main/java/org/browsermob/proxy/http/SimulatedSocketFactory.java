@@ -1,6 +1,5 @@
 package org.browsermob.proxy.http;
 
-import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.scheme.HostNameResolver;
 import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.params.HttpConnectionParams;
@@ -10,7 +9,6 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 
 public class SimulatedSocketFactory implements SocketFactory {
     private final HostNameResolver nameResolver;
@@ -39,36 +37,39 @@ public class SimulatedSocketFactory implements SocketFactory {
             throw new IllegalArgumentException("Parameters may not be null.");
         }
 
-        if (sock == null)
-            sock = createSocket();
+        // every address gets a socket of its own, so the unconnected one handed to us is not needed
+        if (sock != null) {
+            sock.close();
+        }
 
+        InetSocketAddress localSocketAddress = null;
         if ((localAddress != null) || (localPort > 0)) {
 
             // we need to bind explicitly
             if (localPort < 0)
                 localPort = 0; // indicates "any"
 
-            InetSocketAddress isa =
-                    new InetSocketAddress(localAddress, localPort);
-            sock.bind(isa);
+            localSocketAddress = new InetSocketAddress(localAddress, localPort);
         }
 
         int timeout = HttpConnectionParams.getConnectionTimeout(params);
 
-        InetSocketAddress remoteAddress;
-        if (this.nameResolver != null) {
-            remoteAddress = new InetSocketAddress(this.nameResolver.resolve(host), port);
-        } else {
-            remoteAddress = new InetSocketAddress(host, port);
-        }
+        Socket connected = StaggeredConnector.connect(resolveAll(nameResolver, host), port, localSocketAddress, timeout);
 
-        try {
-            sock.connect(remoteAddress, timeout);
-        } catch (SocketTimeoutException ex) {
-            throw new ConnectTimeoutException("Connect to " + remoteAddress + " timed out");
-        }
+        return new SimulatedSocket(connected, downstreamKbps, upstreamKbps, latency);
+    }
 
-        return new SimulatedSocket(sock, downstreamKbps, upstreamKbps, latency);
+    /**
+     * Resolves every address of the host, in the order connections should be attempted.
+     */
+    static InetAddress[] resolveAll(HostNameResolver nameResolver, String host) throws IOException {
+        if (nameResolver instanceof BrowserMobHostNameResolver) {
+            return ((BrowserMobHostNameResolver) nameResolver).resolveAll(host);
+        } else if (nameResolver != null) {
+            return new InetAddress[]{nameResolver.resolve(host)};
+        } else {
+            return InetAddress.getAllByName(host);
+        }
     }
 
     /**
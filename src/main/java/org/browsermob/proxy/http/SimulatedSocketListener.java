@@ -0,0 +1,65 @@
+package org.browsermob.proxy.http;
+
+import org.browsermob.proxy.jetty.http.HttpConnection;
+import org.browsermob.proxy.jetty.http.SocketListener;
+import org.browsermob.proxy.jetty.util.InetAddrPort;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A SocketListener that applies the same bandwidth and latency model used by {@link SimulatedSocket} to the
+ * browser-facing side of every connection it accepts. Because CONNECT tunnels are pumped over the streams of the
+ * connection they were opened on, shaping here also covers tunnelled traffic (HTTPS, WebSockets over CONNECT).
+ * <p/>
+ * Bytes read from the browser are limited by the upstream rate and bytes written back to the browser by the
+ * downstream rate. A rate of 0 (the default) disables shaping.
+ */
+public class SimulatedSocketListener extends SocketListener implements SimulatedListener {
+    private volatile long downstreamKbps;
+    private volatile long upstreamKbps;
+    private volatile long latency;
+
+    public SimulatedSocketListener(InetAddrPort address) {
+        super(address);
+    }
+
+    @Override
+    protected HttpConnection createConnection(Socket socket) throws IOException {
+        return new HttpConnection(this,
+                socket.getInetAddress(),
+                new SimulatedInputStream(socket.getInputStream(), upstreamKbps, latency),
+                new SimulatedOutputStream(socket.getOutputStream(), downstreamKbps, latency),
+                socket);
+    }
+
+    @Override
+    public long getDownstreamKbps() {
+        return downstreamKbps;
+    }
+
+    @Override
+    public void setDownstreamKbps(long downstreamKbps) {
+        this.downstreamKbps = downstreamKbps;
+    }
+
+    @Override
+    public long getUpstreamKbps() {
+        return upstreamKbps;
+    }
+
+    @Override
+    public void setUpstreamKbps(long upstreamKbps) {
+        this.upstreamKbps = upstreamKbps;
+    }
+
+    @Override
+    public long getLatency() {
+        return latency;
+    }
+
+    @Override
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+}
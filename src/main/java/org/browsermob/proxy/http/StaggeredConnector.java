@@ -0,0 +1,172 @@
+package org.browsermob.proxy.http;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens a TCP connection to a host that resolved to several addresses, in the style of "happy eyeballs" (RFC 6555).
+ * <p/>
+ * The first address is tried straight away. If it hasn't connected within {@link #STAGGER_MS} the next address is
+ * tried alongside it, and so on, so a dead or black-holed address costs a fraction of a second rather than a whole
+ * connect timeout. An attempt that fails outright starts the next one immediately. The first connection to succeed
+ * wins and every other attempt is closed.
+ * <p/>
+ * The connect timing and the winning address are recorded against the calling thread's {@link RequestInfo}.
+ */
+class StaggeredConnector {
+    static final long STAGGER_MS = 250;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "StaggeredConnector-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private StaggeredConnector() {
+    }
+
+    /**
+     * Connects to one of the addresses, preferring them in the order given.
+     *
+     * @param localAddress the local address to bind each attempt to, or null
+     * @param timeout      the connect timeout of each attempt in milliseconds, 0 meaning no timeout
+     * @return a connected plain socket
+     */
+    static Socket connect(InetAddress[] addresses, int port, InetSocketAddress localAddress, int timeout)
+            throws IOException {
+        if (addresses.length == 0) {
+            throw new IllegalArgumentException("At least one address is required");
+        }
+
+        Date start = new Date();
+        Socket socket;
+        if (addresses.length == 1) {
+            socket = newSocket(localAddress);
+            try {
+                socket.connect(new InetSocketAddress(addresses[0], port), timeout);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                throw translate(e, new InetSocketAddress(addresses[0], port).toString());
+            }
+        } else {
+            socket = race(addresses, port, localAddress, timeout);
+        }
+        Date end = new Date();
+
+        RequestInfo info = RequestInfo.get();
+        info.connect(start, end);
+        info.setResolvedAddress(socket.getInetAddress().getHostAddress());
+
+        return socket;
+    }
+
+    private static Socket race(InetAddress[] addresses, int port, InetSocketAddress localAddress, final int timeout)
+            throws IOException {
+        CompletionService<Socket> attempts = new ExecutorCompletionService<Socket>(executor);
+        List<Socket> sockets = new ArrayList<Socket>(addresses.length);
+        Socket winner = null;
+        Throwable failure = null;
+
+        try {
+            int next = 0;
+            int pending = 0;
+            while (winner == null && (next < addresses.length || pending > 0)) {
+                if (next < addresses.length) {
+                    final Socket socket = newSocket(localAddress);
+                    final InetSocketAddress remoteAddress = new InetSocketAddress(addresses[next++], port);
+                    sockets.add(socket);
+                    attempts.submit(new Callable<Socket>() {
+                        @Override
+                        public Socket call() throws Exception {
+                            socket.connect(remoteAddress, timeout);
+                            return socket;
+                        }
+                    });
+                    pending++;
+                }
+
+                // while there are addresses left, only wait so long before starting on the next one
+                Future<Socket> done = next < addresses.length
+                        ? attempts.poll(STAGGER_MS, TimeUnit.MILLISECONDS)
+                        : attempts.take();
+                if (done != null) {
+                    pending--;
+                    try {
+                        winner = done.get();
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to port " + port);
+        } finally {
+            // the losers may still be connecting; closing them makes those attempts fail and end
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        if (winner != null) {
+            return winner;
+        }
+
+        if (failure instanceof IOException) {
+            throw translate((IOException) failure, Arrays.toString(addresses) + " port " + port);
+        }
+        throw new IOException("Could not connect to any address on port " + port, failure);
+    }
+
+    private static Socket newSocket(InetSocketAddress localAddress) throws IOException {
+        Socket socket = SimulatedSocket.configure(new Socket());
+        if (localAddress != null) {
+            socket.bind(localAddress);
+        }
+
+        return socket;
+    }
+
+    private static IOException translate(IOException e, String target) {
+        if (e instanceof SocketTimeoutException) {
+            return new ConnectTimeoutException("Connect to " + target + " timed out");
+        }
+
+        return e;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore, we're giving up on this socket anyway
+        }
+    }
+}
@@ -2,87 +2,287 @@ package org.browsermob.proxy.http;
 
 import org.apache.http.conn.scheme.HostNameResolver;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Makes the upstream HTTPS connections, trusting whatever certificate the server presents.
+ * <p/>
+ * Every factory has an SSL context of its own, offering TLS 1.2 and later with the strongest cipher suites first.
+ * Its session cache lets later connections to a server resume the session the first one negotiated, which saves the
+ * key exchange and a round trip on every connection the pool opens after that.
+ */
 public class TrustingSSLSocketFactory extends SSLSocketFactory {
-    private static SSLContext sslContext;
+    public static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+    public static final int DEFAULT_SESSION_TIMEOUT = 60 * 60;
+
+    // anything matching these is never offered
+    private static final String[] WEAK_CIPHERS = {"_NULL_", "_anon_", "_EXPORT_", "_RC4_", "_DES_", "_DES40_",
+            "_3DES_", "_MD5", "SCSV"};
+    // the rest are offered in this order, each suite going with the first of these it contains
+    private static final String[] CIPHER_PREFERENCE = {"TLS_AES_", "TLS_CHACHA20_", "_ECDHE_ECDSA_WITH_AES_256_GCM",
+            "_ECDHE_ECDSA_WITH_AES_128_GCM", "_ECDHE_ECDSA_WITH_CHACHA20", "_ECDHE_RSA_WITH_AES_256_GCM",
+            "_ECDHE_RSA_WITH_AES_128_GCM", "_ECDHE_RSA_WITH_CHACHA20", "_DHE_RSA_WITH_AES_256_GCM",
+            "_DHE_RSA_WITH_AES_128_GCM", "_ECDHE_", "_DHE_", "_GCM_"};
+
+    private static final TrustManager TRUST_EVERYTHING = new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(
+                X509Certificate[] chain,
+                String authType) throws CertificateException {
+            // Oh, I am easy!
+        }
+
+        @Override
+        public void checkServerTrusted(
+                X509Certificate[] chain,
+                String authType) throws CertificateException {
+            // Oh, I am easy!
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return null;
+        }
+    };
+
+    private final SSLContext sslContext;
+    private final HostNameResolver nameResolver;
+
+    private volatile String[] protocols;
+    private volatile String[] cipherSuites;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
 
     private long downstreamKbps;
     private long upstreamKbps;
     private long latency;
 
-    static {
+    public TrustingSSLSocketFactory(HostNameResolver nameResolver) {
+        this(newSSLContext(), nameResolver);
+    }
+
+    private TrustingSSLSocketFactory(SSLContext sslContext, HostNameResolver nameResolver) {
+        super(sslContext, nameResolver);
+        this.sslContext = sslContext;
+        this.nameResolver = nameResolver;
+
+        setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+        setProtocols(DEFAULT_PROTOCOLS);
+        cipherSuites = orderCipherSuites(sslContext.getSupportedSSLParameters().getCipherSuites());
+    }
+
+    private static SSLContext newSSLContext() {
+        SSLContext sslContext;
         try {
-            sslContext = SSLContext.getInstance("SSLv3");
+            sslContext = SSLContext.getInstance("TLS");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("TLS algorithm not found! Critical SSL error!", e);
         }
-        TrustManager easyTrustManager = new X509TrustManager() {
-            @Override
-            public void checkClientTrusted(
-                    X509Certificate[] chain,
-                    String authType) throws CertificateException {
-                // Oh, I am easy!
-            }
+        try {
+            sslContext.init(null, new TrustManager[]{TRUST_EVERYTHING}, null);
+        } catch (KeyManagementException e) {
+            throw new RuntimeException("Unexpected key management error", e);
+        }
 
-            @Override
-            public void checkServerTrusted(
-                    X509Certificate[] chain,
-                    String authType) throws CertificateException {
-                // Oh, I am easy!
+        return sslContext;
+    }
+
+    /**
+     * Drops the weak cipher suites and puts the rest in order of preference: TLS 1.3 suites, then forward secret AEAD
+     * suites, then other forward secret ones, then the remainder, keeping the JRE's order within each group.
+     */
+    static String[] orderCipherSuites(String[] supported) {
+        List<String> suites = new ArrayList<String>();
+        for (String suite : supported) {
+            boolean weak = false;
+            for (String marker : WEAK_CIPHERS) {
+                weak |= suite.contains(marker);
+            }
+            if (!weak) {
+                suites.add(suite);
             }
+        }
 
+        Collections.sort(suites, new Comparator<String>() {
             @Override
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
+            public int compare(String a, String b) {
+                return rank(a) - rank(b);
             }
+        });
 
-        };
-        try {
-            sslContext.init(null, new TrustManager[]{easyTrustManager}, null);
-        } catch (KeyManagementException e) {
-            throw new RuntimeException("Unexpected key management error", e);
+        return suites.toArray(new String[suites.size()]);
+    }
+
+    private static int rank(String suite) {
+        for (int i = 0; i < CIPHER_PREFERENCE.length; i++) {
+            if (suite.contains(CIPHER_PREFERENCE[i])) {
+                return i;
+            }
         }
+        return CIPHER_PREFERENCE.length;
+    }
+
+    private SSLSocket configure(SSLSocket socket) {
+        socket.setEnabledProtocols(protocols);
+        socket.setEnabledCipherSuites(cipherSuites);
+        return socket;
     }
 
     @Override
     public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
-        SSLSocket sslSocket = (SSLSocket) super.createSocket(socket, host, port, autoClose);
+        SSLSocket sslSocket = configure((SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, autoClose));
 
-        return new SimulatedSSLSocket(sslSocket, downstreamKbps, upstreamKbps, latency);
+        return handshake(new SimulatedSSLSocket(sslSocket, downstreamKbps, upstreamKbps, latency), host);
     }
 
     @Override
     public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException {
-        SSLSocket socket = (SSLSocket) super.connectSocket(sock, host, port, localAddress, localPort, params);
-        return new SimulatedSSLSocket(socket, downstreamKbps, upstreamKbps, latency);
+        // connect in plain first so every address of the host can be raced, then layer SSL over the winner
+        if (sock != null) {
+            sock.close();
+        }
+
+        InetSocketAddress localSocketAddress = null;
+        if (localAddress != null || localPort > 0) {
+            localSocketAddress = new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort);
+        }
+
+        Socket connected = StaggeredConnector.connect(SimulatedSocketFactory.resolveAll(nameResolver, host), port,
+                localSocketAddress, HttpConnectionParams.getConnectionTimeout(params));
+        connected.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+
+        // the host and port are what the session cache is keyed on, so later connections can resume this session
+        SSLSocket sslSocket = configure((SSLSocket) sslContext.getSocketFactory().createSocket(connected, host, port, true));
+
+        return handshake(new SimulatedSSLSocket(sslSocket, downstreamKbps, upstreamKbps, latency), host);
+    }
+
+    /**
+     * Runs the handshake up front, rather than leaving it to the first read or write, so that it is timed as the
+     * request's SSL time and not its send or wait time, then checks the server's certificate against the host.
+     */
+    private Socket handshake(SimulatedSSLSocket socket, String host) throws IOException {
+        try {
+            long start = System.currentTimeMillis();
+            socket.startHandshake();
+            handshakes.incrementAndGet();
+            // a resumed session was created by an earlier handshake
+            if (socket.getSession().getCreationTime() < start) {
+                resumedHandshakes.incrementAndGet();
+            }
+
+            getHostnameVerifier().verify(host, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        return socket;
     }
 
     @Override
     public Socket createSocket() throws IOException {
-        SSLSocket socket = (SSLSocket) super.createSocket();
-        socket.setEnabledProtocols(new String[] {"SSLv3", "TLSv1"});
-//        socket.setEnabledCipherSuites(new String[] { "SSL_RSA_WITH_RC4_128_MD5" });
-
+        SSLSocket socket = configure((SSLSocket) super.createSocket());
 
         return new SimulatedSSLSocket(socket, downstreamKbps, upstreamKbps, latency);
     }
 
-    public TrustingSSLSocketFactory(HostNameResolver nameResolver) {
-        super(sslContext, nameResolver);
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+
+    /**
+     * Sets the protocols to offer, such as TLSv1.2. Those the JRE doesn't support are left out.
+     */
+    public void setProtocols(String... protocols) {
+        List<String> supported = Arrays.asList(sslContext.getSupportedSSLParameters().getProtocols());
+        List<String> enabled = new ArrayList<String>();
+        for (String protocol : protocols) {
+            if (supported.contains(protocol)) {
+                enabled.add(protocol);
+            }
+        }
+        if (enabled.isEmpty()) {
+            throw new IllegalArgumentException("None of " + Arrays.toString(protocols) + " are supported");
+        }
+
+        this.protocols = enabled.toArray(new String[enabled.size()]);
+    }
+
+    public String[] getCipherSuites() {
+        return cipherSuites.clone();
+    }
+
+    /**
+     * Sets the cipher suites to offer, in order of preference.
+     */
+    public void setCipherSuites(String... cipherSuites) {
+        this.cipherSuites = cipherSuites.clone();
+    }
+
+    private SSLSessionContext getSessionContext() {
+        return sslContext.getClientSessionContext();
+    }
+
+    public int getSessionCacheSize() {
+        return getSessionContext().getSessionCacheSize();
+    }
+
+    /**
+     * Sets how many sessions are kept for resumption; 0 means no limit.
+     */
+    public void setSessionCacheSize(int size) {
+        getSessionContext().setSessionCacheSize(size);
+    }
+
+    public int getSessionTimeout() {
+        return getSessionContext().getSessionTimeout();
+    }
+
+    /**
+     * Sets how many seconds a session can be resumed for after it was negotiated; 0 means no limit.
+     */
+    public void setSessionTimeout(int seconds) {
+        getSessionContext().setSessionTimeout(seconds);
+    }
+
+    /**
+     * The number of handshakes with servers, including resumed ones.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * The number of handshakes that resumed an earlier session rather than negotiating a new one.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
     }
 
     public void setDownstreamKbps(long downstreamKbps) {
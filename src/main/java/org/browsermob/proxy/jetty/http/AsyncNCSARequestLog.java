@@ -0,0 +1,282 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.browsermob.proxy.jetty.http;
+
+import org.apache.commons.logging.Log;
+import org.browsermob.proxy.jetty.log.LogFactory;
+import org.browsermob.proxy.jetty.util.LogSupport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/* ------------------------------------------------------------ */
+/** Asynchronous NCSA HTTP Request Log.
+ * Lines are formatted on the request thread, as {@link NCSARequestLog}
+ * does, but are then put in a bounded queue rather than written. A thread
+ * of the log's own takes them off in batches and writes and flushes each
+ * batch at once, so requests never wait on the disk or on each other.
+ * <p>
+ * When lines arrive faster than they can be written and the queue is full,
+ * they are dropped and counted rather than making requests wait; see
+ * {@link #getDropped()}. Filenames containing "yyyy_mm_dd" roll over
+ * nightly, as for NCSARequestLog.
+ *
+ * @see org.browsermob.proxy.jetty.util.RolloverFileOutputStream
+ */
+public class AsyncNCSARequestLog extends NCSARequestLog
+{
+    private static Log log = LogFactory.getLog(AsyncNCSARequestLog.class);
+
+    // how long the writer waits for a line before looking whether it should stop
+    private static final long POLL_MS=200;
+
+    private int _queueSize=8192;
+    private int _maxBatch=512;
+
+    private transient volatile BlockingQueue<String> _queue;
+    private transient WriterThread _thread;
+    private final AtomicLong _logged=new AtomicLong();
+    private final AtomicLong _dropped=new AtomicLong();
+    private final AtomicLong _batches=new AtomicLong();
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     */
+    public AsyncNCSARequestLog()
+    {
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Constructor.
+     * @param filename Filename, which can be in
+     * rolloverFileOutputStream format
+     * @exception IOException
+     */
+    public AsyncNCSARequestLog(String filename)
+        throws IOException
+    {
+        super(filename);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return How many lines may wait to be written before more are dropped.
+     */
+    public int getQueueSize()
+    {
+        return _queueSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param queueSize How many lines may wait to be written before more
+     * are dropped. Takes effect when the log is next started.
+     */
+    public void setQueueSize(int queueSize)
+    {
+        _queueSize=queueSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The most lines written and flushed at once.
+     */
+    public int getMaxBatch()
+    {
+        return _maxBatch;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxBatch The most lines written and flushed at once.
+     */
+    public void setMaxBatch(int maxBatch)
+    {
+        _maxBatch=maxBatch;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lines written.
+     */
+    public long getLogged()
+    {
+        return _logged.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lines dropped because the queue was full.
+     */
+    public long getDropped()
+    {
+        return _dropped.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of batches written.
+     */
+    public long getBatches()
+    {
+        return _batches.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lines waiting to be written.
+     */
+    public int getQueued()
+    {
+        BlockingQueue<String> queue=_queue;
+        return queue==null?0:queue.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void start()
+        throws Exception
+    {
+        super.start();
+        _queue=new ArrayBlockingQueue<String>(_queueSize);
+        _thread=new WriterThread(_queue);
+        _thread.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop the log, once the lines already queued are written.
+     * Lines logged once stopping has begun are dropped and counted.
+     */
+    public void stop()
+    {
+        BlockingQueue<String> queue=_queue;
+        _queue=null;
+
+        WriterThread thread=_thread;
+        if (thread!=null)
+        {
+            thread._running=false;
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                LogSupport.ignore(log,e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        _thread=null;
+
+        // a line queued just before the queue was taken away may have missed the writer
+        if (queue!=null && !queue.isEmpty())
+        {
+            List<String> batch=new ArrayList<String>(queue.size());
+            queue.drainTo(batch);
+            try
+            {
+                writeLines(batch,new StringBuilder());
+            }
+            catch(IOException e)
+            {
+                log.warn(LogSupport.EXCEPTION,e);
+            }
+        }
+        super.stop();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Queue a line to be written, or drop it if the queue is full.
+     */
+    protected void write(String lines)
+    {
+        BlockingQueue<String> queue=_queue;
+        if (queue==null || !queue.offer(lines))
+            _dropped.incrementAndGet();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write and flush a batch of lines.
+     * Called only by the thread of the log.
+     */
+    protected void writeBatch(String lines)
+        throws IOException
+    {
+        super.write(lines);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writeLines(List<String> batch, StringBuilder lines)
+        throws IOException
+    {
+        for (int i=0;i<batch.size();i++)
+            lines.append(batch.get(i));
+        writeBatch(lines.toString());
+        _logged.addAndGet(batch.size());
+        _batches.incrementAndGet();
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private class WriterThread extends Thread
+    {
+        volatile boolean _running=true;
+        private final BlockingQueue<String> _lines;
+
+        WriterThread(BlockingQueue<String> lines)
+        {
+            super("AccessLog@"+Integer.toHexString(AsyncNCSARequestLog.this.hashCode()));
+            setDaemon(true);
+            _lines=lines;
+        }
+
+        public void run()
+        {
+            List<String> batch=new ArrayList<String>(_maxBatch);
+            StringBuilder lines=new StringBuilder(160*Math.min(_maxBatch,64));
+            while (_running || !_lines.isEmpty())
+            {
+                try
+                {
+                    String line=_lines.poll(POLL_MS,TimeUnit.MILLISECONDS);
+                    if (line==null)
+                        continue;
+                    batch.add(line);
+                    _lines.drainTo(batch,_maxBatch-1);
+                    writeLines(batch,lines);
+                }
+                catch(InterruptedException e)
+                {
+                    LogSupport.ignore(log,e);
+                }
+                catch(Exception e)
+                {
+                    log.warn(LogSupport.EXCEPTION,e);
+                }
+                finally
+                {
+                    batch.clear();
+                    lines.setLength(0);
+                }
+            }
+        }
+    }
+}
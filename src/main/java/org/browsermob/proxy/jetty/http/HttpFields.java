@@ -23,6 +23,7 @@ import javax.servlet.http.Cookie;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -95,8 +96,14 @@ public class HttpFields
         __ProxyAuthorization = "Proxy-Authorization",
         __Range = "Range",
         __RequestRange = "Request-Range",
+        __Origin = "Origin",
         __Referer = "Referer",
+        __SecFetchDest = "Sec-Fetch-Dest",
+        __SecFetchMode = "Sec-Fetch-Mode",
+        __SecFetchSite = "Sec-Fetch-Site",
+        __SecFetchUser = "Sec-Fetch-User",
         __TE = "TE",
+        __UpgradeInsecureRequests = "Upgrade-Insecure-Requests",
         __UserAgent = "User-Agent",
         __XForwardedFor = "X-Forwarded-For";
     
@@ -188,6 +195,7 @@ public class HttpFields
     /* ------------------------------------------------------------ */
     private static final StringMap __info = new StringMap(true);
     private static final StringMap __values = new StringMap(true);
+    private static final Charset __ISO_8859_1 = Charset.forName(StringUtil.__ISO_8859_1);
     private static final int __maxCacheSize=128;
     
     /* ------------------------------------------------------------ */
@@ -220,6 +228,15 @@ public class HttpFields
         new FieldInfo(__Referer,false);
         new FieldInfo(__TE,false);
         new FieldInfo(__UserAgent,false);
+        new FieldInfo(__ProxyConnection,false);
+        new FieldInfo(__Pragma,false);
+        new FieldInfo(__Origin,false);
+        new FieldInfo(__UpgradeInsecureRequests,false);
+        new FieldInfo(__SecFetchSite,false);
+        new FieldInfo(__SecFetchMode,false);
+        new FieldInfo(__SecFetchUser,false);
+        new FieldInfo(__SecFetchDest,false);
+        new FieldInfo(__IfNoneMatch,false);
         
         new FieldInfo(__IfModifiedSince,false);
         new FieldInfo(__IfRange,false);
@@ -270,6 +287,16 @@ public class HttpFields
         return (FieldInfo) entry.getValue();
     }
     
+    /* ------------------------------------------------------------ */
+    private static FieldInfo getFieldInfo(byte[] name,int offset,int length)
+    {
+        Map.Entry entry = __info.getEntry(name,offset,length);
+        if (entry==null)
+            return new FieldInfo(new String(name,offset,length,__ISO_8859_1),false);
+
+        return (FieldInfo) entry.getValue();
+    }
+    
     /* ------------------------------------------------------------ */
     /** Fields Values.
      */    
@@ -316,11 +343,31 @@ public class HttpFields
      */
     public static String formatDate(long date, boolean cookie)
     {
-        StringBuffer buf = new StringBuffer(32);
-        HttpCal gc = new HttpCal();
-        gc.setTimeInMillis(date);
-        formatDate(buf,gc,cookie);
-        return buf.toString();
+        if (cookie)
+        {
+            char[] buf = new char[__dateLength];
+            return new String(buf,0,formatDate(buf,date,true));
+        }
+
+        if (date<0)
+        {
+            char[] buf = new char[__dateLength];
+            return new String(buf,0,formatDate(buf,date,false));
+        }
+
+        // Most dates formatted are now, so the current second is kept.
+        // Other dates, such as expiry times, are not cached so that
+        // they do not evict it.
+        long seconds = date/1000;
+        FormattedDate last = __lastDate;
+        if (last!=null && last._seconds==seconds)
+            return last._date;
+
+        char[] buf = new char[__dateLength];
+        String formatted = new String(buf,0,formatDate(buf,date,false));
+        if (seconds==System.currentTimeMillis()/1000)
+            __lastDate=new FormattedDate(seconds,formatted);
+        return formatted;
     } 
 
     /* ------------------------------------------------------------ */
@@ -342,12 +389,150 @@ public class HttpFields
      */
     public static String formatDate(StringBuffer buf, long date, boolean cookie)
     {
-        HttpCal gc = new HttpCal();
-        gc.setTimeInMillis(date);
-        formatDate(buf,gc,cookie);
+        char[] chars = new char[__dateLength];
+        buf.append(chars,0,formatDate(chars,date,cookie));
         return buf.toString();
     } 
 
+    /* ------------------------------------------------------------ */
+    /** Format HTTP date into a char array without a Calendar.
+     * The fields are worked out from the days since the epoch, as
+     * the proleptic Gregorian calendar does in GMT.
+     * @return the number of chars formatted
+     */
+    private static int formatDate(char[] buf, long date, boolean cookie)
+    {
+        long days = date/__MILLIS_PER_DAY;
+        long millis = date%__MILLIS_PER_DAY;
+        if (millis<0)
+        {
+            days--;
+            millis+=__MILLIS_PER_DAY;
+        }
+        int epoch=(int)(millis/1000);
+        int seconds=epoch%60;
+        epoch=epoch/60;
+        int minutes=epoch%60;
+        int hours=epoch/60;
+
+        // 1 Jan 1970 was a Thursday, DAYS is indexed from Sunday=1
+        int day_of_week=(int)((days+4)%7);
+        if (day_of_week<0)
+            day_of_week+=7;
+
+        // days since 1 Mar 0000, in 400 year eras of 146097 days
+        long z = days+719468;
+        long era = (z>=0?z:z-146096)/146097;
+        int doe = (int)(z-era*146097);
+        int yoe = (doe-doe/1460+doe/36524-doe/146096)/365;
+        int doy = doe-(365*yoe+yoe/4-yoe/100);
+        int mp = (5*doy+2)/153;
+        int day_of_month = doy-(153*mp+2)/5+1;
+        int month = mp<10?mp+2:mp-10;
+        int year = (int)(yoe+era*400)+(month<2?1:0);
+        int century = year/100;
+        year=year%100;
+
+        String dow=DAYS[day_of_week+1];
+        String mon=MONTHS[month];
+        int i=0;
+        buf[i++]=dow.charAt(0);
+        buf[i++]=dow.charAt(1);
+        buf[i++]=dow.charAt(2);
+        buf[i++]=',';
+        buf[i++]=' ';
+        i=append2digits(buf,i,day_of_month);
+        buf[i++]=cookie?'-':' ';
+        buf[i++]=mon.charAt(0);
+        buf[i++]=mon.charAt(1);
+        buf[i++]=mon.charAt(2);
+        buf[i++]=cookie?'-':' ';
+        if (!cookie)
+            i=append2digits(buf,i,century);
+        i=append2digits(buf,i,year);
+        buf[i++]=' ';
+        i=append2digits(buf,i,hours);
+        buf[i++]=':';
+        i=append2digits(buf,i,minutes);
+        buf[i++]=':';
+        i=append2digits(buf,i,seconds);
+        buf[i++]=' ';
+        buf[i++]='G';
+        buf[i++]='M';
+        buf[i++]='T';
+        return i;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int append2digits(char[] buf,int i,int n)
+    {
+        buf[i++]=(char)('0'+(n/10)%10);
+        buf[i++]=(char)('0'+n%10);
+        return i;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Parse a date in the RFC 1123 form that HTTP/1.1 sends,
+     * "EEE, dd MMM yyyy HH:mm:ss GMT", without a DateFormat.
+     * @return the date, or -1 if it is not in that form
+     */
+    static long parseRFC1123Date(String date)
+    {
+        if (date.length()!=29 ||
+            date.charAt(3)!=',' || date.charAt(4)!=' ' || date.charAt(7)!=' ' ||
+            date.charAt(11)!=' ' || date.charAt(16)!=' ' ||
+            date.charAt(19)!=':' || date.charAt(22)!=':' ||
+            !date.endsWith(" GMT"))
+            return -1;
+
+        int day_of_month=parse2digits(date,5);
+        int century=parse2digits(date,12);
+        int year_of_century=parse2digits(date,14);
+        int hours=parse2digits(date,17);
+        int minutes=parse2digits(date,20);
+        int seconds=parse2digits(date,23);
+        // each pair is checked on its own: a bad pair is -1, which could still add up to a year
+        if (day_of_month<1 || day_of_month>31 || century<0 || year_of_century<0 ||
+            hours<0 || hours>23 || minutes<0 || minutes>59 || seconds<0 || seconds>59)
+            return -1;
+        int year=century*100+year_of_century;
+        if (year<1)
+            return -1;
+
+        int month=-1;
+        for (int m=0;m<12;m++)
+        {
+            if (date.regionMatches(true,8,MONTHS[m],0,3))
+            {
+                month=m;
+                break;
+            }
+        }
+        if (month<0)
+            return -1;
+
+        // days since the epoch, counting years from March
+        int y = month<2?year-1:year;
+        int era = y/400;
+        int yoe = y-era*400;
+        int mp = month<2?month+10:month-2;
+        int doy = (153*mp+2)/5+day_of_month-1;
+        int doe = yoe*365+yoe/4-yoe/100+doy;
+        long days = era*146097L+doe-719468;
+
+        return days*__MILLIS_PER_DAY+((hours*60+minutes)*60+seconds)*1000L;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int parse2digits(String s,int i)
+    {
+        char c0=s.charAt(i);
+        char c1=s.charAt(i+1);
+        if (c0<'0' || c0>'9' || c1<'0' || c1>'9')
+            return -1;
+        return (c0-'0')*10+(c1-'0');
+    }
+
     /* ------------------------------------------------------------ */
     /** Format HTTP date
      * "EEE, dd MMM yyyy HH:mm:ss 'GMT'" or 
@@ -365,7 +550,7 @@ public class HttpFields
         int century = year/100;
         year=year%100;
 
-        long tm = (calendar instanceof HttpCal)?(((HttpCal)calendar).getTimeInMillis()):calendar.getTime().getTime();
+        long tm = calendar.getTimeInMillis();
         int epoch=(int)((tm/1000) % (60*60*24));
         int seconds=epoch%60;
         epoch=epoch/60;
@@ -401,6 +586,26 @@ public class HttpFields
         buf.append(" GMT");
     }    
 
+    /* -------------------------------------------------------------- */
+    private static final long __MILLIS_PER_DAY = 24L*60*60*1000;
+    private static final int __dateLength = 29;
+
+    /* -------------------------------------------------------------- */
+    /** A formatted date and the second it is of.
+     */
+    private static final class FormattedDate
+    {
+        final long _seconds;
+        final String _date;
+
+        FormattedDate(long seconds, String date)
+        {
+            _seconds=seconds;
+            _date=date;
+        }
+    }
+    private static volatile FormattedDate __lastDate;
+
     /* -------------------------------------------------------------- */
     private static TimeZone __GMT = TimeZone.getTimeZone("GMT");
     public final static DateCache __dateCache = 
@@ -446,6 +651,10 @@ public class HttpFields
         Field _next;
         Field _prev;
         int _version;
+        // the undecoded value, while _value is null
+        byte[] _raw;
+        int _rawOffset;
+        int _rawLength;
 
         /* ------------------------------------------------------------ */
         Field(FieldInfo info, String value, int version)
@@ -474,6 +683,35 @@ public class HttpFields
             _version=version;
         }
         
+        /* ------------------------------------------------------------ */
+        Field(FieldInfo info, byte[] raw, int offset, int length, int version)
+        {
+            _info=info;
+            _raw=raw;
+            _rawOffset=offset;
+            _rawLength=length;
+            _next=null;
+            _prev=null;
+            _version=version;
+        }
+        
+        /* ------------------------------------------------------------ */
+        /** The value, decoded from the bytes it was read as the first time it is asked for.
+         */
+        String getValue()
+        {
+            if (_value==null && _raw!=null)
+            {
+                Map.Entry valueEntry=__values.getEntry(_raw,_rawOffset,_rawLength);
+                if (valueEntry!=null)
+                    _value=(String)valueEntry.getKey();
+                else
+                    _value=new String(_raw,_rawOffset,_rawLength,__ISO_8859_1);
+                _raw=null;
+            }
+            return _value;
+        }
+        
         /* ------------------------------------------------------------ */
         public boolean equals(Object o)
         {
@@ -499,6 +737,7 @@ public class HttpFields
         {
             _info=null;
             _value=null;
+            _raw=null;
             _next=null;
             _prev=null;
             _version=-1;
@@ -508,6 +747,19 @@ public class HttpFields
         void reset(String value,int version)
         {
             _value=value;
+            _raw=null;
+            _version=version;
+        }
+        
+        /* ------------------------------------------------------------ */
+        /** Reassign a value to this field, to be decoded when asked for.
+         */
+        void reset(byte[] raw, int offset, int length, int version)
+        {
+            _value=null;
+            _raw=raw;
+            _rawOffset=offset;
+            _rawLength=length;
             _version=version;
         }
         
@@ -519,7 +771,8 @@ public class HttpFields
         void reset(char[] buf, int offset, int length, int version)
         {  
             _version=version;
-            if (!StringUtil.equals(_value,buf,offset,length))
+            _raw=null;
+            if (_value==null || !StringUtil.equals(_value,buf,offset,length))
             {
                 Map.Entry valueEntry=__values.getEntry(buf,offset,length);
                 String value=null;
@@ -547,7 +800,7 @@ public class HttpFields
                 Field f=this;
                 while (true)
                 {
-                    writer.write(QuotedStringTokenizer.quote(f._value,", \t"));
+                    writer.write(QuotedStringTokenizer.quote(f.getValue(),", \t"));
                     f=f._next;
                     if (f==null)
                         break;
@@ -559,7 +812,7 @@ public class HttpFields
             {
                 writer.write(_info._name);
                 writer.write(__COLON);
-                writer.write(_value);
+                writer.write(getValue());
                 writer.write(__CRLF);
             }
         }
@@ -575,7 +828,7 @@ public class HttpFields
         {
             return ("["+
                 (_prev==null?"":"<-")+
-                getDisplayName()+"="+_value+
+                getDisplayName()+"="+getValue()+
                 (_next==null?"":"->")+
                 "]");
         }
@@ -610,9 +863,9 @@ public class HttpFields
     private ArrayList _fields=new ArrayList(15);
     private int[] _index=new int[__maxCacheSize];
     private int _version;
+    private byte[] _raw;
+    private int _rawSize;
     private SimpleDateFormat _dateReceive[]; 
-    private StringBuffer _dateBuffer;
-    private HttpCal _calendar;
 
     /* ------------------------------------------------------------ */
     /** Constructor. 
@@ -722,7 +975,7 @@ public class HttpFields
         FieldInfo info=getFieldInfo(name);
         Field field=getField(info,true);
         if (field!=null)
-            return field._value;
+            return field.getValue();
         return null;
     }
     
@@ -756,7 +1009,7 @@ public class HttpFields
                             throw new NoSuchElementException();
                         Field n=f;
                         do f=f._next; while (f!=null && f._version!=_version);
-                        return n._value;
+                        return n.getValue();
                     }
                 };
         }
@@ -822,7 +1075,7 @@ public class HttpFields
         // Look for value to replace.
         if (field!=null)
         {
-            String old=(field._version==_version)?field._value:null;
+            String old=(field._version==_version)?field.getValue():null;
             field.reset(value,_version);
 
             field=field._next;
@@ -938,7 +1191,7 @@ public class HttpFields
 
         if (field!=null)
         {
-            old=field._value;
+            old=field.getValue();
             while(field!=null)
             {
                 field.clear();
@@ -977,6 +1230,10 @@ public class HttpFields
         if (val==null)
             return -1;
 
+        long rfc1123=parseRFC1123Date(val);
+        if (rfc1123!=-1)
+            return rfc1123;
+
         if (_dateReceive==null)
        {
                _dateReceive=(SimpleDateFormat[])__dateReceiveCache.get();
@@ -1062,15 +1319,7 @@ public class HttpFields
      */
     public void addDateField(String name, long date)
     {
-        if (_dateBuffer==null)
-        {
-            _dateBuffer=new StringBuffer(32);
-            _calendar=new HttpCal();
-        }
-        _dateBuffer.setLength(0);
-        _calendar.setTimeInMillis(date);
-        formatDate(_dateBuffer, _calendar, false);
-        add(name, _dateBuffer.toString());
+        add(name, formatDate(date,false));
     }
     
     /* -------------------------------------------------------------- */
@@ -1081,15 +1330,7 @@ public class HttpFields
      */
     public void putDateField(String name, long date)
     {
-        if (_dateBuffer==null)
-        {
-            _dateBuffer=new StringBuffer(32);
-            _calendar=new HttpCal();
-        }
-        _dateBuffer.setLength(0);
-        _calendar.setTimeInMillis(date);
-        formatDate(_dateBuffer, _calendar, false);
-        put(name, _dateBuffer.toString());
+        put(name, formatDate(date,false));
     }
 
     /* -------------------------------------------------------------- */
@@ -1097,6 +1338,149 @@ public class HttpFields
      */
     public void read(LineInput in)
         throws IOException
+    {
+        if (StringUtil.__ISO_8859_1.equals(in.getEncoding()))
+            readBytes(in);
+        else
+            readLines(in);
+    }
+
+    /* -------------------------------------------------------------- */
+    /** Read HttpHeaders from the bytes of an ISO-8859-1 inputStream.
+     * Well known names are matched in the input buffer without making a
+     * String. Values are kept as bytes until they are asked for, unless a
+     * recycled field gets the same value again, when its String is kept.
+     */
+    private void readBytes(LineInput in)
+        throws IOException
+    {
+        Field last=null;
+        int size;
+        while ((size=in.readRawLine())>0)
+        {
+            byte[] buf=in.getRawBuffer();
+            int start=in.getRawLineStart();
+            int end=start+size;
+                
+            // setup loop state machine
+            int i1=-1;
+            int i2=-1;
+            int name_l=0;
+            int i=start;
+            byte c=buf[start];
+                
+            // Check for continuity line
+            if (c!=' ' && c!='\t')
+            {
+                i2=start;
+                // reading name upto :
+                for (i=start+1;i<end;i++)
+                {
+                    c=buf[i];
+                    if (c==':')
+                    {
+                        name_l=i2-start+1; 
+                        break;
+                    }
+                        
+                    if (c!=' '&&c!='\t')
+                        i2=i;
+                }
+            }   
+
+            // skip whitespace after : or start of continuity line
+            for (i++;i<end;i++)
+            {
+                c=buf[i];
+                if (c!=' ' && c!='\t')
+                {
+                    i1=i;
+                    i2=i-1;
+                    break;
+                }
+            }
+                
+            // Reverse Parse the "name : value" to last char of value
+            for (i=end;i-->i1 && i>=start;)
+            {
+                c=buf[i];
+                if (c!=' ' && c!='\t')
+                {
+                    i2=i;
+                    break;
+                }
+            }
+
+            // If no name, it is a continuation line
+            if (name_l<=0)
+            {
+                if (i1>=0 && last!=null)
+                    last.reset(last.getValue()+' '+new String(buf,i1,i2-i1+1,__ISO_8859_1),_version);
+                continue;
+            }
+
+            // find or create the field.
+            FieldInfo info = getFieldInfo(buf,start,name_l);
+            Field field=getField(info,false);
+            last=null;
+            while(field!=null && field._version==_version)
+            {
+                last=field;
+                field=field._next;
+            }
+
+            if (field==null)
+            {
+                field=new Field(info,"",_version);
+                    
+                // look for chain to add too
+                if(last!=null)
+                {
+                    field._prev=last;
+                    last._next=field; 
+                }
+                else if (info.hashCode()<_index.length)
+                    _index[info.hashCode()]=_fields.size(); 
+                _fields.add(field);
+            }
+
+            if (i1<0)
+                field.reset("",_version);
+            else if (field._value!=null && StringUtil.equals(field._value,buf,i1,i2-i1+1))
+                field.reset(field._value,_version);
+            else
+            {
+                int offset=storeRaw(buf,i1,i2-i1+1);
+                field.reset(_raw,offset,i2-i1+1,_version);
+            }
+                
+            last=field;
+        }
+    }
+
+    /* -------------------------------------------------------------- */
+    /** Keep the bytes of a value until the fields are cleared.
+     * @return The offset of the bytes in _raw.
+     */
+    private int storeRaw(byte[] buf,int offset,int length)
+    {
+        if (_raw==null || _rawSize+length>_raw.length)
+        {
+            // earlier values keep the array they were stored in
+            _raw=new byte[Math.max(1024,Math.max(length,_rawSize)*2)];
+            _rawSize=0;
+        }
+        System.arraycopy(buf,offset,_raw,_rawSize,length);
+        int stored=_rawSize;
+        _rawSize+=length;
+        return stored;
+    }
+
+    /* -------------------------------------------------------------- */
+    /** Read HttpHeaders from the lines of inputStream.
+     */
+    private void readLines(LineInput in)
+        throws IOException
     {  
         Field last=null;
         char[] buf=null;
@@ -1166,7 +1550,7 @@ public class HttpFields
                 if (name_l<=0)
                 {
                     if (i1>0 && last!=null)
-                        last._value=last._value+' '+new String(buf,i1,i2-i1+1);
+                        last.reset(last.getValue()+' '+new String(buf,i1,i2-i1+1),_version);
                     continue;
                 }
 
@@ -1254,6 +1638,7 @@ public class HttpFields
      */
     public void clear()
     {
+        _rawSize=0;
         _version++;
         if (_version>1000)
         {
@@ -1281,8 +1666,7 @@ public class HttpFields
         }
         _fields=null;
         _index=null;
-        _dateBuffer=null;
-        _calendar=null;
+        _raw=null;
         _dateReceive=null;
     }
     
@@ -1536,7 +1920,7 @@ public class HttpFields
         
         Entry(int i) {_i=i;}
         public String getKey() {return ((Field)_fields.get(_i)).getDisplayName();}
-        public String getValue() {return ((Field)_fields.get(_i))._value;}
+        public String getValue() {return ((Field)_fields.get(_i)).getValue();}
     }
 
     /* ------------------------------------------------------------ */
@@ -1549,31 +1933,4 @@ public class HttpFields
         public void remove() { throw new UnsupportedOperationException();}
     }
 
-    /* ------------------------------------------------------------ */
-    /* ------------------------------------------------------------ */
-    /* handle 1.3 protected methods                        */
-    private static class HttpCal extends GregorianCalendar
-    {
-        HttpCal()
-        {
-            super(__GMT);
-        }
-
-        /* ------------------------------------------------------------------------------- */
-        /**
-         * @see java.util.Calendar#setTimeInMillis(long)
-         */
-        public void setTimeInMillis(long arg0)
-        {
-            super.setTimeInMillis(arg0);
-        }
-        /* ------------------------------------------------------------------------------- */
-        /**
-         * @see java.util.Calendar#getTimeInMillis()
-         */
-        public long getTimeInMillis()
-        {
-            return super.getTimeInMillis();
-        }
-    }
 }
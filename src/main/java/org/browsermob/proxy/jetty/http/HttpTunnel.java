@@ -17,6 +17,7 @@ package org.browsermob.proxy.jetty.http;
 
 import org.apache.commons.logging.Log;
 import org.browsermob.proxy.jetty.log.LogFactory;
+import org.browsermob.proxy.jetty.util.ByteArrayPool;
 import org.browsermob.proxy.jetty.util.IO;
 import org.browsermob.proxy.jetty.util.LogSupport;
 
@@ -32,6 +33,11 @@ import java.net.Socket;
  * tunnel another protocol over it.  The prime example is the CONNECT method
  * handled by the ProxyHandler to setup a SSL tunnel between the client and
  * the real server.
+ * <p>
+ * A tunnel to a socket opened from a SocketChannel, using the socket's own
+ * streams, is relayable: a listener with channels of its own may relay its
+ * bytes on a {@link org.browsermob.proxy.jetty.http.nio.TunnelSelector}
+ * rather than calling {@link #handle(InputStream, OutputStream)}.
  *
  * @see HttpConnection
  * @version $Revision: 1.11 $
@@ -48,6 +54,7 @@ public class HttpTunnel
     private OutputStream _sOut;
     private InputStream _in;
     private OutputStream _out;
+    private boolean _relayable;
 
     /* ------------------------------------------------------------ */
     /** Constructor. 
@@ -76,6 +83,7 @@ public class HttpTunnel
         if (_sOut==null)
             _sOut=socket.getOutputStream();
         _timeoutMs=30000;
+        _relayable=in==null && out==null && socket.getChannel()!=null;
     }
 
     /* ------------------------------------------------------------ */
@@ -132,25 +140,33 @@ public class HttpTunnel
     {
         long timestamp= 0;
         long byteCount = 0;
-        while (true)
+        byte[] buffer=ByteArrayPool.getByteArray(IO.bufferSize);
+        try
         {
-            try
+            while (true)
             {
-                byteCount = copyBytes(in, out,-1);
-                timestamp= 0;
-                if (byteCount == -1) {
-                    return;
+                try
+                {
+                    byteCount = copyBytes(in, out,-1,buffer);
+                    timestamp= 0;
+                    if (byteCount == -1) {
+                        return;
+                    }
+                }
+                catch (InterruptedIOException e)
+                {
+                    LogSupport.ignore(log, e);
+                    if (timestamp == 0)
+                        timestamp= System.currentTimeMillis();
+                    else if (_timeoutMs > 0 && (System.currentTimeMillis() - timestamp) > _timeoutMs)
+                        throw e;
                 }
-            }
-            catch (InterruptedIOException e)
-            {
-                LogSupport.ignore(log, e);
-                if (timestamp == 0)
-                    timestamp= System.currentTimeMillis();
-                else if (_timeoutMs > 0 && (System.currentTimeMillis() - timestamp) > _timeoutMs)
-                    throw e;
             }
         }
+        finally
+        {
+            ByteArrayPool.returnByteArray(buffer);
+        }
     }
     
 
@@ -162,8 +178,29 @@ public class HttpTunnel
                                 OutputStream out,
                                 long byteCount)
          throws IOException
+    {
+        byte[] buffer=ByteArrayPool.getByteArray(IO.bufferSize);
+        try
+        {
+            return copyBytes(in,out,byteCount,buffer);
+        }
+        finally
+        {
+            ByteArrayPool.returnByteArray(buffer);
+        }
+    }
+
+    /* ------------------------------------------------------------------- */
+    /** Copy Stream in to Stream for byteCount bytes or until EOF or exception,
+      * through a buffer of at least IO.bufferSize bytes.
+      * @return Copied bytes count or -1 if no bytes were read *and* EOF was reached
+    */
+    public static int copyBytes(InputStream in,
+                                OutputStream out,
+                                long byteCount,
+                                byte[] buffer)
+         throws IOException
     {     
-        byte buffer[] = new byte[IO.bufferSize];
         int len=IO.bufferSize;
         int totalCount=0;
         
@@ -270,6 +307,39 @@ public class HttpTunnel
         return _socket;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the tunnel is to a socket with a channel, whose own
+     * streams it uses, so that its bytes may be relayed between channels.
+     */
+    public boolean isRelayable()
+    {
+        return _relayable;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return How long the tunnel may go without a byte either way before
+     * it is closed: the socket's read timeout, after which a blocking copy
+     * waits a further timeoutMs.
+     */
+    public long getIdleTimeoutMs()
+    {
+        int soTimeout=0;
+        try
+        {
+            if (_socket!=null)
+                soTimeout=_socket.getSoTimeout();
+        }
+        catch (IOException e)
+        {
+            LogSupport.ignore(log, e);
+        }
+        if (soTimeout<=0 || _timeoutMs<=0)
+            return 0;
+        return (long)soTimeout+_timeoutMs;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return Returns the timeoutMs.
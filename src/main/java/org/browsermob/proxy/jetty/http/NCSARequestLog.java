@@ -20,6 +20,7 @@ import org.browsermob.proxy.jetty.log.LogFactory;
 import org.browsermob.proxy.jetty.util.DateCache;
 import org.browsermob.proxy.jetty.util.LogSupport;
 import org.browsermob.proxy.jetty.util.RolloverFileOutputStream;
+import org.browsermob.proxy.jetty.util.StringBufferWriter;
 import org.browsermob.proxy.jetty.util.StringUtil;
 
 import javax.servlet.http.Cookie;
@@ -412,43 +413,38 @@ public class NCSARequestLog implements RequestLog
             else
                 buf.append(" - ");
 
-            String log =buf.toString();
-            synchronized(_writer)
+            if (_extended)
             {
-                _writer.write(log);
-                if (_extended)
-                {
-                    logExtended(request,response,_writer);
-                    if (!_logCookies)
-                        _writer.write(" -");
-                }
+                logExtended(request,response,new StringBufferWriter(buf));
+                if (!_logCookies)
+                    buf.append(" -");
+            }
                 
-                if (_logCookies)
+            if (_logCookies)
+            {
+                Cookie[] cookies = request.getCookies();
+                if (cookies==null || cookies.length==0)
+                    buf.append(" -");
+                else
                 {
-                    Cookie[] cookies = request.getCookies();
-                    if (cookies==null || cookies.length==0)
-                        _writer.write(" -");
-                    else
+                    buf.append(" \"");
+                    for (int i=0;i<cookies.length;i++)
                     {
-                        _writer.write(" \"");
-                        for (int i=0;i<cookies.length;i++)
-                        {
-                            if (i!=0)
-                                _writer.write(';');
-                            _writer.write(cookies[i].getName());
-                            _writer.write('=');
-                            _writer.write(cookies[i].getValue());
-                        }
-                        _writer.write("\"");
+                        if (i!=0)
+                            buf.append(';');
+                        buf.append(cookies[i].getName());
+                        buf.append('=');
+                        buf.append(cookies[i].getValue());
                     }
+                    buf.append("\"");
                 }
+            }
                 
-                if (_logLatency)
-                    _writer.write(" "+(System.currentTimeMillis()-request.getTimeStamp()));
+            if (_logLatency)
+                buf.append(" "+(System.currentTimeMillis()-request.getTimeStamp()));
                 
-                _writer.write(StringUtil.__LINE_SEPARATOR);
-                _writer.flush();
-            }
+            buf.append(StringUtil.__LINE_SEPARATOR);
+            write(buf.toString());
         }
         catch(IOException e)
         {
@@ -456,6 +452,26 @@ public class NCSARequestLog implements RequestLog
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** Write formatted log lines.
+     * The default implementation writes and flushes them on the calling
+     * thread. Derived classes may queue them to be written later.
+     * @param lines One or more log lines, each ending with a line separator.
+     * @exception IOException Problem writing log
+     */
+    protected void write(String lines)
+        throws IOException
+    {
+        Writer writer=_writer;
+        if (writer==null)
+            return;
+        synchronized(writer)
+        {
+            writer.write(lines);
+            writer.flush();
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /** Log Extended fields.
      * This method can be extended by a derived class to add extened fields to
@@ -18,36 +18,71 @@ package org.browsermob.proxy.jetty.http.nio;
 import org.apache.commons.logging.Log;
 import org.browsermob.proxy.jetty.http.*;
 import org.browsermob.proxy.jetty.log.LogFactory;
-import org.browsermob.proxy.jetty.util.LineInput;
+import org.browsermob.proxy.jetty.util.InetAddrPort;
 import org.browsermob.proxy.jetty.util.LogSupport;
 import org.browsermob.proxy.jetty.util.ThreadPool;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* ------------------------------------------------------------------------------- */
-/**  EXPERIMENTAL NIO listener!
- * 
+/** NIO HTTP Listener.
+ * <p>
+ * A SocketListener gives every connection a thread for as long as it is open, most of which is spent in a
+ * blocking read waiting for the next request on a keep-alive connection. This listener parks connections
+ * between requests on a single selector thread instead, so an idle connection costs a selection key rather
+ * than a thread.
+ * <p>
+ * When a parked connection becomes readable it is switched to blocking mode and handed to the thread pool,
+ * where it is handled by the same blocking HttpConnection code a SocketListener uses. Handlers see an
+ * ordinary Socket as the connection, so proxied requests and CONNECT tunnels work unchanged. Once a request
+ * has been handled the connection is parked again, unless more input is already buffered or a tunnel has
+ * been set up on it. A tunnel to a socket with a channel is handed to a {@link TunnelSelector}, which
+ * relays it without holding a thread; any other tunnel keeps its thread until it closes.
+ * <p>
+ * The attributes of the ThreadPool from which it is derived control it much as they do a SocketListener:
+ * <PRE>
+ * MinThreads    - Minumum threads waiting to service requests.
+ * MaxThread     - Maximum thread that will service requests.
+ * MaxIdleTimeMs - Time for a parked connection to wait for a request, or a thread to wait for a read.
+ * </PRE>
+ * If every thread is busy, readable connections wait for one to come free, which holds up the selector
+ * much as a SocketListener's acceptor would be held up.
+ *
  * @version $Revision: 1.6 $
  * @author gregw
  */
 public class SocketChannelListener extends ThreadPool implements HttpListener
 {
     private static Log log= LogFactory.getLog(SocketChannelListener.class);
-    
+
+    // how often parked connections are checked for having been idle too long
+    private static final long EXPIRY_INTERVAL_MS= 1000;
+    private static final long MAX_STOP_TIME_MS= 5000;
+
     private InetSocketAddress _address;
-    private int _bufferSize= 4096;
+    private int _bufferSize= 8192;
     private int _bufferReserve= 512;
     private int _sslPort;
     private int _lingerTimeSecs=5;
+    private boolean _tcpNoDelay=true;
     private HttpHandler _handler;
     
     private transient HttpServer _server;
@@ -58,6 +93,11 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
     private transient boolean _isLow=false;
     private transient boolean _isOut=false;
     private transient long _warned=0;
+
+    private final Queue<Connection> _parking= new ConcurrentLinkedQueue<Connection>();
+    private final AtomicInteger _parked= new AtomicInteger();
+    private final Set<Connection> _connections=
+        Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
     
     
     /* ------------------------------------------------------------------------------- */
@@ -69,6 +109,13 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         super();
     }
 
+    /* ------------------------------------------------------------------------------- */
+    public SocketChannelListener(InetAddrPort address)
+    {
+        super();
+        _address= new InetSocketAddress(address.getInetAddress(), address.getPort());
+    }
+
     /* ------------------------------------------------------------------------------- */
     /*
      * @see org.browsermob.proxy.jetty.http.HttpListener#setHttpServer(org.browsermob.proxy.jetty.http.HttpServer)
@@ -327,6 +374,39 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         return _lingerTimeSecs;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @param tcpNoDelay if true then setTcpNoDelay(true) is called on accepted sockets.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay)
+    {
+        _tcpNoDelay= tcpNoDelay;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean getTcpNoDelay()
+    {
+        return _tcpNoDelay;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of connections open, whether parked or being handled.
+     */
+    public int getConnections()
+    {
+        return _connections.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of connections parked on the selector, waiting for their next request.
+     */
+    public int getIdleConnections()
+    {
+        return _parked.get();
+    }
+    
     /* ------------------------------------------------------------ */
     public void setHttpHandler(HttpHandler handler)
     {
@@ -343,6 +423,8 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
     }
 
 
+
+
     /* ------------------------------------------------------------ */
     public void start() throws Exception
     {
@@ -354,6 +436,7 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         _acceptChannel.configureBlocking(false);
 
         // Bind the server socket to the local host and port
+        _acceptChannel.socket().setReuseAddress(true);
         _acceptChannel.socket().bind(_address);
 
         // Read the address back from the server socket to fix issues
@@ -366,12 +449,14 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         // Register accepts on the server socket with the selector.
         _acceptChannel.register(_selector, SelectionKey.OP_ACCEPT);
 
+        // Start the thread Pool
+        super.start();
+
         // Start selector thread
         _selectorThread= new SelectorThread();
+        _selectorThread.setDaemon(isDaemon());
         _selectorThread.start();
 
-        // Start the thread Pool
-        super.start();
         log.info("Started SocketChannelListener on " + getHost()+":"+getPort());
     }
     
@@ -379,53 +464,138 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
     /* ------------------------------------------------------------ */
     public void stop() throws InterruptedException
     {
-        if (_selectorThread != null)
-            _selectorThread.doStop();
-            
+        SelectorThread selectorThread=_selectorThread;
+        if (selectorThread != null)
+        {
+            selectorThread.doStop();
+            selectorThread.join(MAX_STOP_TIME_MS);
+        }
+
+        // fail the reads and writes of the connections still being handled,
+        // which their threads then destroy
+        for (Connection connection : _connections)
+        {
+            try
+            {
+                connection._channel.close();
+            }
+            catch (IOException e)
+            {
+                LogSupport.ignore(log, e);
+            }
+        }
+
+        TunnelSelector.close(this);
+
         super.stop();
         log.info("Stopped SocketChannelListener on " + getHost()+":"+getPort());
     }
 
+    /* ------------------------------------------------------------ */
+    /** Create the stream requests are read from.
+     * This method can be specialized to wrap the socket's stream.
+     * @param socket The socket of the connection, in blocking mode.
+     */
+    protected InputStream newInputStream(Socket socket)
+        throws IOException
+    {
+        return socket.getInputStream();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Create the stream responses are written to.
+     * This method can be specialized to wrap the socket's stream.
+     * @param socket The socket of the connection, in blocking mode.
+     */
+    protected OutputStream newOutputStream(Socket socket)
+        throws IOException
+    {
+        return socket.getOutputStream();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Whether the bytes of the connections are shaped by their streams.
+     * CONNECT tunnels are relayed on a {@link TunnelSelector}, which reads and
+     * writes the channels directly, only while this is false.
+     */
+    public boolean isShaped()
+    {
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Called when no thread could be found for a readable connection.
+     */
+    protected void stopJob(Thread thread, Object job)
+    {
+        if (job instanceof Connection)
+            ((Connection)job).destroy();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Park a connection on the selector until its next request arrives.
+     * Called from the thread that handled the previous request.
+     */
+    void park(Connection connection)
+        throws IOException
+    {
+        connection._channel.configureBlocking(false);
+        connection._parkedAt=System.currentTimeMillis();
+        _parking.add(connection);
+
+        Selector selector=_selector;
+        if (selector!=null)
+            selector.wakeup();
+        else
+            connection.destroy();
+    }
+
 
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     private class SelectorThread extends Thread
     {
-        boolean _running= false;
+        volatile boolean _running= true;
+        long _nextExpiry;
+
+        /* ------------------------------------------------------------ */
+        SelectorThread()
+        {
+            super("SocketChannelListener Selector "+_address);
+        }
 
         /* ------------------------------------------------------------ */
         public void run()
         {
             try
             {
-                _running= true;
                 while (_running)
                 {
-
-                    SelectionKey key= null;
                     try
                     {
-                        _selector.select();
-                        Iterator iter= _selector.selectedKeys().iterator();
-
-                        while (iter.hasNext())
+                        registerParked();
+                        _selector.select(EXPIRY_INTERVAL_MS);
+                        if (!_running)
+                            break;
+
+                        // Handing a connection to a thread needs its key flushed from the selector,
+                        // which may select other keys in turn.
+                        List<Connection> ready=selected();
+                        while (!ready.isEmpty())
                         {
-                            key= (SelectionKey)iter.next();
-                            if (key.isAcceptable())
-                                doAccept(key);
-                            if (key.isReadable())
-                                doRead(key);
-                            key= null;
-                            iter.remove();
+                            _selector.selectNow();
+                            for (Connection connection : ready)
+                                dispatch(connection);
+                            ready=selected();
                         }
+
+                        expireIdle();
                     }
                     catch (Exception e)
                     {
                         if (_running)
                             log.warn("selector", e);
-                        if (key != null)
-                            key.cancel();
                     }
                 }
             }
@@ -442,16 +612,27 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
                 {
                     LogSupport.ignore(log, e);
                 }
+
+                // close the parked connections
                 try
                 {
                     if (_selector != null)
+                    {
+                        for (SelectionKey key : _selector.keys())
+                            if (key.attachment() instanceof Connection)
+                                ((Connection)key.attachment()).destroy();
                         _selector.close();
+                    }
                 }
-                catch (IOException e)
+                catch (Exception e)
                 {
                     LogSupport.ignore(log, e);
                 }
+                Connection connection;
+                while ((connection=_parking.poll())!=null)
+                    connection.destroy();
 
+                _parked.set(0);
                 _selector= null;
                 _acceptChannel= null;
                 _selectorThread= null;
@@ -459,62 +640,150 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
         }
 
         /* ------------------------------------------------------------ */
-        void doAccept(SelectionKey key)
-            throws IOException, InterruptedException
-        {            
-            if (isLowOnResources())
-                return;
-                
-            ServerSocketChannel server = (ServerSocketChannel) key.channel();
-            SocketChannel channel = server.accept();
-            channel.configureBlocking(false);
-            SelectionKey readKey = channel.register(_selector, SelectionKey.OP_READ);
-            
-            Socket socket=channel.socket();
+        /** Take the selected keys, accepting new connections and
+         * returning those with a request to read.
+         */
+        private List<Connection> selected()
+            throws IOException
+        {
+            List<Connection> ready=new ArrayList<Connection>();
+            Iterator<SelectionKey> iter= _selector.selectedKeys().iterator();
+            while (iter.hasNext())
+            {
+                SelectionKey key= iter.next();
+                iter.remove();
+                if (!key.isValid())
+                    continue;
+
+                if (key.isAcceptable())
+                    doAccept();
+                else if (key.isReadable())
+                {
+                    key.cancel();
+                    _parked.decrementAndGet();
+                    ready.add((Connection)key.attachment());
+                }
+            }
+            return ready;
+        }
+
+        /* ------------------------------------------------------------ */
+        private void doAccept()
+            throws IOException
+        {
+            SocketChannel channel;
+            while ((channel=_acceptChannel.accept())!=null)
+            {
+                Socket socket=channel.socket();
+                try
+                {
+                    channel.configureBlocking(true);
+                    if (getMaxIdleTimeMs() >= 0)
+                        socket.setSoTimeout(getMaxIdleTimeMs());
+                    if (_lingerTimeSecs >= 0)
+                        socket.setSoLinger(true, _lingerTimeSecs);
+                    else
+                        socket.setSoLinger(false, 0);
+                    socket.setTcpNoDelay(_tcpNoDelay);
+
+                    Connection connection=new Connection(channel, SocketChannelListener.this);
+                    _connections.add(connection);
+
+                    // wait for the first request with the idle connections
+                    channel.configureBlocking(false);
+                    connection._parkedAt=System.currentTimeMillis();
+                    register(connection);
+                }
+                catch (Exception e)
+                {
+                    log.warn("Unable to accept " + socket, e);
+                    try
+                    {
+                        channel.close();
+                    }
+                    catch (IOException ignore)
+                    {
+                        LogSupport.ignore(log, ignore);
+                    }
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void registerParked()
+        {
+            Connection connection;
+            while ((connection=_parking.poll())!=null)
+                register(connection);
+        }
+
+        /* ------------------------------------------------------------ */
+        private void register(Connection connection)
+        {
             try
             {
-                if (getMaxIdleTimeMs() >= 0)
-                    socket.setSoTimeout(getMaxIdleTimeMs());
-                if (_lingerTimeSecs >= 0)
-                    socket.setSoLinger(true, _lingerTimeSecs);
-                else
-                    socket.setSoLinger(false, 0);
+                connection._channel.register(_selector, SelectionKey.OP_READ, connection);
+                _parked.incrementAndGet();
             }
             catch (Exception e)
             {
+                // closed while it was being parked
                 LogSupport.ignore(log, e);
+                connection.destroy();
             }
-
-            Connection connection=new Connection(channel,readKey, SocketChannelListener.this);
-            readKey.attach(connection);
         }
 
         /* ------------------------------------------------------------ */
-        void doRead(SelectionKey key) 
-            throws IOException
+        private void dispatch(Connection connection)
+            throws InterruptedException
         {
-            Connection connection = (Connection)key.attachment();
-            if (connection._idle && isOutOfResources())
-                // Don't handle idle connections if out of resources.
-                return;
-            ByteBuffer buf= connection._in.getBuffer();
-            int count = ((SocketChannel)key.channel()).read(buf);
-            if (count<0)
+            try
             {
-                connection.close();
+                connection._channel.configureBlocking(true);
             }
-            else 
+            catch (Exception e)
             {
-                buf.flip();
-                connection.write(buf);
+                LogSupport.ignore(log, e);
+                connection.destroy();
+                return;
+            }
+            SocketChannelListener.this.run(connection);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Close the parked connections that have waited longer than MaxIdleTimeMs.
+         */
+        private void expireIdle()
+        {
+            long now=System.currentTimeMillis();
+            int maxIdleTimeMs=getMaxIdleTimeMs();
+            if (now < _nextExpiry || maxIdleTimeMs <= 0)
+                return;
+            _nextExpiry=now+EXPIRY_INTERVAL_MS;
+
+            for (SelectionKey key : _selector.keys())
+            {
+                Object attachment=key.attachment();
+                if (key.isValid() && attachment instanceof Connection)
+                {
+                    Connection connection=(Connection)attachment;
+                    if (now-connection._parkedAt > maxIdleTimeMs)
+                    {
+                        key.cancel();
+                        _parked.decrementAndGet();
+                        connection.destroy();
+                    }
+                }
             }
-        }   
+        }
 
+        /* ------------------------------------------------------------ */
         void doStop()
         {
             _running=false;
-            _selector.wakeup();
-            Thread.yield();
+            Selector selector=_selector;
+            if (selector!=null)
+                selector.wakeup();
         }
     }
 
@@ -526,132 +795,140 @@ public class SocketChannelListener extends ThreadPool implements HttpListener
       extends HttpConnection
       implements Runnable
     {
-        boolean _idle=true;
-        SocketChannel _channel;
-        SelectionKey _key;
-        ByteBufferInputStream _in;
-        SocketChannelOutputStream _out;
-        SocketChannelListener _listener;
+        final SocketChannel _channel;
+        final SocketChannelListener _listener;
+        volatile long _parkedAt;
+        private boolean _destroyed;
+        private volatile boolean _relayed;
         
-        Connection(SocketChannel channel,SelectionKey key, SocketChannelListener listener)
+        Connection(SocketChannel channel, SocketChannelListener listener)
+            throws IOException
         {
             super(listener,
-                         channel.socket().getInetAddress(),
-                         new ByteBufferInputStream(listener.getBufferSize()),
-                         new SocketChannelOutputStream(channel,listener.getBufferSize()),
-                         channel);
+                  channel.socket().getInetAddress(),
+                  listener.newInputStream(channel.socket()),
+                  listener.newOutputStream(channel.socket()),
+                  channel.socket());
             _channel=channel;
-            _key=key;
             _listener=listener;
-            _in=(ByteBufferInputStream) ((LineInput)(getInputStream().getInputStream())).getInputStream();
-            _out=(SocketChannelOutputStream)(getOutputStream().getOutputStream());
-            _in.setTimeout(listener.getMaxIdleTimeMs());
         }
         
-
         /* ------------------------------------------------------------------------------- */
-        void write(ByteBuffer buf)
+        /** Handle requests until the connection has nothing more to read, then park it.
+         */
+        public void run()
         {
-            if (!_idle)
-                _in.write(buf);
-            else
+            boolean parked=false;
+            try
             {
-                boolean written=false;
-                
-                // Is there any actual content there?
-                for (int i=buf.position();i<buf.limit();i++)
+                associateThread();
+                while (_listener.isStarted() && handleNext())
                 {
-                    byte b = buf.get(i);
-                    
-                    if (b>' ')
+                    recycle();
+
+                    // a tunnel is relayed on a tunnel selector if it can be, or
+                    // else handled by the next call to handleNext
+                    HttpTunnel tunnel=getHttpTunnel();
+                    if (tunnel!=null)
                     {
-                        buf.position(i);
-                    
-                        try
-                        {
-                            written=true;
-                            _in.write(buf);
-                            _listener.run(this);
-                            _idle=false;
-                        }
-                        catch(InterruptedException e)
-                        {
-                            LogSupport.ignore(log, e);
-                        }
-                        finally
+                        if (tunnel.isRelayable() && !_listener.isShaped())
                         {
-                            i=buf.limit();
+                            relay(tunnel);
+                            break;
                         }
+                        // timed reads would switch the channel out of blocking mode
+                        // under the tunnel thread writing to it
+                        _channel.socket().setSoTimeout(0);
+                    }
+                    else if (getInputStream().getInputStream().available()==0)
+                    {
+                        _listener.park(this);
+                        parked=true;
+                        break;
                     }
                 }
-                
-                if (!written)
-                {
-                    _in.recycle(buf);
-                }
+            }
+            catch(IOException e)
+            {
+                LogSupport.ignore(log, e);
+            }
+            finally
+            {
+                disassociateThread();
+                if (!parked)
+                    destroy();
             }
         }
-        
+
         /* ------------------------------------------------------------------------------- */
-        /**
+        /** Hand the connection and its tunnel over to a tunnel selector.
          */
-        public void run()
+        private void relay(HttpTunnel tunnel)
+            throws IOException
         {
+            Socket socket=tunnel.getSocket();
             try
             {
-                associateThread();
-                while (_in!=null && _in.available()>0 && _listener.isStarted())
+                getOutputStream().flush();
+
+                // pass on whatever was read past the CONNECT request
+                InputStream in=getInputStream().getInputStream();
+                int available=in.available();
+                if (available>0)
                 {
-                    if (handleNext())
-                        recycle();
-                    else
-                        destroy();
+                    byte[] buffer=new byte[available];
+                    int len=in.read(buffer);
+                    if (len>0)
+                        socket.getOutputStream().write(buffer,0,len);
                 }
+
+                TunnelSelector.relay(_channel,socket.getChannel(),tunnel.getIdleTimeoutMs(),_listener);
+                _relayed=true;
             }
-            catch(IOException e)
-            {
-                log.warn(e.toString());
-                log.debug(e);
-                destroy();
-            }
-            finally
+            catch (IOException e)
             {
-                _idle=true;
-                disassociateThread();
+                socket.close();
+                throw e;
             }
         }
 
         /* ------------------------------------------------------------------------------- */
-        public synchronized void close()
+        /** Close the connection, unless it now belongs to a tunnel selector.
+         */
+        public void close()
             throws IOException
-         {
-                 _out.close();
-                 _in.close();
-                 if (!_channel.isOpen())
-                    return;
-                 _key.cancel();
-                 _channel.socket().shutdownOutput();
-                 _channel.close();
-                 _channel.socket().close();
-                 super.close();
-                 _channel.close();
-         }
-         
+        {
+            if (!_relayed)
+                super.close();
+        }
+
         /* ------------------------------------------------------------------------------- */
         public void destroy()
         {
-            super.destroy();
-            if (_in!=null)
-                _in.destroy();
-            _in=null;
-            if (_out!=null)
-                _out.destroy();
-            _out=null;
-            _channel=null;
-            _key=null;
-            _listener=null;
+            synchronized (this)
+            {
+                if (_destroyed)
+                    return;
+                _destroyed=true;
+            }
+
+            try
+            {
+                super.destroy();
+            }
+            finally
+            {
+                try
+                {
+                    if (!_relayed)
+                        _channel.close();
+                }
+                catch (IOException e)
+                {
+                    LogSupport.ignore(log, e);
+                }
+                _listener._connections.remove(this);
+            }
         }
-        
     }
-    
 }
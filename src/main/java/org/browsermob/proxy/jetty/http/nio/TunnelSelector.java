@@ -0,0 +1,479 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.browsermob.proxy.jetty.http.nio;
+
+import org.apache.commons.logging.Log;
+import org.browsermob.proxy.jetty.log.LogFactory;
+import org.browsermob.proxy.jetty.util.LogSupport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* ------------------------------------------------------------ */
+/** Tunnel Selector.
+ * Relays the bytes of tunnels, such as those set up by CONNECT, between
+ * pairs of socket channels on a small, fixed set of selector threads, rather
+ * than with a thread for each direction of each tunnel.
+ * <p>
+ * A tunnel only holds a buffer while it has bytes that its peer could not
+ * take straight away; buffers are direct and pooled. A tunnel that sees no
+ * bytes either way for its idle timeout is closed. An end of stream is passed
+ * on as a half close, and the tunnel is closed once both ends are done.
+ * <p>
+ * The number of threads, the buffer size and how many buffers are pooled can
+ * be set with the system properties
+ * org.browsermob.proxy.jetty.http.nio.TunnelSelector.threads, .buffer_size
+ * and .pool_size.
+ *
+ * @see org.browsermob.proxy.jetty.http.HttpTunnel
+ */
+public class TunnelSelector
+{
+    private static Log log= LogFactory.getLog(TunnelSelector.class);
+
+    public static final int __THREADS=
+        Integer.getInteger("org.browsermob.proxy.jetty.http.nio.TunnelSelector.threads",
+                           Math.max(1,Math.min(4,Runtime.getRuntime().availableProcessors()/2))).intValue();
+    public static final int __BUFFER_SIZE=
+        Integer.getInteger("org.browsermob.proxy.jetty.http.nio.TunnelSelector.buffer_size",16384).intValue();
+    public static final int __POOL_SIZE=
+        Integer.getInteger("org.browsermob.proxy.jetty.http.nio.TunnelSelector.pool_size",1024).intValue();
+
+    // how often tunnels are checked for having been idle too long
+    private static final long EXPIRY_INTERVAL_MS=1000;
+
+    private static final Queue<ByteBuffer> __buffers=new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger __pooled=new AtomicInteger();
+    private static final Set<Tunnel> __tunnels=
+        Collections.newSetFromMap(new ConcurrentHashMap<Tunnel,Boolean>());
+    private static final AtomicInteger __next=new AtomicInteger();
+    private static final AtomicLong __opened=new AtomicLong();
+    private static final AtomicLong __timedOut=new AtomicLong();
+    private static SelectorThread[] __selectors;
+
+    /* ------------------------------------------------------------ */
+    private TunnelSelector()
+    {
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Relay bytes between two connected channels until both ends are done,
+     * either is closed, or no bytes have passed for the idle timeout.
+     * The channels are switched to non-blocking mode and belong to the
+     * tunnel from now on, which closes them.
+     * @param client One end, usually the connection of the browser.
+     * @param server The other end.
+     * @param idleTimeoutMs How long the tunnel may be idle, or 0 for ever.
+     * @param owner What the tunnel belongs to, so that it can be closed with
+     * {@link #close(Object)}.
+     */
+    public static void relay(SocketChannel client, SocketChannel server, long idleTimeoutMs, Object owner)
+        throws IOException
+    {
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+
+        Tunnel tunnel=new Tunnel(client,server,idleTimeoutMs,owner);
+        __tunnels.add(tunnel);
+        __opened.incrementAndGet();
+
+        SelectorThread[] selectors=getSelectors();
+        int next=__next.getAndIncrement()&Integer.MAX_VALUE;
+        selectors[next%selectors.length].add(tunnel);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static synchronized SelectorThread[] getSelectors()
+        throws IOException
+    {
+        if (__selectors==null)
+        {
+            SelectorThread[] selectors=new SelectorThread[__THREADS];
+            for (int i=0;i<selectors.length;i++)
+            {
+                selectors[i]=new SelectorThread(i);
+                selectors[i].start();
+            }
+            __selectors=selectors;
+        }
+        return __selectors;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Close the tunnels that belong to the owner.
+     */
+    public static void close(Object owner)
+    {
+        for (Tunnel tunnel : __tunnels)
+            if (tunnel._owner==owner)
+                tunnel.closeChannels();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of tunnels open.
+     */
+    public static int getTunnels()
+    {
+        return __tunnels.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of tunnels relayed since the JVM started.
+     */
+    public static long getTunnelsOpened()
+    {
+        return __opened.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of tunnels closed for being idle too long.
+     */
+    public static long getTunnelsTimedOut()
+    {
+        return __timedOut.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of buffers waiting in the pool.
+     */
+    public static int getPooledBuffers()
+    {
+        return __pooled.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    private static ByteBuffer takeBuffer()
+    {
+        ByteBuffer buffer=__buffers.poll();
+        if (buffer==null)
+            return ByteBuffer.allocateDirect(__BUFFER_SIZE);
+        __pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void returnBuffer(ByteBuffer buffer)
+    {
+        if (buffer==null || __pooled.get()>=__POOL_SIZE)
+            return;
+        buffer.clear();
+        __buffers.add(buffer);
+        __pooled.incrementAndGet();
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class SelectorThread extends Thread
+    {
+        private final Selector _selector;
+        private final Queue<Tunnel> _adding=new ConcurrentLinkedQueue<Tunnel>();
+        // only touched by this thread
+        private final Set<Tunnel> _tunnels=new HashSet<Tunnel>();
+        private long _nextExpiry;
+
+        /* ------------------------------------------------------------ */
+        SelectorThread(int id)
+            throws IOException
+        {
+            super("TunnelSelector "+id);
+            setDaemon(true);
+            _selector=Selector.open();
+        }
+
+        /* ------------------------------------------------------------ */
+        void add(Tunnel tunnel)
+        {
+            _adding.add(tunnel);
+            _selector.wakeup();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    Tunnel tunnel;
+                    while ((tunnel=_adding.poll())!=null)
+                        register(tunnel);
+
+                    _selector.select(EXPIRY_INTERVAL_MS);
+
+                    Iterator<SelectionKey> iter=_selector.selectedKeys().iterator();
+                    while (iter.hasNext())
+                    {
+                        SelectionKey key=iter.next();
+                        iter.remove();
+                        Side side=(Side)key.attachment();
+                        if (key.isValid())
+                            side._tunnel.ready(side,key);
+                        else
+                            close(side._tunnel);
+                    }
+
+                    expire();
+                }
+                catch (Exception e)
+                {
+                    log.warn("tunnel selector",e);
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void register(Tunnel tunnel)
+        {
+            _tunnels.add(tunnel);
+            try
+            {
+                tunnel._client._key=tunnel._client._channel.register(_selector,SelectionKey.OP_READ,tunnel._client);
+                tunnel._server._key=tunnel._server._channel.register(_selector,SelectionKey.OP_READ,tunnel._server);
+                tunnel._lastActive=System.currentTimeMillis();
+                tunnel._selector=this;
+            }
+            catch (ClosedChannelException e)
+            {
+                // closed before it got here
+                LogSupport.ignore(log,e);
+                close(tunnel);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Close the tunnels that have been idle too long, and clear up after
+         * those closed by other threads.
+         */
+        private void expire()
+        {
+            long now=System.currentTimeMillis();
+            if (now<_nextExpiry)
+                return;
+            _nextExpiry=now+EXPIRY_INTERVAL_MS;
+
+            Iterator<Tunnel> iter=_tunnels.iterator();
+            while (iter.hasNext())
+            {
+                Tunnel tunnel=iter.next();
+                boolean open=tunnel._client._channel.isOpen() && tunnel._server._channel.isOpen();
+                boolean idle=tunnel._idleTimeoutMs>0 && now-tunnel._lastActive>tunnel._idleTimeoutMs;
+                if (!open || idle)
+                {
+                    if (open)
+                        __timedOut.incrementAndGet();
+                    iter.remove();
+                    tunnel.release();
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        void close(Tunnel tunnel)
+        {
+            _tunnels.remove(tunnel);
+            tunnel.release();
+        }
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** One end of a tunnel.
+     */
+    private static class Side
+    {
+        final Tunnel _tunnel;
+        final SocketChannel _channel;
+        Side _peer;
+        SelectionKey _key;
+        // bytes read from this side that the peer hasn't taken yet
+        ByteBuffer _pending;
+        boolean _eof;
+
+        /* ------------------------------------------------------------ */
+        Side(Tunnel tunnel, SocketChannel channel)
+        {
+            _tunnel=tunnel;
+            _channel=channel;
+        }
+
+        /* ------------------------------------------------------------ */
+        void updateInterest()
+        {
+            int ops=0;
+            if (!_eof && _pending==null)
+                ops|=SelectionKey.OP_READ;
+            if (_peer._pending!=null)
+                ops|=SelectionKey.OP_WRITE;
+            _key.interestOps(ops);
+        }
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Tunnel
+    {
+        final Side _client;
+        final Side _server;
+        final long _idleTimeoutMs;
+        final Object _owner;
+        SelectorThread _selector;
+        long _lastActive;
+
+        /* ------------------------------------------------------------ */
+        Tunnel(SocketChannel client, SocketChannel server, long idleTimeoutMs, Object owner)
+        {
+            _client=new Side(this,client);
+            _server=new Side(this,server);
+            _client._peer=_server;
+            _server._peer=_client;
+            _idleTimeoutMs=idleTimeoutMs;
+            _owner=owner;
+        }
+
+        /* ------------------------------------------------------------ */
+        void ready(Side side, SelectionKey key)
+        {
+            try
+            {
+                if (key.isWritable())
+                    flush(side._peer);
+                if (key.isReadable())
+                    fill(side);
+
+                if (_client._eof && _server._eof && _client._pending==null && _server._pending==null)
+                {
+                    _selector.close(this);
+                    return;
+                }
+
+                _client.updateInterest();
+                _server.updateInterest();
+            }
+            catch (IOException e)
+            {
+                LogSupport.ignore(log,e);
+                _selector.close(this);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Read what the side has sent, and pass as much on as its peer will take.
+         */
+        private void fill(Side from)
+            throws IOException
+        {
+            ByteBuffer buffer=takeBuffer();
+            int read=from._channel.read(buffer);
+            if (read<0)
+            {
+                returnBuffer(buffer);
+                from._eof=true;
+                from._peer._channel.socket().shutdownOutput();
+                return;
+            }
+            if (read==0)
+            {
+                returnBuffer(buffer);
+                return;
+            }
+
+            _lastActive=System.currentTimeMillis();
+            buffer.flip();
+            from._peer._channel.write(buffer);
+            if (buffer.hasRemaining())
+                from._pending=buffer;
+            else
+                returnBuffer(buffer);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Write out what is waiting to go from the side to its peer.
+         */
+        private void flush(Side from)
+            throws IOException
+        {
+            ByteBuffer buffer=from._pending;
+            if (buffer==null)
+                return;
+
+            if (from._peer._channel.write(buffer)>0)
+                _lastActive=System.currentTimeMillis();
+            if (!buffer.hasRemaining())
+            {
+                from._pending=null;
+                returnBuffer(buffer);
+                if (from._eof)
+                    from._peer._channel.socket().shutdownOutput();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Close the channels. Safe to call from any thread; the buffers
+         * are released by the selector thread.
+         */
+        void closeChannels()
+        {
+            try
+            {
+                _client._channel.close();
+            }
+            catch (IOException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+            try
+            {
+                _server._channel.close();
+            }
+            catch (IOException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Close the channels and return the buffers. Called by the selector thread.
+         */
+        void release()
+        {
+            closeChannels();
+            returnBuffer(_client._pending);
+            returnBuffer(_server._pending);
+            _client._pending=null;
+            _server._pending=null;
+            __tunnels.remove(this);
+        }
+    }
+}
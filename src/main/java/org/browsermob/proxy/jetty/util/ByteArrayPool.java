@@ -15,22 +15,76 @@
 
 package org.browsermob.proxy.jetty.util;
 
+import org.apache.commons.logging.Log;
+import org.browsermob.proxy.jetty.log.LogFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 
 /* ------------------------------------------------------------ */
 /** Byte Array Pool
- * Simple pool for recycling byte arrays of a fixed size.
+ * Pool for recycling byte and char arrays, shared by every thread.
+ * <p>
+ * Arrays are pooled in size classes, the powers of two from 512 to
+ * 65536. {@link #getByteArray(int)} of a size class size, or
+ * {@link #getByteArrayAtLeast(int)} of any size up to 65536, take an
+ * array from the pool if it has one; other sizes are simply allocated.
+ * Each class holds at most as many arrays as fit in max_class_bytes,
+ * and at least pool_size, set with the system properties
+ * org.browsermob.proxy.jetty.util.ByteArrayPool.max_class_bytes and
+ * .pool_size.
+ * <p>
+ * In debug mode, which the system property
+ * org.browsermob.proxy.jetty.util.ByteArrayPool.debug or debug logging
+ * turns on, the pool remembers where each array was taken, warns about
+ * arrays that are garbage collected without having been returned, and
+ * refuses arrays returned twice.
  *
  * @version $Id: ByteArrayPool.java,v 1.9 2004/05/09 20:32:49 gregwilkins Exp $
  * @author Greg Wilkins (gregw)
  */
 public class ByteArrayPool
 {
+    private static Log log= LogFactory.getLog(ByteArrayPool.class);
+
     public static final int __POOL_SIZE=
         Integer.getInteger("org.browsermob.proxy.jetty.util.ByteArrayPool.pool_size",8).intValue();
-    
-    public static final ThreadLocal __pools=new BAThreadLocal();
-    public static int __slot;
-    
+    public static final int __MAX_CLASS_BYTES=
+        Integer.getInteger("org.browsermob.proxy.jetty.util.ByteArrayPool.max_class_bytes",1024*1024).intValue();
+
+    private static final int MIN_SIZE=512;
+    private static final int MAX_SIZE=65536;
+
+    private static final SizeClass[] __bytes=sizeClasses(1);
+    private static final SizeClass[] __chars=sizeClasses(2);
+
+    private static final AtomicLong __allocated=new AtomicLong();
+    private static final AtomicLong __reused=new AtomicLong();
+    private static final AtomicLong __discarded=new AtomicLong();
+    private static final AtomicLong __leaked=new AtomicLong();
+
+    private static volatile boolean __debug=
+        Boolean.getBoolean("org.browsermob.proxy.jetty.util.ByteArrayPool.debug") || log.isDebugEnabled();
+    private static final Map<Object,Borrowed> __borrowed=
+        Collections.synchronizedMap(new WeakHashMap<Object,Borrowed>());
+    private static final Set<Object> __idle=
+        Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<Object,Boolean>()));
+    private static final ReferenceQueue<Object> __leaks=new ReferenceQueue<Object>();
+
+    /* ------------------------------------------------------------ */
+    private ByteArrayPool()
+    {
+    }
+
     /* ------------------------------------------------------------ */
     /** Get a byte array from the pool of known size.
      * @param size Size of the byte array.
@@ -38,75 +92,301 @@ public class ByteArrayPool
      */
     public static byte[] getByteArray(int size)
     {
-        byte[][] pool = (byte[][])__pools.get();
-        boolean full=true;
-        for (int i=pool.length;i-->0;)
+        SizeClass sizeClass=exactClass(__bytes,size);
+        if (sizeClass==null)
         {
-            if (pool[i]!=null && pool[i].length==size)
-            {
-                byte[]b = pool[i];
-                pool[i]=null;
-                return b;
-            }
-            else
-                full=false;
+            __allocated.incrementAndGet();
+            return new byte[size];
         }
-
-        if (full)
-            for (int i=pool.length;i-->0;)
-                pool[i]=null;
-        
-        return new byte[size];
+        return getByteArray(sizeClass);
     }
 
     /* ------------------------------------------------------------ */
+    /** Get a byte array from the pool that is at least as large as
+     * asked for, and as large as its size class.
+     * @param minSize Least size of the byte array.
+     */
     public static byte[] getByteArrayAtLeast(int minSize)
     {
-        byte[][] pool = (byte[][])__pools.get();
-        for (int i=pool.length;i-->0;)
+        SizeClass sizeClass=classAtLeast(__bytes,minSize);
+        if (sizeClass==null)
         {
-            if (pool[i]!=null && pool[i].length>=minSize)
-            {
-                byte[]b = pool[i];
-                pool[i]=null;
-                return b;
-            }
+            __allocated.incrementAndGet();
+            return new byte[minSize];
         }
-        
-        return new byte[minSize];
+        return getByteArray(sizeClass);
     }
 
+    /* ------------------------------------------------------------ */
+    private static byte[] getByteArray(SizeClass sizeClass)
+    {
+        byte[] b=(byte[])take(sizeClass);
+        if (b==null)
+        {
+            b=new byte[sizeClass._size];
+            borrowed(b);
+        }
+        return b;
+    }
 
     /* ------------------------------------------------------------ */
+    /** Return a byte array to the pool.
+     * Arrays that are not of a size class size are left to the
+     * garbage collector.
+     */
     public static void returnByteArray(final byte[] b)
     {
         if (b==null)
             return;
-        
-        byte[][] pool = (byte[][])__pools.get();
-        for (int i=pool.length;i-->0;)
+        SizeClass sizeClass=exactClass(__bytes,b.length);
+        if (sizeClass!=null)
+            give(sizeClass,b);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get a char array from the pool of known size.
+     * @param size Size of the char array.
+     * @return Char array of known size.
+     */
+    public static char[] getCharArray(int size)
+    {
+        SizeClass sizeClass=exactClass(__chars,size);
+        if (sizeClass==null)
+        {
+            __allocated.incrementAndGet();
+            return new char[size];
+        }
+        char[] c=(char[])take(sizeClass);
+        if (c==null)
         {
-            if (pool[i]==null)
-            {
-                pool[i]=b;
-                return;
-            }
+            c=new char[size];
+            borrowed(c);
         }
+        return c;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Return a char array to the pool.
+     */
+    public static void returnCharArray(final char[] c)
+    {
+        if (c==null)
+            return;
+        SizeClass sizeClass=exactClass(__chars,c.length);
+        if (sizeClass!=null)
+            give(sizeClass,c);
+    }
 
-        // slot.
-        int s = __slot++;
-        if (s<0)s=-s;
-        pool[s%pool.length]=b;
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of arrays allocated because the pool had none
+     * to give, or could not pool their size.
+     */
+    public static long getAllocations()
+    {
+        return __allocated.get();
     }
 
-    
     /* ------------------------------------------------------------ */
+    /**
+     * @return The number of arrays given out again instead of being
+     * allocated.
+     */
+    public static long getReuses()
+    {
+        return __reused.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of arrays returned to a size class that was
+     * already full.
+     */
+    public static long getDiscards()
+    {
+        return __discarded.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of arrays seen in debug mode to have been
+     * garbage collected without being returned.
+     */
+    public static long getLeaks()
+    {
+        checkLeaks();
+        return __leaked.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes held by the arrays in the pool.
+     */
+    public static long getPooledBytes()
+    {
+        long bytes=0;
+        for (int i=0;i<__bytes.length;i++)
+            bytes+=(long)__bytes[i]._pooled.get()*__bytes[i]._bytes;
+        for (int i=0;i<__chars.length;i++)
+            bytes+=(long)__chars[i]._pooled.get()*__chars[i]._bytes;
+        return bytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    public static boolean isDebug()
+    {
+        return __debug;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Turn leak detection on or off.
+     * Only arrays taken while it is on are watched.
+     */
+    public static void setDebug(boolean debug)
+    {
+        __debug=debug;
+    }
+
     /* ------------------------------------------------------------ */
-    private static final class BAThreadLocal extends ThreadLocal
+    private static SizeClass[] sizeClasses(int unitBytes)
     {
-        protected Object initialValue()
-            {
-                return new byte[__POOL_SIZE][];
-            }
+        int classes=Integer.numberOfTrailingZeros(MAX_SIZE/MIN_SIZE)+1;
+        SizeClass[] sizeClasses=new SizeClass[classes];
+        for (int i=0;i<classes;i++)
+            sizeClasses[i]=new SizeClass(MIN_SIZE<<i,unitBytes);
+        return sizeClasses;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static SizeClass exactClass(SizeClass[] sizeClasses,int size)
+    {
+        if (size<MIN_SIZE || size>MAX_SIZE || (size&(size-1))!=0)
+            return null;
+        return sizeClasses[Integer.numberOfTrailingZeros(size/MIN_SIZE)];
+    }
+
+    /* ------------------------------------------------------------ */
+    private static SizeClass classAtLeast(SizeClass[] sizeClasses,int minSize)
+    {
+        if (minSize>MAX_SIZE)
+            return null;
+        if (minSize<=MIN_SIZE)
+            return sizeClasses[0];
+        return exactClass(sizeClasses,Integer.highestOneBit(minSize-1)<<1);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static Object take(SizeClass sizeClass)
+    {
+        Object array=sizeClass._arrays.poll();
+        if (array==null)
+        {
+            __allocated.incrementAndGet();
+            return null;
+        }
+        sizeClass._pooled.decrementAndGet();
+        __reused.incrementAndGet();
+        if (__debug)
+        {
+            __idle.remove(array);
+            borrowed(array);
+        }
+        return array;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void give(SizeClass sizeClass,Object array)
+    {
+        if (__debug && !returned(array))
+            return;
+
+        if (sizeClass._pooled.incrementAndGet()>sizeClass._capacity)
+        {
+            sizeClass._pooled.decrementAndGet();
+            __discarded.incrementAndGet();
+            if (__debug)
+                __idle.remove(array);
+            return;
+        }
+        sizeClass._arrays.add(array);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void borrowed(Object array)
+    {
+        if (!__debug)
+            return;
+        checkLeaks();
+        __borrowed.put(array,new Borrowed(array));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return false if the array is already back in the pool.
+     */
+    private static boolean returned(Object array)
+    {
+        Borrowed borrowed=__borrowed.remove(array);
+        if (borrowed!=null)
+            borrowed.clear();
+        if (!__idle.add(array))
+        {
+            log.warn("Array of "+lengthOf(array)+" returned to the pool twice",new Throwable());
+            return false;
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void checkLeaks()
+    {
+        Borrowed borrowed;
+        while ((borrowed=(Borrowed)__leaks.poll())!=null)
+        {
+            __leaked.incrementAndGet();
+            log.warn("Array of "+borrowed._length+" was never returned to the pool",borrowed._taken);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int lengthOf(Object array)
+    {
+        return (array instanceof byte[])?((byte[])array).length:((char[])array).length;
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static final class SizeClass
+    {
+        final int _size;
+        final int _bytes;
+        final int _capacity;
+        final Queue<Object> _arrays=new ConcurrentLinkedQueue<Object>();
+        final AtomicInteger _pooled=new AtomicInteger();
+
+        SizeClass(int size,int unitBytes)
+        {
+            _size=size;
+            _bytes=size*unitBytes;
+            _capacity=Math.max(__POOL_SIZE,__MAX_CLASS_BYTES/_bytes);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** An array taken from the pool in debug mode, and where from.
+     */
+    private static final class Borrowed extends WeakReference<Object>
+    {
+        final int _length;
+        final Throwable _taken;
+
+        Borrowed(Object array)
+        {
+            super(array,__leaks);
+            _length=lengthOf(array);
+            _taken=new Throwable("Taken from the pool");
+        }
     }
 }
@@ -36,6 +36,10 @@ import java.util.TimeZone;
  * If consecutive calls are frequently very different, then this
  * may be a little slower than a normal DateFormat.
  *
+ * The formatted minute and second are kept in immutable holders
+ * that are swapped as time moves on, so that threads formatting
+ * the current time read them without taking a lock.
+ *
  * @version $Id: DateCache.java,v 1.15 2004/05/09 20:32:49 gregwilkins Exp $
  * @author Kent Johnson <KJohnson@transparent.com>
  * @author Greg Wilkins (gregw)
@@ -53,15 +57,10 @@ public class DateCache
     private String _minFormatString;
     private SimpleDateFormat _minFormat;
 
-    private String _secFormatString;
-    private String _secFormatString0;
-    private String _secFormatString1;
-
     private boolean _millis=false;
-    private long _misses = 0;
-    private long _lastMinutes = -1;
-    private long _lastSeconds = -1;
-    private String _lastResult = null;
+    private volatile int _misses = 0;
+    private volatile Minute _lastMinute = null;
+    private volatile Second _lastSecond = null;
 
     private Locale _locale	= null;
     private DateFormatSymbols	_dfs	= null;
@@ -128,8 +127,8 @@ public class DateCache
         }
         _tzFormat.setTimeZone(tz);
         _minFormat.setTimeZone(tz);
-        _lastSeconds=-1;
-        _lastMinutes=-1;        
+        _lastSecond=null;
+        _lastMinute=null;
     }
 
     /* ------------------------------------------------------------ */
@@ -215,7 +214,7 @@ public class DateCache
      * @param inDate 
      * @return Formatted date
      */
-    public synchronized String format(Date inDate)
+    public String format(Date inDate)
     {
         return format(inDate.getTime());
     }
@@ -225,81 +224,65 @@ public class DateCache
      * @param inDate 
      * @return Formatted date
      */
-    public synchronized String format(long inDate)
+    public String format(long inDate)
     {
         long seconds = inDate / 1000;
 
+        // Check if we are in the same second
+        // and don't care about millis
+        Second second=_lastSecond;
+        if (second!=null && second._seconds==seconds && !_millis)
+            return second._result;
+
         // Is it not suitable to cache?
-        if (seconds<_lastSeconds ||
-            _lastSeconds>0 && seconds>_lastSeconds+__hitWindow)
+        if (second!=null &&
+            (seconds<second._seconds || seconds>second._seconds+__hitWindow))
         {
-            // It's a cache miss
-            _misses++;
-            if (_misses<__MaxMisses)
+            // It's a cache miss. The count is only a hint, so
+            // racing threads losing an increment does not matter.
+            int misses=_misses;
+            _misses=misses+1;
+            if (misses<__MaxMisses)
             {
-                Date d = new Date(inDate);
-                return _tzFormat.format(d);
-            }    
+                synchronized(_tzFormat)
+                {
+                    return _tzFormat.format(new Date(inDate));
+                }
+            }
         }
         else if (_misses>0)
             _misses--;
-                                          
-        // Check if we are in the same second
-        // and don't care about millis
-        if (_lastSeconds==seconds && !_millis)
-            return _lastResult;
 
-        Date d = new Date(inDate);
-        
         // Check if we need a new format string
         long minutes = seconds/60;
-        if (_lastMinutes != minutes)
+        Minute minute=_lastMinute;
+        if (minute==null || minute._minutes!=minutes)
         {
-            _lastMinutes = minutes;
-            _secFormatString=_minFormat.format(d);
-
-            int i;
-            int l;
-            if (_millis)
-            {
-                i=_secFormatString.indexOf("ss.SSS");
-                l=6;
-            }
-            else
-            {
-                i=_secFormatString.indexOf("ss");
-                l=2;
-            }
-            _secFormatString0=_secFormatString.substring(0,i);
-            _secFormatString1=_secFormatString.substring(i+l);
+            minute=new Minute(minutes,inDate);
+            _lastMinute=minute;
         }
 
-        // Always format if we get here
-        _lastSeconds = seconds;
-        StringBuffer sb=new StringBuffer(_secFormatString.length());
-        synchronized(sb)
+        StringBuffer sb=new StringBuffer(minute._length);
+        sb.append(minute._prefix);
+        int s=(int)(seconds%60);
+        if (s<10)
+            sb.append('0');
+        sb.append(s);
+        if (_millis)
         {
-            sb.append(_secFormatString0);
-            int s=(int)(seconds%60);
-            if (s<10)
-                sb.append('0');
-            sb.append(s);
-            if (_millis)
-            {
-                long millis = inDate%1000;
-                if (millis<10)
-                    sb.append(".00");
-                else if (millis<100)
-                    sb.append(".0");
-                else
-                    sb.append('.');
-                sb.append(millis);
-            }
-            sb.append(_secFormatString1);
-            _lastResult=sb.toString();
+            long millis = inDate%1000;
+            if (millis<10)
+                sb.append(".00");
+            else if (millis<100)
+                sb.append(".0");
+            else
+                sb.append('.');
+            sb.append(millis);
         }
-                
-        return _lastResult;
+        sb.append(minute._suffix);
+        String result=sb.toString();
+        _lastSecond=new Second(seconds,result);
+        return result;
     }
 
     /* ------------------------------------------------------------ */
@@ -324,6 +307,57 @@ public class DateCache
     public String getFormatString()
     {
         return _formatString;
-    } 
-    
+    }
+
+    /* ------------------------------------------------------------ */
+    /** The format string of one minute, split around its seconds.
+     */
+    private final class Minute
+    {
+        final long _minutes;
+        final String _prefix;
+        final String _suffix;
+        final int _length;
+
+        Minute(long minutes, long inDate)
+        {
+            String secFormatString;
+            synchronized(_minFormat)
+            {
+                secFormatString=_minFormat.format(new Date(inDate));
+            }
+
+            int i;
+            int l;
+            if (_millis)
+            {
+                i=secFormatString.indexOf("ss.SSS");
+                l=6;
+            }
+            else
+            {
+                i=secFormatString.indexOf("ss");
+                l=2;
+            }
+            _minutes=minutes;
+            _prefix=secFormatString.substring(0,i);
+            _suffix=secFormatString.substring(i+l);
+            _length=secFormatString.length();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** The result of formatting one second.
+     */
+    private static final class Second
+    {
+        final long _seconds;
+        final String _result;
+
+        Second(long seconds, String result)
+        {
+            _seconds=seconds;
+            _result=result;
+        }
+    }
 }
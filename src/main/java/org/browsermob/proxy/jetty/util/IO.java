@@ -138,35 +138,42 @@ public class IO extends ThreadPool
                             long byteCount)
          throws IOException
     {     
-        byte buffer[] = new byte[bufferSize];
-        int len=bufferSize;
-        
-        if (byteCount>=0)
+        byte buffer[] = ByteArrayPool.getByteArray(bufferSize);
+        try
         {
-            while (byteCount>0)
+            int len=bufferSize;
+        
+            if (byteCount>=0)
             {
-                if (byteCount<bufferSize)
-                    len=in.read(buffer,0,(int)byteCount);
-                else
-                    len=in.read(buffer,0,bufferSize);                   
+                while (byteCount>0)
+                {
+                    if (byteCount<bufferSize)
+                        len=in.read(buffer,0,(int)byteCount);
+                    else
+                        len=in.read(buffer,0,bufferSize);                   
                 
-                if (len==-1)
-                    break;
+                    if (len==-1)
+                        break;
                 
-                byteCount -= len;
-                out.write(buffer,0,len);
+                    byteCount -= len;
+                    out.write(buffer,0,len);
+                }
             }
-        }
-        else
-        {
-            while (true)
+            else
             {
-                len=in.read(buffer,0,bufferSize);
-                if (len<0 )
-                    break;
-                out.write(buffer,0,len);
+                while (true)
+                {
+                    len=in.read(buffer,0,bufferSize);
+                    if (len<0 )
+                        break;
+                    out.write(buffer,0,len);
+                }
             }
         }
+        finally
+        {
+            ByteArrayPool.returnByteArray(buffer);
+        }
     }  
 
     /* ------------------------------------------------------------------- */
@@ -177,35 +184,42 @@ public class IO extends ThreadPool
                             long byteCount)
          throws IOException
     {  
-        char buffer[] = new char[bufferSize];
-        int len=bufferSize;
-        
-        if (byteCount>=0)
+        char buffer[] = ByteArrayPool.getCharArray(bufferSize);
+        try
         {
-            while (byteCount>0)
+            int len=bufferSize;
+        
+            if (byteCount>=0)
             {
-                if (byteCount<bufferSize)
-                    len=in.read(buffer,0,(int)byteCount);
-                else
-                    len=in.read(buffer,0,bufferSize);                   
+                while (byteCount>0)
+                {
+                    if (byteCount<bufferSize)
+                        len=in.read(buffer,0,(int)byteCount);
+                    else
+                        len=in.read(buffer,0,bufferSize);                   
                 
-                if (len==-1)
-                    break;
+                    if (len==-1)
+                        break;
                 
-                byteCount -= len;
-                out.write(buffer,0,len);
+                    byteCount -= len;
+                    out.write(buffer,0,len);
+                }
             }
-        }
-        else
-        {
-            while (true)
+            else
             {
-                len=in.read(buffer,0,bufferSize);
-                if (len==-1)
-                    break;
-                out.write(buffer,0,len);
+                while (true)
+                {
+                    len=in.read(buffer,0,bufferSize);
+                    if (len==-1)
+                        break;
+                    out.write(buffer,0,len);
+                }
             }
         }
+        finally
+        {
+            ByteArrayPool.returnCharArray(buffer);
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -60,6 +60,7 @@ public class LineInput extends FilterInputStream
     private boolean _newByteLimit;
     private LineBuffer _lineBuffer;
     private String _encoding;
+    private int _rawStart;
     private boolean _eof=false;
     private boolean _lastCr=false;
     private boolean _seenCrLf=false;
@@ -265,6 +266,50 @@ public class LineInput extends FilterInputStream
     }
 
     
+    /* ------------------------------------------------------------ */
+    /** Read a line ended by CR, LF or CRLF, without decoding it.
+     * The line is left in the array returned by {@link #getRawBuffer()},
+     * starting at {@link #getRawLineStart()}, until the next read.
+     * @return The length of the line or -1 for EOF.
+     * @exception IOException 
+     */
+    public int readRawLine()
+        throws IOException
+    {
+        int len=fillLine(_buf.length);
+        _rawStart=_mark;
+        _mark=-1;
+        return len;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The array holding the line read by {@link #readRawLine()}.
+     */
+    public byte[] getRawBuffer()
+    {
+        return _buf;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The offset of the line read by {@link #readRawLine()}.
+     */
+    public int getRawLineStart()
+    {
+        return _rawStart;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The encoding given to convert bytes to characters, or null
+     * if none was given.
+     */
+    public String getEncoding()
+    {
+        return _encoding;
+    }
+    
     /* ------------------------------------------------------------ */
     /** Read a Line ended by CR, LF or CRLF.
      * Read a line into a shared LineBuffer instance.  The LineBuffer is
@@ -703,6 +748,7 @@ public class LineInput extends FilterInputStream
     public void destroy()
     {
         ByteArrayPool.returnByteArray(_buf);
+        _buf=null;
         _byteBuffer=null;
         _reader=null;
         _lineBuffer=null;
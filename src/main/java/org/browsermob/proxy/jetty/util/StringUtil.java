@@ -284,5 +284,18 @@ public class StringUtil
                 return false;
         return true;
     }
+
+    /* ------------------------------------------------------------ */
+    /** Compare a String with ISO-8859-1 encoded bytes.
+     */
+    public static boolean equals(String s,byte[] buf, int offset, int length)
+    {
+        if (s.length()!=length)
+            return false;
+        for (int i=0;i<length;i++)
+            if ((char)(buf[offset+i]&0xff)!=s.charAt(i))
+                return false;
+        return true;
+    }
     
 }
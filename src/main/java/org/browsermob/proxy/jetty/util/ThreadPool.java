@@ -18,18 +18,40 @@ import org.apache.commons.logging.Log;
 import org.browsermob.proxy.jetty.log.LogFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 /* ------------------------------------------------------------ */
 /**
  * A pool of threads.
  * <p>
- * Avoids the expense of thread creation by pooling threads after their run methods exit for reuse.
+ * Jobs are run on an {@link Executor}. By default each ThreadPool has an executor of its own,
+ * whose threads are kept for reuse after their jobs finish. Idle threads timeout and terminate
+ * until the minimum number of threads are running. Alternatively a pool may be given any
+ * executor with {@link #setExecutor(Executor)}, such as the bounded executor every pool in the
+ * JVM can share (see {@link #getSharedExecutor()}), or one running each job on a virtual
+ * thread when the JDK has them (see {@link #getVirtualThreadExecutor()}).
  * <p>
- * If the maximum pool size is reached, jobs wait for a free thread. 
- * Idle threads timeout and terminate until the minimum number of threads are running.
+ * Whichever executor is used, no more than the maximum number of threads' worth of jobs from
+ * a pool run at once. If that many are running, jobs wait up to the maximum idle time for one
+ * to finish, after which they are rejected and passed to stopJob. Jobs the executor rejects
+ * are treated the same way. Both are counted, see {@link #getRejectedJobs()}.
  * <p>
- * This implementation uses the run(Object) method to place a job on a queue, which is read by the
- * getJob(timeout) method. Derived implementations may specialize getJob(timeout) to obtain jobs
- * from other sources without queing overheads.
+ * The system property org.browsermob.proxy.jetty.util.ThreadPool.executor sets the executor
+ * for pools not given one: "shared" for the shared executor, or "virtual" for virtual threads.
  * 
  * @version $Id: ThreadPool.java,v 1.41 2005/08/13 00:01:28 gregwilkins Exp $
  * @author Juancarlo Aï¿½ez <juancarlo@modelistica.com>
@@ -41,11 +63,39 @@ public class ThreadPool implements LifeCycle,Serializable
     static private int __pool=0;
     public static final String __DAEMON="org.browsermob.proxy.jetty.util.ThreadPool.daemon";
     public static final String __PRIORITY="org.browsermob.proxy.jetty.util.ThreadPool.priority";
+    public static final String __EXECUTOR="org.browsermob.proxy.jetty.util.ThreadPool.executor";
+
+    static int __max=Integer.getInteger("POOL_MAX",256).intValue();
+    static int __min=Integer.getInteger("POOL_MIN",2).intValue();
+    static int __sharedMax=
+        Integer.getInteger("org.browsermob.proxy.jetty.util.ThreadPool.shared.max_threads",512).intValue();
+    static int __sharedQueue=
+        Integer.getInteger("org.browsermob.proxy.jetty.util.ThreadPool.shared.queue_size",1024).intValue();
+
+    private static Executor __defaultExecutor;
+    private static ThreadPoolExecutor __sharedExecutor;
+    private static Executor __virtualExecutor;
+    private static boolean __virtualChecked;
     
     /* ------------------------------------------------------------------- */
-    private Pool _pool;
+    private String _name;
+    private boolean _daemon;
+    private int _priority=Thread.NORM_PRIORITY;
+    private int _minThreads=__min;
+    private int _maxThreads=__max;
+    private int _maxIdleTimeMs=10000;
     private Object _join="";
-    private transient boolean _started;
+    private transient Executor _executor;
+    private transient volatile boolean _started;
+
+    // read by run() without the lock, and cleared or replaced by stop() and start()
+    private transient volatile Executor _running;
+    private transient ThreadPoolExecutor _own;
+    private transient volatile Slots _slots;
+    private transient Set<Job> _jobs;
+    private transient AtomicInteger _active;
+    private transient AtomicInteger _queued;
+    private transient AtomicLong _rejected;
 
     /* ------------------------------------------------------------------- */
     /*
@@ -62,8 +112,10 @@ public class ThreadPool implements LifeCycle,Serializable
             name+=__pool++;
         }
         
-        _pool=new Pool();
-        _pool.setPoolClass(ThreadPool.PoolThread.class);
+        _jobs=Collections.newSetFromMap(new ConcurrentHashMap<Job,Boolean>());
+        _active=new AtomicInteger();
+        _queued=new AtomicInteger();
+        _rejected=new AtomicLong();
         setName(name);
     }
 
@@ -73,47 +125,25 @@ public class ThreadPool implements LifeCycle,Serializable
      */
     public String getName()
     {
-        return _pool.getPoolName();
+        return _name;
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Set the Pool name. All ThreadPool instances with the same Pool name will share the same Pool
-     * instance. Thus they will share the same max, min and available Threads. The field values of
-     * the first ThreadPool to call setPoolName with a specific name are used for the named Pool.
-     * Subsequent ThreadPools that join the name pool will loose their private values.
+     * Set the name of the pool, which its own threads are named after. Pools no longer share
+     * threads by name; give them the same executor instead.
      * 
-     * @param name Name of the Pool instance this ThreadPool uses or null for an anonymous private
-     *                  pool.
+     * @param name Name of the pool.
      */
     public void setName(String name)
     {
-        synchronized(Pool.class)
+        if(isStarted())
         {
-            if(isStarted())
-            {
-                if((name==null&&_pool.getPoolName()!=null)||(name!=null&&!name.equals(_pool.getPoolName())))
-                    throw new IllegalStateException("started");
-                return;
-            }
-            
-            if(name==null)
-            {
-                if(_pool.getPoolName()!=null)
-                {               
-                    _pool=new Pool();
-                    _pool.setPoolName(getName());
-                }
-            }
-            else if (!name.equals(getName()))
-            {
-                Pool pool=Pool.getPool(name);
-                if(pool==null)
-                    _pool.setPoolName(name);
-                else
-                    _pool=pool;       
-            }
+            if((name==null&&_name!=null)||(name!=null&&!name.equals(_name)))
+                throw new IllegalStateException("started");
+            return;
         }
+        _name=name;
     }
 
     /* ------------------------------------------------------------ */
@@ -136,20 +166,20 @@ public class ThreadPool implements LifeCycle,Serializable
 
     /* ------------------------------------------------------------ */
     /**
-     * Delegated to the named or anonymous Pool.
+     * Whether the pool's own threads are daemons.
      */
     public boolean isDaemon()
     {
-        return _pool.getAttribute(__DAEMON)!=null;
+        return _daemon;
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Delegated to the named or anonymous Pool.
+     * Set whether the pool's own threads are daemons.
      */
     public void setDaemon(boolean daemon)
     {
-        _pool.setAttribute(__DAEMON,daemon?"true":null);
+        _daemon=daemon;
     }
 
     /* ------------------------------------------------------------ */
@@ -165,99 +195,165 @@ public class ThreadPool implements LifeCycle,Serializable
 
     /* ------------------------------------------------------------ */
     /**
-     * Get the number of threads in the pool. Delegated to the named or anonymous Pool.
+     * @return The executor given to this pool, or null if it uses the default.
+     */
+    public Executor getExecutor()
+    {
+        return _executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the executor the pool's jobs run on. The executor is not shut down when the pool
+     * stops, so one may be shared between many pools.
+     * 
+     * @param executor The executor, or null for the default: the one set with 
+     * {@link #setDefaultExecutor(Executor)}, or else an executor of the pool's own.
+     */
+    public void setExecutor(Executor executor)
+    {
+        if(isStarted())
+            throw new IllegalStateException("started");
+        _executor=executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the number of threads in the pool. For a pool given an executor, this is the number
+     * running its jobs.
      * 
      * @see #getIdleThreads
      * @return Number of threads
      */
     public int getThreads()
     {
-        return _pool.size();
+        ThreadPoolExecutor own=_own;
+        if (own!=null)
+            return Math.max(own.getPoolSize(),_active.get());
+        return _active.get();
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Get the number of idle threads in the pool. Delegated to the named or anonymous Pool.
+     * Get the number of idle threads in the pool. Threads of an executor given to the pool
+     * are not counted.
      * 
      * @see #getThreads
      * @return Number of threads
      */
     public int getIdleThreads()
     {
-        return _pool.available();
+        return getThreads()-_active.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the number of jobs waiting for a thread, either for one of the pool's maximum number
+     * of threads to come free, or in the executor's queue.
+     * 
+     * @return Number of jobs
+     */
+    public int getQueueSize()
+    {
+        Slots slots=_slots;
+        return (slots==null?0:slots.getQueueLength())+_queued.get();
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Get the minimum number of threads. Delegated to the named or anonymous Pool.
+     * Get the number of jobs passed to stopJob without being run, because no thread came free
+     * in time or the executor rejected them.
+     * 
+     * @return Number of jobs
+     */
+    public long getRejectedJobs()
+    {
+        return _rejected.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the minimum number of threads.
      * 
      * @see #setMinThreads
      * @return minimum number of threads.
      */
     public int getMinThreads()
     {
-        return _pool.getMinSize();
+        return _minThreads;
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Set the minimum number of threads. Delegated to the named or anonymous Pool.
+     * Set the minimum number of threads. Only the pool's own executor keeps a minimum.
      * 
      * @see #getMinThreads
      * @param minThreads minimum number of threads
      */
     public void setMinThreads(int minThreads)
     {
-        _pool.setMinSize(minThreads);
+        _minThreads=minThreads;
+        ThreadPoolExecutor own=_own;
+        if (own!=null)
+            own.setCorePoolSize(minThreads);
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Set the maximum number of threads. Delegated to the named or anonymous Pool.
+     * Set the maximum number of threads.
      * 
      * @see #setMaxThreads
      * @return maximum number of threads.
      */
     public int getMaxThreads()
     {
-        return _pool.getMaxSize();
+        return _maxThreads;
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Set the maximum number of threads. Delegated to the named or anonymous Pool.
+     * Set the maximum number of threads, which is the most jobs from this pool that run at once.
      * 
      * @see #getMaxThreads
      * @param maxThreads maximum number of threads.
      */
     public void setMaxThreads(int maxThreads)
     {
-        _pool.setMaxSize(maxThreads);
+        synchronized(this)
+        {
+            Slots slots=_slots;
+            if (slots!=null)
+                slots.resize(maxThreads-_maxThreads);
+            _maxThreads=maxThreads;
+        }
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Get the maximum thread idle time. Delegated to the named or anonymous Pool.
+     * Get the maximum thread idle time.
      * 
      * @see #setMaxIdleTimeMs
      * @return Max idle time in ms.
      */
     public int getMaxIdleTimeMs()
     {
-        return _pool.getMaxIdleTimeMs();
+        return _maxIdleTimeMs;
     }
 
     /* ------------------------------------------------------------ */
     /**
      * Set the maximum thread idle time. Threads that are idle for longer than this period may be
-     * stopped. Delegated to the named or anonymous Pool.
+     * stopped, and jobs wait this long for a thread.
      * 
      * @see #getMaxIdleTimeMs
      * @param maxIdleTimeMs Max idle time in ms.
      */
     public void setMaxIdleTimeMs(int maxIdleTimeMs)
     {
-        _pool.setMaxIdleTimeMs(maxIdleTimeMs);
+        _maxIdleTimeMs=maxIdleTimeMs;
+        ThreadPoolExecutor own=_own;
+        if (own!=null && maxIdleTimeMs>0)
+            own.setKeepAliveTime(maxIdleTimeMs,TimeUnit.MILLISECONDS);
     }
 
     /* ------------------------------------------------------------ */
@@ -268,24 +364,18 @@ public class ThreadPool implements LifeCycle,Serializable
      */
     public int getThreadsPriority()
     {
-        int priority=Thread.NORM_PRIORITY;
-        Object o=_pool.getAttribute(__PRIORITY);
-        if(o!=null)
-        {
-            priority=((Integer)o).intValue();
-        }
-        return priority;
+        return _priority;
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Set the priority of the pool threads.
+     * Set the priority of the pool's own threads.
      * 
      * @param priority the new thread priority.
      */
     public void setThreadsPriority(int priority)
     {
-        _pool.setAttribute(__PRIORITY,new Integer(priority));
+        _priority=priority;
     }
 
     /* ------------------------------------------------------------ */
@@ -305,21 +395,52 @@ public class ThreadPool implements LifeCycle,Serializable
      */
     public void start() throws Exception
     {
-        _started=true;
-        _pool.start();
+        synchronized(this)
+        {
+            if (_started)
+                return;
+            if (_minThreads>=_maxThreads || _maxThreads<1)
+                throw new IllegalStateException("!(0<=min<max)");
+
+            _slots=new Slots(_maxThreads);
+            _running=_executor;
+            if (_running==null)
+                _running=getDefaultExecutor();
+            if (_running==null)
+            {
+                // the slots bound the jobs, so threads are only ever added for lack of an idle one
+                _own=new ThreadPoolExecutor(_minThreads,Integer.MAX_VALUE,
+                                            _maxIdleTimeMs>0?_maxIdleTimeMs:Long.MAX_VALUE,TimeUnit.MILLISECONDS,
+                                            new SynchronousQueue<Runnable>(),
+                                            new PoolThreadFactory(_name,_daemon,_priority));
+                _own.prestartAllCoreThreads();
+                _running=_own;
+            }
+            _started=true;
+        }
     }
 
     /* ------------------------------------------------------------ */
     /**
-     * Stop the ThreadPool. New jobs are no longer accepted,idle threads are interrupted and
-     * stopJob is called on active threads. The method then waits
-     * min(getMaxStopTimeMs(),getMaxIdleTimeMs()), for all jobs to stop, at which time killJob is
-     * called.
+     * Stop the ThreadPool. New jobs are no longer accepted, stopJob is called on the jobs
+     * running or waiting to run, and the pool's own threads are interrupted.
      */
     public void stop() throws InterruptedException
     {
-        _started=false;
-        _pool.stop();
+        ThreadPoolExecutor own;
+        synchronized(this)
+        {
+            _started=false;
+            own=_own;
+            _own=null;
+            _running=null;
+        }
+
+        for (Job job : new ArrayList<Job>(_jobs))
+            job.stop();
+        if (own!=null)
+            own.shutdownNow();
+        
         synchronized(_join)
         {
             _join.notifyAll();
@@ -329,13 +450,13 @@ public class ThreadPool implements LifeCycle,Serializable
     /* ------------------------------------------------------------ */
     public void join()
     {
-        while(isStarted()&&_pool!=null)
+        while(isStarted())
         {
             synchronized(_join)
             {
                 try
                 {
-                    if(isStarted()&&_pool!=null)
+                    if(isStarted())
                         _join.wait(30000);
                 }
                 catch(Exception e)
@@ -347,9 +468,12 @@ public class ThreadPool implements LifeCycle,Serializable
     }
 
     /* ------------------------------------------------------------ */
+    /**
+     * Idle threads of the pool's own executor stop by themselves after the maximum idle time,
+     * so there is nothing left for this to do.
+     */
     public void shrink() throws InterruptedException
     {
-        _pool.shrink();
     }
 
     /* ------------------------------------------------------------ */
@@ -363,27 +487,60 @@ public class ThreadPool implements LifeCycle,Serializable
     {
         if(job==null)
             return;
+
+        // start() sets _started last, so once it reads true the executor and slots are there,
+        // unless stop() has cleared the executor since
+        if (!isStarted())
+        {
+            reject(job);
+            return;
+        }
+        Executor executor=_running;
+        Slots slots=_slots;
+        int timeoutMs=getMaxIdleTimeMs();
+        boolean got=false;
+        if (executor!=null && slots!=null)
+            got=timeoutMs>0?slots.tryAcquire(timeoutMs,TimeUnit.MILLISECONDS):slots.tryAcquire();
+        if (!got || !isStarted())
+        {
+            if (got)
+                slots.release();
+            reject(job);
+            return;
+        }
+
+        Job j=new Job(job,slots);
+        _jobs.add(j);
+        _queued.incrementAndGet();
         try
         {
-            PoolThread thread=(PoolThread)_pool.get(getMaxIdleTimeMs());
-            if(thread!=null)
-                thread.run(this,job);
-            else
-            {
-                log.warn("No thread for "+job);
-                stopJob(null,job);
-            }
+            executor.execute(j);
         }
-        catch(InterruptedException e)
+        catch(RejectedExecutionException e)
         {
-            throw e;
+            LogSupport.ignore(log,e);
+            if (j.done())
+            {
+                _queued.decrementAndGet();
+                reject(job);
+            }
         }
         catch(Exception e)
         {
             log.warn(LogSupport.EXCEPTION,e);
+            if (j.done())
+                _queued.decrementAndGet();
         }
     }
 
+    /* ------------------------------------------------------------ */
+    private void reject(Object job)
+    {
+        _rejected.incrementAndGet();
+        log.warn("No thread for "+job);
+        stopJob(null,job);
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Handle a job. Called by the allocated thread to handle a job. If the job is a Runnable, it's
@@ -414,155 +571,224 @@ public class ThreadPool implements LifeCycle,Serializable
     {}
 
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Get the executor used by pools not given one.
+     * 
+     * @return The executor set with {@link #setDefaultExecutor(Executor)}, or else the one
+     * named by the org.browsermob.proxy.jetty.util.ThreadPool.executor system property, or
+     * null for each pool to have its own.
+     */
+    public static synchronized Executor getDefaultExecutor()
+    {
+        if (__defaultExecutor!=null)
+            return __defaultExecutor;
+
+        String executor=System.getProperty(__EXECUTOR);
+        if ("shared".equals(executor))
+            return getSharedExecutor();
+        if ("virtual".equals(executor))
+        {
+            Executor virtual=getVirtualThreadExecutor();
+            if (virtual==null)
+                log.warn("Virtual threads are not available, using pooled threads");
+            return virtual;
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the executor used by pools started from now on that have not been given one.
+     * 
+     * @param executor The executor, or null for the system property to decide.
+     */
+    public static synchronized void setDefaultExecutor(Executor executor)
+    {
+        __defaultExecutor=executor;
+    }
 
     /* ------------------------------------------------------------ */
     /**
-     * Pool Thread class. The PoolThread allows the threads job to be retrieved and active status
-     * to be indicated.
+     * Get the executor pools may share, so that the threads of the JVM's listeners are bounded
+     * as a whole. It has up to org.browsermob.proxy.jetty.util.ThreadPool.shared.max_threads 
+     * daemon threads, 512 by default, and queues up to 
+     * org.browsermob.proxy.jetty.util.ThreadPool.shared.queue_size jobs, 1024 by default, 
+     * beyond which jobs are rejected.
+     * 
+     * @return The shared executor.
      */
-    public static class PoolThread extends Thread implements Pool.PondLife
+    public static synchronized ThreadPoolExecutor getSharedExecutor()
     {
-        Pool _pool;
-        ThreadPool _jobPool;
-        Object _job;
-        ThreadPool _runPool;
-        Object _run;
-        int _id;
-        String _name;
+        if (__sharedExecutor==null)
+        {
+            __sharedExecutor=new ThreadPoolExecutor(__sharedMax,__sharedMax,
+                                                    10000,TimeUnit.MILLISECONDS,
+                                                    new ArrayBlockingQueue<Runnable>(__sharedQueue),
+                                                    new PoolThreadFactory("ThreadPool-shared",true,Thread.NORM_PRIORITY));
+            __sharedExecutor.allowCoreThreadTimeOut(true);
+        }
+        return __sharedExecutor;
+    }
 
-        /* ------------------------------------------------------------ */
-        public void enterPool(Pool pool,int id)
+    /* ------------------------------------------------------------ */
+    /**
+     * Get an executor that runs each job on a virtual thread of its own.
+     * 
+     * @return The executor, or null if the JDK has no virtual threads.
+     */
+    public static synchronized Executor getVirtualThreadExecutor()
+    {
+        if (!__virtualChecked)
         {
-            synchronized(this)
+            __virtualChecked=true;
+            try
             {
-                _pool=pool;
-                _id=id;
-                _name=_pool.getPoolName()+"-"+id;
-                this.setName(_name);
-                this.setDaemon(pool.getAttribute(__DAEMON)!=null);
-                Object o=pool.getAttribute(__PRIORITY);
-                if(o!=null)
-                {
-                    this.setPriority(((Integer)o).intValue());
-                }
-                this.start();
+                __virtualExecutor=(Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch(Exception e)
+            {
+                LogSupport.ignore(log,e);
             }
         }
+        return __virtualExecutor;
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /**
+     * A job given to the executor, which gives back its slot when done.
+     */
+    private class Job implements Runnable
+    {
+        final Object _job;
+        final Slots _jobSlots;
+        Thread _thread;
+        boolean _done;
 
         /* ------------------------------------------------------------ */
-        public int getID()
+        Job(Object job,Slots slots)
         {
-            return _id;
+            _job=job;
+            _jobSlots=slots;
         }
 
         /* ------------------------------------------------------------ */
-        public void poolClosing()
+        public void run()
         {
             synchronized(this)
             {
-                _pool=null;
-                if(_run==null)
-                    notify();
-                else
-                    interrupt();
+                _queued.decrementAndGet();
+                if (_done)
+                    return;
+                _thread=Thread.currentThread();
+            }
+
+            _active.incrementAndGet();
+            try
+            {
+                handle(_job);
+            }
+            catch(InterruptedException e)
+            {
+                LogSupport.ignore(log,e);
+            }
+            catch(Exception e)
+            {
+                log.warn(LogSupport.EXCEPTION,e);
+            }
+            finally
+            {
+                _active.decrementAndGet();
+                done();
+                // the thread may be one the executor gives other pools' jobs
+                Thread.interrupted();
             }
         }
 
         /* ------------------------------------------------------------ */
-        public void leavePool()
+        /**
+         * Finish with the job, if it was not finished already.
+         * @return True if this call finished it.
+         */
+        boolean done()
         {
             synchronized(this)
             {
-                _pool=null;
-                if(_jobPool==null&&_runPool==null)
-                    notify();
-                if(_job!=null&&_jobPool!=null)
-                {
-                    _jobPool.stopJob(this,_job);
-                    _job=null;
-                    _jobPool=null;
-                }
-                
-                if(_run!=null&&_runPool!=null)
-                {
-                    _runPool.stopJob(this,_run);
-                    _run=null;
-                    _runPool=null;
-                }
+                if (_done)
+                    return false;
+                _done=true;
             }
+            _jobs.remove(this);
+            _jobSlots.release();
+            return true;
         }
 
         /* ------------------------------------------------------------ */
-        public void run(ThreadPool pool,Object job)
+        void stop()
         {
+            Thread thread;
             synchronized(this)
             {
-                _jobPool=pool;
-                _job=job;
-                notify();
+                if (_done)
+                    return;
+                thread=_thread;
             }
+            stopJob(thread,_job);
+            // a job that had not started will not be
+            if (thread==null)
+                done();
         }
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /**
+     * The slots for the jobs of a pool, one per thread it may use.
+     */
+    private static class Slots extends Semaphore
+    {
+        Slots(int permits)
+        {
+            super(permits);
+        }
+
+        void resize(int change)
+        {
+            if (change>0)
+                release(change);
+            else if (change<0)
+                reducePermits(-change);
+        }
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Makes the threads of a pool's own executor, named after the pool.
+     */
+    private static class PoolThreadFactory implements ThreadFactory
+    {
+        final String _poolName;
+        final boolean _poolDaemon;
+        final int _poolPriority;
+        final AtomicInteger _id=new AtomicInteger();
 
         /* ------------------------------------------------------------ */
-        /**
-         * ThreadPool run. Loop getting jobs and handling them until idle or stopped.
-         */
-        public void run()
+        PoolThreadFactory(String name,boolean daemon,int priority)
         {
-            Object run=null;
-            ThreadPool runPool=null;
-            while(_pool!=null&&_pool.isStarted())
-            {
-                try
-                {
-                    synchronized(this)
-                    {
-                        // Wait for a job.
-                        if(run==null&&_pool!=null&&_pool.isStarted()&&_job==null)
-                            wait(_pool.getMaxIdleTimeMs());
-                        if(_job!=null)
-                        {
-                            run=_run=_job;
-                            _job=null;
-                            runPool=_runPool=_jobPool;
-                            _jobPool=null;
-                        }
-                    }
-                    
-                    // handle outside of sync
-                    if(run!=null && runPool!=null)
-                        runPool.handle(run);
-                    else if (run==null && _pool!=null)
-                        _pool.shrink();
-                }
-                catch(InterruptedException e)
-                {
-                    LogSupport.ignore(log,e);
-                }
-                finally
-                {
-                    synchronized(this)
-                    {
-                        boolean got=run!=null;
-                        run=_run=null;
-                        runPool=_runPool=null;
-                        try
-                        {
-                            if(got&&_pool!=null)
-                                _pool.put(this);
-                        }
-                        catch(InterruptedException e)
-                        {
-                            LogSupport.ignore(log,e);
-                        }
-                    }
-                }
-            }
+            _poolName=name;
+            _poolDaemon=daemon;
+            _poolPriority=priority;
         }
 
-        public String toString()
+        /* ------------------------------------------------------------ */
+        public Thread newThread(Runnable runnable)
         {
-            return _name;
+            Thread thread=new Thread(runnable,_poolName+"-"+_id.getAndIncrement());
+            thread.setDaemon(_poolDaemon);
+            thread.setPriority(_poolPriority);
+            return thread;
         }
     }
 }
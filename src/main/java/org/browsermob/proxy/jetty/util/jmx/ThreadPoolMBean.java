@@ -55,5 +55,7 @@ public class ThreadPoolMBean extends LifeCycleMBean
         defineAttribute("maxThreads");
         defineAttribute("maxIdleTimeMs");
         defineAttribute("threadsPriority");
+        defineAttribute("queueSize",false);
+        defineAttribute("rejectedJobs",false);
     }    
 }
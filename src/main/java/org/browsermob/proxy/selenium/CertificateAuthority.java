@@ -0,0 +1,283 @@
+package org.browsermob.proxy.selenium;
+
+import com.google.common.net.InternetDomainName;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.browsermob.proxy.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forges certificates for host names, signed by a CA held in memory.
+ * <p/>
+ * The CyberVillains CA that browsers are told to trust is read from the class path once per JVM; see {@link
+ * #getCyberVillains()}. Certificates are minted in memory and kept in a bounded LRU cache keyed by host name, so the
+ * first HTTPS request to a host costs a signature (the key pair comes from a {@link KeyPairPool}) and later ones cost a
+ * map lookup. Nothing is read from or written to disk once the CA has been loaded, unless certificates are to be kept
+ * across restarts in a {@link CertificateStore}. Threads that want the same host at the same time wait for one
+ * certificate rather than minting one each.
+ */
+public class CertificateAuthority {
+    private static final Log LOG = new Log();
+
+    public static final int DEFAULT_MAX_CERTIFICATES = 1024;
+
+    private static final String CYBERVILLAINS_KEYSTORE = "/sslSupport/cybervillainsCA.jks";
+    private static final String CYBERVILLAINS_CERT_ALIAS = "signingCert";
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private static CertificateAuthority cyberVillains;
+
+    private final X509Certificate caCert;
+    private final PrivateKey caKey;
+    private final KeyPairPool keyPairs = new KeyPairPool();
+    private final LinkedHashMap<String, FutureTask<KeyStore.PrivateKeyEntry>> certificates =
+            new LinkedHashMap<String, FutureTask<KeyStore.PrivateKeyEntry>>(16, 0.75f, true);
+    private int maxCertificates = DEFAULT_MAX_CERTIFICATES;
+    private final AtomicLong minted = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private volatile CertificateStore store;
+
+    public CertificateAuthority(X509Certificate caCert, PrivateKey caKey) {
+        this.caCert = caCert;
+        this.caKey = caKey;
+
+        // CertificateCreator signs with the BouncyCastle provider
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * Returns the CA whose certificate ships in /sslSupport, loading it the first time it is asked for.
+     */
+    public static synchronized CertificateAuthority getCyberVillains() {
+        if (cyberVillains == null) {
+            InputStream in = CertificateAuthority.class.getResourceAsStream(CYBERVILLAINS_KEYSTORE);
+            if (in == null) {
+                throw new IllegalStateException("Unable to find " + CYBERVILLAINS_KEYSTORE + " on the class path");
+            }
+
+            try {
+                KeyStore keyStore = KeyStore.getInstance("JKS");
+                keyStore.load(in, PASSWORD);
+                cyberVillains = new CertificateAuthority(
+                        (X509Certificate) keyStore.getCertificate(CYBERVILLAINS_CERT_ALIAS),
+                        (PrivateKey) keyStore.getKey(KeyStoreManager._caPrivKeyAlias, PASSWORD));
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to load the CyberVillains CA", e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        return cyberVillains;
+    }
+
+    /**
+     * Returns a certificate for the host name along with its private key, minting one if there isn't one cached. The
+     * chain runs from the host's certificate to the CA's.
+     */
+    public KeyStore.PrivateKeyEntry getCertificate(final String hostname) throws GeneralSecurityException {
+        FutureTask<KeyStore.PrivateKeyEntry> certificate;
+        boolean mint = false;
+        synchronized (certificates) {
+            certificate = certificates.get(hostname);
+            if (certificate == null) {
+                certificate = new FutureTask<KeyStore.PrivateKeyEntry>(new Callable<KeyStore.PrivateKeyEntry>() {
+                    @Override
+                    public KeyStore.PrivateKeyEntry call() throws Exception {
+                        return mint(hostname);
+                    }
+                });
+                certificates.put(hostname, certificate);
+                trim();
+                mint = true;
+            } else {
+                hits.incrementAndGet();
+            }
+        }
+
+        if (mint) {
+            certificate.run();
+        }
+
+        try {
+            return certificate.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted waiting for a certificate for " + hostname);
+        } catch (ExecutionException e) {
+            synchronized (certificates) {
+                if (certificates.get(hostname) == certificate) {
+                    certificates.remove(hostname);
+                }
+            }
+
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new GeneralSecurityException("Unable to mint a certificate for " + hostname, cause);
+        }
+    }
+
+    private KeyStore.PrivateKeyEntry mint(String hostname) throws GeneralSecurityException {
+        CertificateStore store = this.store;
+        if (store != null) {
+            KeyStore.PrivateKeyEntry stored = store.get(caCert, hostname);
+            // keys of a kind the pool no longer hands out are replaced, like everything else minted from now on
+            if (stored != null && stored.getPrivateKey().getAlgorithm().equals(keyPairs.getAlgorithm())) {
+                loaded.incrementAndGet();
+                return stored;
+            }
+        }
+
+        long start = System.nanoTime();
+
+        KeyPair keyPair = keyPairs.take();
+        X509Certificate certificate = CertificateCreator.generateStdSSLServerCertificate(keyPair.getPublic(),
+                caCert, caKey, getSubject(hostname));
+
+        minted.incrementAndGet();
+        LOG.fine("Minted a certificate for %s in %dms", hostname, (System.nanoTime() - start) / 1000000);
+
+        KeyStore.PrivateKeyEntry entry = new KeyStore.PrivateKeyEntry(keyPair.getPrivate(),
+                new Certificate[]{certificate, caCert});
+        if (store != null) {
+            store.put(caCert, hostname, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the wildcard name, such as *.example.com, of a certificate that covers the host and its siblings under
+     * the same registrable domain. Host names that a wildcard can't stand for, such as example.com itself, IP
+     * addresses and names outside the public suffix list, are returned as they are.
+     */
+    public static String getWildcardHostname(String hostname) {
+        if (hostname.startsWith("*.") || !InternetDomainName.isValid(hostname)) {
+            return hostname;
+        }
+
+        InternetDomainName name = InternetDomainName.from(hostname);
+        if (!name.isUnderPublicSuffix() || name.isTopPrivateDomain()) {
+            return hostname;
+        }
+
+        // a wildcard only stands for a single label, so a.b.example.com shares *.b.example.com with its siblings
+        return "*." + name.parent().name();
+    }
+
+    /**
+     * The subject KeyStoreManager has always given the certificates it forges.
+     */
+    private static String getSubject(String hostname) {
+        return "CN=" + hostname + ", OU=Test, O=CyberVillainsCA, L=Seattle, S=Washington, C=US";
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, FutureTask<KeyStore.PrivateKeyEntry>>> eldest = certificates.entrySet().iterator();
+        while (certificates.size() > maxCertificates && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * The key pairs certificates are minted with. Changes to it apply to certificates minted from then on.
+     */
+    public KeyPairPool getKeyPairPool() {
+        return keyPairs;
+    }
+
+    public CertificateStore getStore() {
+        return store;
+    }
+
+    /**
+     * Keeps the certificates minted from now on in the store, and looks there before minting one; null turns this
+     * off.
+     */
+    public void setStore(CertificateStore store) {
+        this.store = store;
+    }
+
+    public X509Certificate getCACertificate() {
+        return caCert;
+    }
+
+    public int getMaxCertificates() {
+        synchronized (certificates) {
+            return maxCertificates;
+        }
+    }
+
+    /**
+     * Sets how many certificates are kept, evicting the least recently used ones beyond that.
+     */
+    public void setMaxCertificates(int maxCertificates) {
+        if (maxCertificates < 1) {
+            throw new IllegalArgumentException("At least one certificate must be kept");
+        }
+
+        synchronized (certificates) {
+            this.maxCertificates = maxCertificates;
+            trim();
+        }
+    }
+
+    /**
+     * The number of certificates currently cached.
+     */
+    public int getCertificateCount() {
+        synchronized (certificates) {
+            return certificates.size();
+        }
+    }
+
+    /**
+     * The number of certificates minted, including ones minted again after being evicted.
+     */
+    public long getCertificatesMinted() {
+        return minted.get();
+    }
+
+    /**
+     * The number of certificates read from the {@link #setStore store} rather than minted.
+     */
+    public long getCertificatesLoaded() {
+        return loaded.get();
+    }
+
+    /**
+     * The number of requests for a certificate that found one cached, or being minted.
+     */
+    public long getCacheHits() {
+        return hits.get();
+    }
+}
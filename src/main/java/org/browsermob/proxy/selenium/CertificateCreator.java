@@ -34,6 +34,10 @@ public class CertificateCreator {
 
 
 	private static final HashSet<String> clientCertOidsNeverToCopy = new HashSet<String>();
+
+	// random rather than counted, so that certificates forged by other processes under the same CA, and kept in a
+	// CertificateStore, are not given the same serials
+	private static final SecureRandom serialNumbers = new SecureRandom();
 	private static final HashSet<String> clientCertDefaultOidsNotToCopy = new HashSet<String>();
 
 	/**
@@ -141,8 +145,7 @@ public class CertificateCreator {
 		v3CertGen.setIssuerDN(caCert.getSubjectX500Principal());
 
 		// Firefox actually tracks serial numbers within a CA and refuses to validate if it sees duplicates
-		// This is not a secure serial number generator, (duh!) but it's good enough for our purposes.
-		v3CertGen.setSerialNumber(new BigInteger(Long.toString(System.currentTimeMillis())));
+		v3CertGen.setSerialNumber(new BigInteger(64, serialNumbers).add(BigInteger.ONE));
 
 		v3CertGen.addExtension(
 				X509Extensions.BasicConstraints,
@@ -0,0 +1,246 @@
+package org.browsermob.proxy.selenium;
+
+import org.browsermob.proxy.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps forged certificates on disk, so that they outlive the proxy that minted them and can be reused across
+ * restarts.
+ * <p/>
+ * Certificates are filed under the fingerprint of the CA that signed them, so a store can be shared by CAs without
+ * one ever serving another's certificates. Each CA's directory holds a key store per host and an index, a text file
+ * of host name, file name and expiry lines appended as certificates are added. The index is read the first time a
+ * CA looks something up, and a host's key store only when that host is asked for. Certificates are written by a
+ * background thread, so a proxy's requests never wait on the disk to save one.
+ */
+public class CertificateStore {
+    private static final Log LOG = new Log();
+
+    private static final String INDEX = "index";
+    private static final char[] PASSWORD = "password".toCharArray();
+    private static final String ALIAS = "certificate";
+    private static final String ENCODING = "UTF-8";
+    // don't hand out certificates about to expire; browsers would reject them part way through a test
+    private static final long MIN_VALIDITY_MS = 24 * 60 * 60 * 1000L;
+
+    private final File directory;
+    private final Map<String, Map<String, IndexEntry>> indexes = new HashMap<String, Map<String, IndexEntry>>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CertificateStore Writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public CertificateStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the certificate the CA issued for the host name, or null if there isn't one stored or it has expired.
+     */
+    public KeyStore.PrivateKeyEntry get(X509Certificate caCert, String hostname) {
+        IndexEntry entry;
+        File caDirectory;
+        try {
+            caDirectory = getCADirectory(caCert);
+            synchronized (indexes) {
+                entry = getIndex(caDirectory).get(hostname);
+            }
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Unable to read stored certificates", e);
+            return null;
+        }
+
+        if (entry == null || entry.notAfter < System.currentTimeMillis() + MIN_VALIDITY_MS) {
+            return null;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(new File(caDirectory, entry.file));
+            try {
+                KeyStore keyStore = KeyStore.getInstance("JKS");
+                keyStore.load(in, PASSWORD);
+                return (KeyStore.PrivateKeyEntry) keyStore.getEntry(ALIAS, new KeyStore.PasswordProtection(PASSWORD));
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to read the stored certificate for %s", e, hostname);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the certificate in the background.
+     */
+    public void put(final X509Certificate caCert, final String hostname, final KeyStore.PrivateKeyEntry certificate) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(caCert, hostname, certificate);
+                } catch (Exception e) {
+                    LOG.warn("Unable to store the certificate for %s", e, hostname);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for certificates being saved to reach the disk.
+     */
+    public void flush() throws InterruptedException {
+        final Object done = new Object();
+        synchronized (done) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (done) {
+                        done.notifyAll();
+                    }
+                }
+            });
+            done.wait(TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+
+    private void write(X509Certificate caCert, String hostname, KeyStore.PrivateKeyEntry certificate)
+            throws GeneralSecurityException, IOException {
+        File caDirectory = getCADirectory(caCert);
+        Map<String, IndexEntry> index = getIndex(caDirectory);
+        if (!caDirectory.isDirectory() && !caDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + caDirectory);
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setEntry(ALIAS, certificate, new KeyStore.PasswordProtection(PASSWORD));
+
+        // written aside and renamed, so a reader never sees half a key store
+        String file = hex(digest(hostname.getBytes(ENCODING))) + ".jks";
+        File temp = new File(caDirectory, file + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            keyStore.store(out, PASSWORD);
+        } finally {
+            out.close();
+        }
+        File target = new File(caDirectory, file);
+        if (!temp.renameTo(target)) {
+            target.delete();
+            if (!temp.renameTo(target)) {
+                throw new IOException("Unable to rename " + temp + " to " + target);
+            }
+        }
+
+        long notAfter = ((X509Certificate) certificate.getCertificate()).getNotAfter().getTime();
+        Writer indexOut = new OutputStreamWriter(new FileOutputStream(new File(caDirectory, INDEX), true), ENCODING);
+        try {
+            indexOut.write(hostname + " " + file + " " + notAfter + "\n");
+        } finally {
+            indexOut.close();
+        }
+
+        synchronized (indexes) {
+            index.put(hostname, new IndexEntry(file, notAfter));
+        }
+    }
+
+    private Map<String, IndexEntry> getIndex(File caDirectory) {
+        synchronized (indexes) {
+            Map<String, IndexEntry> index = indexes.get(caDirectory.getName());
+            if (index == null) {
+                index = readIndex(caDirectory);
+                indexes.put(caDirectory.getName(), index);
+            }
+            return index;
+        }
+    }
+
+    private Map<String, IndexEntry> readIndex(File caDirectory) {
+        Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+        File file = new File(caDirectory, INDEX);
+        if (!file.exists()) {
+            return index;
+        }
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length != 3) {
+                        // a line cut short when the process died; the certificate will be minted again
+                        continue;
+                    }
+                    try {
+                        // later lines replace earlier ones for the same host
+                        index.put(fields[0], new IndexEntry(fields[1], Long.parseLong(fields[2])));
+                    } catch (NumberFormatException e) {
+                        // as above
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to read %s, stored certificates will be minted again", e, file);
+        }
+        LOG.fine("Read %d stored certificates from %s", index.size(), file);
+
+        return index;
+    }
+
+    private File getCADirectory(X509Certificate caCert) throws GeneralSecurityException {
+        return new File(directory, hex(digest(caCert.getEncoded())));
+    }
+
+    private static byte[] digest(byte[] bytes) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-1").digest(bytes);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class IndexEntry {
+        private final String file;
+        private final long notAfter;
+
+        private IndexEntry(String file, long notAfter) {
+            this.file = file;
+            this.notAfter = notAfter;
+        }
+    }
+}
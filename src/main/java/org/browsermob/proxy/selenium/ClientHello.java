@@ -0,0 +1,124 @@
+package org.browsermob.proxy.selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the first TLS record a client sends, which carries its ClientHello, to find the host name it asked for with
+ * the server_name extension (SNI, RFC 6066). The bytes read are kept so they can be handed to the TLS implementation
+ * afterwards, as if they had never been read.
+ */
+class ClientHello {
+    private static final int RECORD_HEADER_LENGTH = 5;
+    private static final int HANDSHAKE = 22;
+    private static final int CLIENT_HELLO = 1;
+    private static final int SERVER_NAME = 0;
+    private static final int HOST_NAME = 0;
+    private static final int MAX_RECORD_LENGTH = 16384 + 2048;
+
+    private final byte[] bytes;
+    private final String serverName;
+
+    private ClientHello(byte[] bytes, String serverName) {
+        this.bytes = bytes;
+        this.serverName = serverName;
+    }
+
+    /**
+     * Reads a whole TLS record from the stream, or just its header if it isn't a handshake record.
+     */
+    static ClientHello read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[RECORD_HEADER_LENGTH];
+        data.readFully(header);
+
+        int length = ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+        if (header[0] != HANDSHAKE || length > MAX_RECORD_LENGTH) {
+            // an SSLv2 style hello, or not TLS at all: there is no server name to be had
+            return new ClientHello(header, null);
+        }
+
+        byte[] bytes = new byte[RECORD_HEADER_LENGTH + length];
+        System.arraycopy(header, 0, bytes, 0, RECORD_HEADER_LENGTH);
+        data.readFully(bytes, RECORD_HEADER_LENGTH, length);
+
+        String serverName;
+        try {
+            serverName = parseServerName(new DataInputStream(
+                    new ByteArrayInputStream(bytes, RECORD_HEADER_LENGTH, length)));
+        } catch (EOFException e) {
+            // the ClientHello is split over several records; rare enough to do without the name
+            serverName = null;
+        }
+
+        return new ClientHello(bytes, serverName);
+    }
+
+    private static String parseServerName(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != CLIENT_HELLO) {
+            return null;
+        }
+
+        skip(in, 3);                          // handshake message length
+        skip(in, 2 + 32);                     // client version, random
+        skip(in, in.readUnsignedByte());      // session id
+        skip(in, in.readUnsignedShort());     // cipher suites
+        skip(in, in.readUnsignedByte());      // compression methods
+
+        if (in.available() < 2) {
+            return null;
+        }
+
+        int extensionsLength = in.readUnsignedShort();
+        while (extensionsLength >= 4) {
+            int type = in.readUnsignedShort();
+            int length = in.readUnsignedShort();
+            extensionsLength -= 4 + length;
+
+            if (type != SERVER_NAME) {
+                skip(in, length);
+                continue;
+            }
+
+            int listLength = in.readUnsignedShort();
+            while (listLength >= 3) {
+                int nameType = in.readUnsignedByte();
+                int nameLength = in.readUnsignedShort();
+                listLength -= 3 + nameLength;
+
+                byte[] name = new byte[nameLength];
+                in.readFully(name);
+                if (nameType == HOST_NAME) {
+                    return new String(name, "US-ASCII").toLowerCase();
+                }
+            }
+
+            return null;
+        }
+
+        return null;
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        if (in.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Everything read from the stream.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The host name the client asked for, or null if it didn't say.
+     */
+    String getServerName() {
+        return serverName;
+    }
+}
@@ -0,0 +1,247 @@
+package org.browsermob.proxy.selenium;
+
+import org.browsermob.proxy.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key pairs for forged certificates, generated ahead of time so that minting a certificate costs a signature rather
+ * than a key generation.
+ * <p/>
+ * Each pool keeps up to {@link #setSize(int) size} key pairs ready, topped up by a shared background thread as they
+ * are taken. When a pool runs dry the caller generates its own key pair, as it would have without the pool. Keys are
+ * 2048 bit RSA by default; {@link #setAlgorithm(String, int)} switches to EC keys, which are far cheaper to generate
+ * and to handshake with. With {@link #setReuseKey(boolean)} one key pair is used for every certificate, and nothing
+ * needs to be generated at all.
+ */
+public class KeyPairPool {
+    private static final Log LOG = new Log();
+
+    public static final String RSA = "RSA";
+    public static final String EC = "EC";
+    public static final int DEFAULT_SIZE = 8;
+
+    private static final long IDLE_WAIT_MS = 1000;
+
+    private static final Object refill = new Object();
+    private static Set<KeyPairPool> pools = new CopyOnWriteArraySet<KeyPairPool>();
+
+    static {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    boolean generated = false;
+                    for (KeyPairPool pool : pools) {
+                        try {
+                            generated |= pool.refillOne();
+                        } catch (Exception e) {
+                            LOG.severe("Unexpected problem while generating key pairs", e);
+                        }
+                    }
+
+                    if (!generated) {
+                        synchronized (refill) {
+                            try {
+                                refill.wait(IDLE_WAIT_MS);
+                            } catch (InterruptedException e) {
+                                // this is OK
+                            }
+                        }
+                    }
+                }
+            }
+        }, "KeyPairPool Refill Thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private final ConcurrentLinkedQueue<Pooled> keyPairs = new ConcurrentLinkedQueue<Pooled>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile Spec spec = new Spec(RSA, 2048);
+    private volatile int size = DEFAULT_SIZE;
+    private volatile boolean reuseKey = false;
+    private volatile KeyPair sharedKeyPair;
+
+    public KeyPairPool() {
+        pools.add(this);
+        wakeRefill();
+    }
+
+    /**
+     * Returns a key pair nobody else has been given, unless keys are being reused.
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        if (reuseKey) {
+            return getSharedKeyPair();
+        }
+
+        Spec current = spec;
+        Pooled pooled;
+        while ((pooled = keyPairs.poll()) != null) {
+            count.decrementAndGet();
+            if (pooled.spec == current) {
+                break;
+            }
+        }
+        wakeRefill();
+
+        taken.incrementAndGet();
+        if (pooled != null) {
+            return pooled.keyPair;
+        }
+
+        misses.incrementAndGet();
+        return current.generate();
+    }
+
+    private synchronized KeyPair getSharedKeyPair() throws GeneralSecurityException {
+        if (sharedKeyPair == null) {
+            sharedKeyPair = spec.generate();
+        }
+        return sharedKeyPair;
+    }
+
+    /**
+     * Generates a key pair if the pool is short of one, returning whether it did.
+     */
+    private boolean refillOne() throws GeneralSecurityException {
+        if (reuseKey || count.get() >= size) {
+            return false;
+        }
+
+        Spec current = spec;
+        KeyPair keyPair = current.generate();
+        synchronized (this) {
+            // the pool may have been resized or reconfigured while the key was being generated
+            if (current == spec && !reuseKey && count.get() < size) {
+                keyPairs.offer(new Pooled(current, keyPair));
+                count.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    private static void wakeRefill() {
+        synchronized (refill) {
+            refill.notifyAll();
+        }
+    }
+
+    /**
+     * Stops the background thread from refilling this pool. Key pairs can still be taken, but will be generated by
+     * the caller once the ones already pooled are gone.
+     */
+    public void release() {
+        pools.remove(this);
+    }
+
+    public String getAlgorithm() {
+        return spec.algorithm;
+    }
+
+    public int getKeySize() {
+        return spec.keySize;
+    }
+
+    /**
+     * Sets the kind of key to generate from now on, such as RSA with 2048 bits or EC with 256. Pooled keys of the
+     * previous kind are discarded.
+     */
+    public void setAlgorithm(String algorithm, int keySize) throws GeneralSecurityException {
+        Spec spec = new Spec(algorithm, keySize);
+        // fail here, rather than on the refill thread
+        KeyPairGenerator.getInstance(algorithm).initialize(keySize);
+
+        synchronized (this) {
+            this.spec = spec;
+            sharedKeyPair = null;
+        }
+        wakeRefill();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Sets how many key pairs are kept ready; 0 turns pooling off.
+     */
+    public void setSize(int size) {
+        synchronized (this) {
+            this.size = size;
+            while (count.get() > size && keyPairs.poll() != null) {
+                count.decrementAndGet();
+            }
+        }
+        wakeRefill();
+    }
+
+    public boolean isReuseKey() {
+        return reuseKey;
+    }
+
+    /**
+     * Whether every certificate is given the same key pair. Browsers don't mind, and forging a certificate becomes
+     * nothing but a signature, but anyone who gets hold of the key can impersonate every host at once.
+     */
+    public void setReuseKey(boolean reuseKey) {
+        this.reuseKey = reuseKey;
+        wakeRefill();
+    }
+
+    /**
+     * The number of key pairs ready to be taken.
+     */
+    public int getAvailable() {
+        return count.get();
+    }
+
+    public long getTaken() {
+        return taken.get();
+    }
+
+    /**
+     * The number of key pairs that had to be generated by the caller because the pool was empty.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Spec {
+        private final String algorithm;
+        private final int keySize;
+
+        private Spec(String algorithm, int keySize) {
+            this.algorithm = algorithm;
+            this.keySize = keySize;
+        }
+
+        private KeyPair generate() throws GeneralSecurityException {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+            generator.initialize(keySize);
+            return generator.generateKeyPair();
+        }
+    }
+
+    private static class Pooled {
+        private final Spec spec;
+        private final KeyPair keyPair;
+
+        private Pooled(Spec spec, KeyPair keyPair) {
+            this.spec = spec;
+            this.keyPair = keyPair;
+        }
+    }
+}
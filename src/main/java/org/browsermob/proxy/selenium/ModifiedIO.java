@@ -1,5 +1,6 @@
 package org.browsermob.proxy.selenium;
 
+import org.browsermob.proxy.jetty.util.ByteArrayPool;
 import org.browsermob.proxy.jetty.util.IO;
 
 import java.io.*;
@@ -27,38 +28,42 @@ public class ModifiedIO {
                             OutputStream out,
                             long byteCount)
             throws IOException {
-        byte buffer[] = new byte[IO.bufferSize];
-        int len;
-
-        long returnVal = 0;
-
-        if (byteCount >= 0) {
-            while (byteCount > 0) {
-                if (byteCount < IO.bufferSize)
-                    len = in.read(buffer, 0, (int) byteCount);
-                else
-                    len = in.read(buffer, 0, IO.bufferSize);
-
-                if (len == -1) {
-                    break;
+        byte buffer[] = ByteArrayPool.getByteArray(IO.bufferSize);
+        try {
+            int len;
+
+            long returnVal = 0;
+
+            if (byteCount >= 0) {
+                while (byteCount > 0) {
+                    if (byteCount < IO.bufferSize)
+                        len = in.read(buffer, 0, (int) byteCount);
+                    else
+                        len = in.read(buffer, 0, IO.bufferSize);
+
+                    if (len == -1) {
+                        break;
+                    }
+                    returnVal += len;
+
+                    byteCount -= len;
+                    out.write(buffer, 0, len);
                 }
-                returnVal += len;
-
-                byteCount -= len;
-                out.write(buffer, 0, len);
-            }
-        } else {
-            while (true) {
-                len = in.read(buffer, 0, IO.bufferSize);
-                if (len < 0) {
-                    break;
+            } else {
+                while (true) {
+                    len = in.read(buffer, 0, IO.bufferSize);
+                    if (len < 0) {
+                        break;
+                    }
+                    returnVal += len;
+                    out.write(buffer, 0, len);
                 }
-                returnVal += len;
-                out.write(buffer, 0, len);
             }
-        }
 
-        return returnVal;
+            return returnVal;
+        } finally {
+            ByteArrayPool.returnByteArray(buffer);
+        }
     }
 
     /**
@@ -68,38 +73,42 @@ public class ModifiedIO {
                             Writer out,
                             long byteCount)
             throws IOException {
-        char buffer[] = new char[IO.bufferSize];
-        int len;
-
-        long returnVal = 0;
-
-        if (byteCount >= 0) {
-            while (byteCount > 0) {
-                if (byteCount < IO.bufferSize)
-                    len = in.read(buffer, 0, (int) byteCount);
-                else
-                    len = in.read(buffer, 0, IO.bufferSize);
-
-                if (len == -1) {
-                    break;
+        char buffer[] = ByteArrayPool.getCharArray(IO.bufferSize);
+        try {
+            int len;
+
+            long returnVal = 0;
+
+            if (byteCount >= 0) {
+                while (byteCount > 0) {
+                    if (byteCount < IO.bufferSize)
+                        len = in.read(buffer, 0, (int) byteCount);
+                    else
+                        len = in.read(buffer, 0, IO.bufferSize);
+
+                    if (len == -1) {
+                        break;
+                    }
+                    returnVal += len;
+
+                    byteCount -= len;
+                    out.write(buffer, 0, len);
                 }
-                returnVal += len;
-
-                byteCount -= len;
-                out.write(buffer, 0, len);
-            }
-        } else {
-            while (true) {
-                len = in.read(buffer, 0, IO.bufferSize);
-                if (len == -1) {
-                    break;
+            } else {
+                while (true) {
+                    len = in.read(buffer, 0, IO.bufferSize);
+                    if (len == -1) {
+                        break;
+                    }
+                    returnVal += len;
+                    out.write(buffer, 0, len);
                 }
-                returnVal += len;
-                out.write(buffer, 0, len);
             }
-        }
 
-        return returnVal;
+            return returnVal;
+        } finally {
+            ByteArrayPool.returnCharArray(buffer);
+        }
     }
 
 }
@@ -2,18 +2,25 @@ package org.browsermob.proxy.selenium;
 
 import org.browsermob.proxy.jetty.http.*;
 import org.browsermob.proxy.jetty.http.handler.AbstractHttpHandler;
+import org.browsermob.proxy.jetty.http.nio.SocketChannelListener;
 import org.browsermob.proxy.jetty.util.IO;
 import org.browsermob.proxy.jetty.util.InetAddrPort;
 import org.browsermob.proxy.jetty.util.StringMap;
 import org.browsermob.proxy.jetty.util.URI;
-import org.browsermob.proxy.util.ResourceExtractor;
 import org.browsermob.proxy.util.TrustEverythingSSLTrustManager;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLServerSocketFactory;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,7 +44,16 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
       protected int _tunnelTimeoutMs = 250;
       private boolean _anonymous = false;
       private transient boolean _chained = false;
-      private final Map<String,SslRelay> _sslMap = new LinkedHashMap<String, SslRelay>();
+      public static final int DEFAULT_MAX_SSL_RELAYS = 64;
+
+      // in access order, so the least recently used relays come first
+      private final LinkedHashMap<String,SslRelay> _sslMap = new LinkedHashMap<String, SslRelay>(16, 0.75f, true);
+      private int maxSslRelays = DEFAULT_MAX_SSL_RELAYS;
+      private final AtomicLong sslRelaysStarted = new AtomicLong();
+      private final AtomicLong sslRelaysEvicted = new AtomicLong();
+      private SslInterceptor _sslInterceptor;
+      private boolean interceptSslInProcess = true;
+      private boolean wildcardCertificates = false;
       @SuppressWarnings("unused")
       private String sslKeystorePath;
       private boolean useCyberVillains = true;
@@ -442,6 +458,15 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
 
     /* ------------------------------------------------------------ */
       public void handleConnect(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException {
+          handleConnect(pathInContext, pathParams, request, response, null);
+      }
+
+      /**
+       * @param requestedHost the host the browser asked for, when the request's URI has since been remapped to
+       *                      another; certificates are forged for it rather than for the host connected to
+       */
+      protected void handleConnect(String pathInContext, String pathParams, HttpRequest request, HttpResponse response,
+                                   String requestedHost) throws HttpException, IOException {
           URI uri = request.getURI();
 
           try {
@@ -461,9 +486,20 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
                   HttpConnection http_connection = request.getHttpConnection();
                   http_connection.forceClose();
 
+                  if (useCyberVillains && interceptSslInProcess) {
+                      // TLS is terminated right on this connection once the 200 has gone back to the browser
+                      HttpTunnel tunnel = getSslInterceptor().newTunnel(http_connection, addrPort.getHost(), addrPort.getPort(),
+                              requestedHost != null ? requestedHost : addrPort.getHost());
+                      http_connection.setHttpTunnel(tunnel);
+                      response.setStatus(HttpResponse.__200_OK);
+                      response.setContentLength(0);
+                      request.setHandled(true);
+                      return;
+                  }
+
                   HttpServer server = http_connection.getHttpServer();
 
-                  SslRelay listener = getSslRelayOrCreateNew(uri, addrPort, server);
+                  SslRelay listener = getSslRelayOrCreateNew(uri, addrPort, server, requestedHost);
 
                   int port = listener.getPort();
 
@@ -503,14 +539,47 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
           }
       }
 
-      protected SslRelay getSslRelayOrCreateNew(URI uri, InetAddrPort addrPort, HttpServer server) throws Exception {
+      protected synchronized SslInterceptor getSslInterceptor() throws GeneralSecurityException {
+          if (_sslInterceptor == null) {
+              _sslInterceptor = new SslInterceptor(this);
+          }
+          return _sslInterceptor;
+      }
+
+      /**
+       * Returns a certificate for the host name, signed by the CyberVillains CA, along with its private key.
+       * Certificates are minted in memory and shared by every proxy in the JVM; see {@link CertificateAuthority}.
+       */
+      protected KeyStore.PrivateKeyEntry getCertificate(String hostname) throws GeneralSecurityException {
+          if (wildcardCertificates) {
+              hostname = CertificateAuthority.getWildcardHostname(hostname);
+          }
+          return CertificateAuthority.getCyberVillains().getCertificate(hostname);
+      }
+
+      /**
+       * Mints the certificates for the hosts ahead of the requests that will need them.
+       */
+      public void mintCertificates(Collection<String> hostnames) throws GeneralSecurityException {
+          for (String hostname : hostnames) {
+              getCertificate(hostname);
+          }
+      }
+
+      /**
+       * @param requestedHost the host the browser asked for, if the URI has been remapped to another, or null. Hosts
+       *                      remapped to the same one get relays of their own, each with a certificate for its host.
+       */
+      protected SslRelay getSslRelayOrCreateNew(URI uri, InetAddrPort addrPort, HttpServer server, String requestedHost) throws Exception {
+          String key = requestedHost == null ? uri.toString() : requestedHost + ">" + uri.toString();
           SslRelay listener;
+          List<SslRelay> evicted = Collections.emptyList();
           synchronized(_sslMap) {
-              listener = _sslMap.get(uri.toString());
+              listener = _sslMap.get(key);
               if (listener==null)
               {
                   // we do this because the URI above doesn't actually have the host broken up (it returns null on getHost())
-                  String host = new URL("https://" + uri.toString()).getHost();
+                  String host = requestedHost != null ? requestedHost : new URL("https://" + uri.toString()).getHost();
 
                   listener = new SslRelay(addrPort);
 
@@ -539,12 +608,119 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
                           throw e;
                       }
                   }
-                  _sslMap.put(uri.toString(),listener);
+                  _sslMap.put(key,listener);
+                  sslRelaysStarted.incrementAndGet();
+                  evicted = trimSslRelays(listener);
               }
           }
+          // stopping a relay takes a while, so it's done without holding up other CONNECTs
+          for (SslRelay relay : evicted) {
+              stopSslRelay(relay);
+          }
           return listener;
       }
 
+      /**
+       * Removes the least recently used relays beyond {@link #setMaxSslRelays the limit}, other than the one to keep,
+       * returning them to be stopped. Relays still serving a connection are left alone, so the limit can be exceeded
+       * while every relay is busy.
+       */
+      private List<SslRelay> trimSslRelays(SslRelay keep) {
+          List<SslRelay> evicted = new ArrayList<SslRelay>();
+          int excess = _sslMap.size() - maxSslRelays;
+          Iterator<SslRelay> eldest = _sslMap.values().iterator();
+          while (excess > 0 && eldest.hasNext()) {
+              SslRelay relay = eldest.next();
+              if (relay != keep && relay.isIdle()) {
+                  eldest.remove();
+                  evicted.add(relay);
+                  sslRelaysEvicted.incrementAndGet();
+                  excess--;
+              }
+          }
+          return evicted;
+      }
+
+      /**
+       * Stops the relay and unregisters it from its server, freeing its socket, threads and key store.
+       */
+      protected void stopSslRelay(SslRelay relay) {
+          HttpServer server = relay.getHttpServer();
+          if (server != null) {
+              // removing a listener stops it too
+              server.removeListener(relay);
+          } else if (relay.isStarted()) {
+              try {
+                  relay.stop();
+              } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+              }
+          }
+      }
+
+      /**
+       * Stops every relay.
+       */
+      public void stopSslRelays() {
+          List<SslRelay> relays;
+          synchronized (_sslMap) {
+              relays = new ArrayList<SslRelay>(_sslMap.values());
+              _sslMap.clear();
+          }
+          for (SslRelay relay : relays) {
+              stopSslRelay(relay);
+          }
+      }
+
+      public int getMaxSslRelays() {
+          synchronized (_sslMap) {
+              return maxSslRelays;
+          }
+      }
+
+      /**
+       * Sets how many SSL relays are kept running when HTTPS isn't {@link #setInterceptSslInProcess intercepted in
+       * process}. Each one holds a listening socket, a thread pool and a key store, so the least recently used idle
+       * ones are stopped beyond this.
+       */
+      public void setMaxSslRelays(int maxSslRelays) {
+          if (maxSslRelays < 1) {
+              throw new IllegalArgumentException("At least one SSL relay must be kept");
+          }
+
+          List<SslRelay> evicted;
+          synchronized (_sslMap) {
+              this.maxSslRelays = maxSslRelays;
+              evicted = trimSslRelays(null);
+          }
+          for (SslRelay relay : evicted) {
+              stopSslRelay(relay);
+          }
+      }
+
+      /**
+       * The number of SSL relays running.
+       */
+      public int getSslRelayCount() {
+          synchronized (_sslMap) {
+              return _sslMap.size();
+          }
+      }
+
+      /**
+       * The number of SSL relays started, including ones started again after being evicted.
+       */
+      public long getSslRelaysStarted() {
+          return sslRelaysStarted.get();
+      }
+
+      /**
+       * The number of SSL relays stopped to stay within the limit.
+       */
+      public long getSslRelaysEvicted() {
+          return sslRelaysEvicted.get();
+      }
+
       protected void wireUpSslWithRemoteService(String host, SslRelay listener) throws IOException {
           // grab a keystore that has been signed by a CA cert that has already been imported in to the browser
           // note: this logic assumes the tester is using *custom and has imported the CA cert in to IE/Firefox/etc
@@ -572,20 +748,13 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
 
       protected void wireUpSslWithCyberVilliansCA(String host, SslRelay listener) {
           try {
-              File root = File.createTempFile("seleniumSslSupport", host);
-              root.delete();
-              root.mkdirs();
-
-              ResourceExtractor.extractResourcePath(getClass(), "/sslSupport", root);
+              KeyStore.PrivateKeyEntry certificate = getCertificate(host);
 
+              KeyStore keyStore = KeyStore.getInstance("JKS");
+              keyStore.load(null, null);
+              keyStore.setKeyEntry(host, certificate.getPrivateKey(), "password".toCharArray(), certificate.getCertificateChain());
 
-              KeyStoreManager mgr = new KeyStoreManager(root);
-              mgr.getCertificateByHostname(host);
-              mgr.getKeyStore().deleteEntry(KeyStoreManager._caPrivKeyAlias);
-              mgr.persist();
-
-              listener.setKeystore(new File(root, "cybervillainsCA.jks").getAbsolutePath());
-              listener.setNukeDirOrFile(root);
+              listener.setKeyStore(keyStore);
           } catch (Exception e) {
               throw new RuntimeException(e);
           }
@@ -593,14 +762,20 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
 
       /* ------------------------------------------------------------ */
       protected HttpTunnel newHttpTunnel(HttpRequest request, HttpResponse response, InetAddress iaddr, int port, int timeoutMS) throws IOException {
+          // a listener with channels of its own relays a tunnel to a socket with a channel on a selector; a tunnel
+          // copied by threads needs a plain socket, as their timed reads would take a channel out of blocking mode
+          HttpListener listener = request.getHttpConnection().getListener();
+          boolean relay = listener instanceof SocketChannelListener && !((SocketChannelListener) listener).isShaped();
+          Socket socket = relay ? SocketChannel.open().socket() : new Socket();
           try {
-              Socket socket = new Socket(iaddr, port);
+              socket.connect(new InetSocketAddress(iaddr, port));
               socket.setSoTimeout(timeoutMS);
               socket.setTcpNoDelay(true);
               return new HttpTunnel(socket, null, null);
           }
           catch (IOException e) {
               log.log(Level.FINE, "Exception thrown", e);
+              socket.close();
               response.sendError(HttpResponse.__400_Bad_Request);
               return null;
           }
@@ -729,6 +904,30 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
           this.sslKeystorePath = sslKeystorePath;
       }
 
+      public boolean isInterceptSslInProcess() {
+          return interceptSslInProcess;
+      }
+
+      /**
+       * Whether HTTPS is intercepted on the browser's own connection (the default), or by starting an {@link SslRelay}
+       * listener for each host and tunnelling the browser to it.
+       */
+      public void setInterceptSslInProcess(boolean interceptSslInProcess) {
+          this.interceptSslInProcess = interceptSslInProcess;
+      }
+
+      public boolean isWildcardCertificates() {
+          return wildcardCertificates;
+      }
+
+      /**
+       * Whether hosts are given a wildcard certificate shared with their siblings, such as *.example.com for
+       * img1.example.com and img2.example.com, rather than one each.
+       */
+      public void setWildcardCertificates(boolean wildcardCertificates) {
+          this.wildcardCertificates = wildcardCertificates;
+      }
+
       public void setShutdownLock(Object shutdownLock) {
 
           this.shutdownLock = shutdownLock;
@@ -738,16 +937,46 @@ public class SeleniumProxyHandler extends AbstractHttpHandler {
       {
           InetAddrPort _addr;
           File nukeDirOrFile;
+          KeyStore keyStore;
 
           SslRelay(InetAddrPort addr)
           {
               _addr=addr;
           }
 
+          /**
+           * Whether none of the relay's threads are serving a connection.
+           */
+          boolean isIdle() {
+              return getThreads() == getIdleThreads();
+          }
+
           public void setNukeDirOrFile(File nukeDirOrFile) {
               this.nukeDirOrFile = nukeDirOrFile;
           }
 
+          /**
+           * Serves the certificate in the key store, rather than one loaded from {@link #setKeystore the keystore file}.
+           * Its keys must be protected with the password "password".
+           */
+          public void setKeyStore(KeyStore keyStore) {
+              this.keyStore = keyStore;
+          }
+
+          protected SSLServerSocketFactory createFactory() throws Exception {
+              if (keyStore == null) {
+                  return super.createFactory();
+              }
+
+              SSLContext context = getProvider() == null
+                      ? SSLContext.getInstance(getProtocol()) : SSLContext.getInstance(getProtocol(), getProvider());
+              KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(getAlgorithm());
+              keyManagerFactory.init(keyStore, "password".toCharArray());
+              context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+              return context.getServerSocketFactory();
+          }
+
           protected void customizeRequest(Socket socket, HttpRequest request)
           {
               super.customizeRequest(socket,request);
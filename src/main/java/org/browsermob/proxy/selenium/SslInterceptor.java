@@ -0,0 +1,452 @@
+package org.browsermob.proxy.selenium;
+
+import org.browsermob.proxy.jetty.http.HttpConnection;
+import org.browsermob.proxy.jetty.http.HttpHandler;
+import org.browsermob.proxy.jetty.http.HttpListener;
+import org.browsermob.proxy.jetty.http.HttpMessage;
+import org.browsermob.proxy.jetty.http.HttpRequest;
+import org.browsermob.proxy.jetty.http.HttpServer;
+import org.browsermob.proxy.jetty.http.HttpTunnel;
+import org.browsermob.proxy.jetty.util.URI;
+import org.browsermob.proxy.util.Log;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Terminates TLS for CONNECT requests on the browser's own connection, instead of starting an {@link
+ * SeleniumProxyHandler.SslRelay} listener for every host and tunnelling the browser to it over a loopback socket.
+ * <p/>
+ * Once the CONNECT has been answered, the tunnel reads the browser's ClientHello to learn the host it wants (SNI),
+ * falling back to the CONNECT host, and handshakes with a certificate forged for that host. The decrypted requests
+ * are then served on the same thread, by the same {@link HttpServer}, just as the relay would have served them.
+ * Intercepting another host costs a certificate, but no port, listener or threads.
+ * <p/>
+ * All tunnels share one {@link SSLContext}, whose key manager hands each handshake the certificate picked for it.
+ */
+public class SslInterceptor {
+    private static final Log LOG = new Log();
+
+    private final SeleniumProxyHandler handler;
+    private final SSLContext sslContext;
+    private final ConcurrentMap<Socket, String> aliases = new ConcurrentHashMap<Socket, String>();
+    private final ConcurrentMap<String, KeyStore.PrivateKeyEntry> certificates =
+            new ConcurrentHashMap<String, KeyStore.PrivateKeyEntry>();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final AtomicLong nextAlias = new AtomicLong();
+
+    public SslInterceptor(SeleniumProxyHandler handler) throws GeneralSecurityException {
+        this.handler = handler;
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(new KeyManager[]{new ServerKeyManager()}, null, null);
+    }
+
+    /**
+     * Creates the tunnel to set on the browser connection once the CONNECT has been accepted.
+     *
+     * @param host          the host the CONNECT asked for, where the decrypted requests will be sent
+     * @param requestedHost the host the browser asked for before any remapping, which the certificate is forged for
+     *                      when the browser sends no server name
+     */
+    public HttpTunnel newTunnel(HttpConnection connection, String host, int port, String requestedHost) {
+        return new Tunnel(connection, host, port, requestedHost);
+    }
+
+    /**
+     * The number of TLS handshakes completed with browsers.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    /**
+     * Serves the requests of one intercepted connection, acting as the listener they arrived on.
+     * <p/>
+     * Its server, host and port are those of the listener that accepted the CONNECT, and are fixed for as long as
+     * the tunnel lives, so the setters do nothing; a tunnel must not reconfigure the proxy's own listener.
+     */
+    private class Tunnel extends HttpTunnel implements HttpListener {
+        private final HttpConnection connection;
+        private final HttpListener listener;
+        private final String host;
+        private final int port;
+        private final String requestedHost;
+
+        private Tunnel(HttpConnection connection, String host, int port, String requestedHost) {
+            this.connection = connection;
+            this.listener = connection.getListener();
+            this.host = host;
+            this.port = port;
+            this.requestedHost = requestedHost;
+        }
+
+        @Override
+        public void handle(InputStream in, OutputStream out) {
+            Socket socket = (Socket) connection.getConnection();
+            SSLSocket sslSocket = null;
+            try {
+                ClientHello hello = ClientHello.read(in);
+                String serverName = hello.getServerName();
+                KeyStore.PrivateKeyEntry certificate = handler.getCertificate(
+                        serverName != null ? serverName : requestedHost);
+
+                // the TLS layer reads the ClientHello again, followed by whatever the browser sends after it
+                Socket layered = new LayeredSocket(socket,
+                        new SequenceInputStream(new ByteArrayInputStream(hello.getBytes()), in), out);
+                sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(layered, null, port, true);
+                sslSocket.setUseClientMode(false);
+
+                String alias = host + "#" + nextAlias.incrementAndGet();
+                certificates.put(alias, certificate);
+                aliases.put(sslSocket, alias);
+                try {
+                    sslSocket.startHandshake();
+                    handshakes.incrementAndGet();
+                } finally {
+                    aliases.remove(sslSocket);
+                    certificates.remove(alias);
+                }
+
+                HttpConnection https = new HttpConnection(this, connection.getRemoteInetAddress(),
+                        sslSocket.getInputStream(), sslSocket.getOutputStream(), sslSocket);
+                https.handle();
+            } catch (SSLException e) {
+                failedHandshakes.incrementAndGet();
+                LOG.fine("TLS with the browser failed for %s: %s", host, e.getMessage());
+            } catch (IOException e) {
+                LOG.fine("Intercepted connection to %s ended: %s", host, e.getMessage());
+            } catch (Exception e) {
+                LOG.warn("Unable to intercept the connection to %s", e, host);
+            } finally {
+                try {
+                    if (sslSocket != null) {
+                        sslSocket.close();
+                    } else {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // ignore, the connection is finished either way
+                }
+            }
+        }
+
+        @Override
+        public void customizeRequest(HttpConnection connection, HttpRequest request) {
+            // as SslRelay does: a new absolute URI leaves the path and query exactly as the browser sent them
+            request.setURI(new URI("https://" + host + ":" + port + request.getURI().toString()));
+        }
+
+        @Override
+        public void persistConnection(HttpConnection connection) {
+        }
+
+        @Override
+        public HttpServer getHttpServer() {
+            return listener.getHttpServer();
+        }
+
+        @Override
+        public void setHttpServer(HttpServer server) {
+            // fixed, see above
+        }
+
+        @Override
+        public String getHost() {
+            return listener.getHost();
+        }
+
+        @Override
+        public void setHost(String host) throws UnknownHostException {
+            // fixed, see above
+        }
+
+        @Override
+        public int getPort() {
+            return listener.getPort();
+        }
+
+        @Override
+        public void setPort(int port) {
+            // fixed, see above
+        }
+
+        @Override
+        public int getBufferSize() {
+            return listener.getBufferSize();
+        }
+
+        @Override
+        public int getBufferReserve() {
+            return listener.getBufferReserve();
+        }
+
+        @Override
+        public String getDefaultScheme() {
+            return HttpMessage.__SSL_SCHEME;
+        }
+
+        @Override
+        public boolean isLowOnResources() {
+            return listener.isLowOnResources();
+        }
+
+        @Override
+        public boolean isOutOfResources() {
+            return listener.isOutOfResources();
+        }
+
+        @Override
+        public boolean isIntegral(HttpConnection connection) {
+            return true;
+        }
+
+        @Override
+        public String getIntegralScheme() {
+            return HttpMessage.__SSL_SCHEME;
+        }
+
+        @Override
+        public int getIntegralPort() {
+            return 0;
+        }
+
+        @Override
+        public boolean isConfidential(HttpConnection connection) {
+            return true;
+        }
+
+        @Override
+        public String getConfidentialScheme() {
+            return HttpMessage.__SSL_SCHEME;
+        }
+
+        @Override
+        public int getConfidentialPort() {
+            return 0;
+        }
+
+        @Override
+        public HttpHandler getHttpHandler() {
+            return null;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isStarted() {
+            return listener.isStarted();
+        }
+    }
+
+    /**
+     * Gives each handshake the certificate its tunnel registered for it.
+     */
+    private class ServerKeyManager extends X509ExtendedKeyManager {
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            String alias = aliases.get(socket);
+            if (alias == null) {
+                return null;
+            }
+
+            String algorithm = certificates.get(alias).getPrivateKey().getAlgorithm();
+            if (algorithm.equals("ECDSA")) {
+                algorithm = "EC";
+            }
+
+            return keyType.equals(algorithm) || keyType.startsWith(algorithm + "_") ? alias : null;
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            KeyStore.PrivateKeyEntry certificate = certificates.get(alias);
+            return certificate == null ? null : (X509Certificate[]) certificate.getCertificateChain();
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            KeyStore.PrivateKeyEntry certificate = certificates.get(alias);
+            return certificate == null ? null : certificate.getPrivateKey();
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return null;
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return null;
+        }
+    }
+
+    /**
+     * Presents the browser connection's streams as a socket for the TLS layer to sit on, delegating everything else to
+     * the real socket. The streams are the ones the connection was reading and writing, so anything they do (such as
+     * throttling) carries on under TLS.
+     */
+    private static class LayeredSocket extends Socket {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private LayeredSocket(Socket socket, InputStream in, OutputStream out) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return socket.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return socket.getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return socket.getSoTimeout();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            socket.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return socket.getTcpNoDelay();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            socket.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return socket.getKeepAlive();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            socket.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return socket.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return socket.isOutputShutdown();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.browsermob.proxy.util;
 
+import org.browsermob.proxy.jetty.util.ByteArrayPool;
+
 import java.io.*;
 import java.util.Date;
 
@@ -7,10 +9,14 @@ public class IOUtils {
     private static final int BUFFER = 4096;
 
     public static void copy(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[BUFFER];
-        int length;
-        while ((length = in.read(buffer)) != -1) {
-            out.write(buffer, 0, length);
+        byte[] buffer = ByteArrayPool.getByteArray(BUFFER);
+        try {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            ByteArrayPool.returnByteArray(buffer);
         }
 
         out.close();
@@ -20,7 +26,7 @@ public class IOUtils {
     public static Stats copyWithStats(InputStream is, OutputStream os, BandwidthSimulator simulator, boolean copyOutputForReadingLater) throws IOException {
         Date timeToFirstByte = null;
 
-        byte[] buffer = new byte[BUFFER];
+        byte[] buffer = ByteArrayPool.getByteArray(BUFFER);
         int length;
         int bytes = 0;
 
@@ -58,6 +64,8 @@ public class IOUtils {
                 bais = new ByteArrayInputStream(baos.toByteArray());
             }
         } finally {
+            ByteArrayPool.returnByteArray(buffer);
+
             try {
                 is.close();
             } catch (IOException e) {
@@ -76,10 +84,14 @@ public class IOUtils {
 
     public static String readFully(InputStream in) throws IOException {
         StringBuilder sb = new StringBuilder();
-        byte[] buffer = new byte[BUFFER];
-        int length;
-        while ((length = in.read(buffer)) != -1) {
-            sb.append(new String(buffer, 0, length, "UTF-8"));
+        byte[] buffer = ByteArrayPool.getByteArray(BUFFER);
+        try {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                sb.append(new String(buffer, 0, length, "UTF-8"));
+            }
+        } finally {
+            ByteArrayPool.returnByteArray(buffer);
         }
 
         in.close();
@@ -89,10 +101,14 @@ public class IOUtils {
 
     public static String readFully(InputStreamReader in) throws IOException {
         StringBuilder sb = new StringBuilder();
-        char[] buffer = new char[BUFFER];
-        int length;
-        while ((length = in.read(buffer)) != -1) {
-            sb.append(new String(buffer, 0, length));
+        char[] buffer = ByteArrayPool.getCharArray(BUFFER);
+        try {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                sb.append(buffer, 0, length);
+            }
+        } finally {
+            ByteArrayPool.returnCharArray(buffer);
         }
 
         in.close();
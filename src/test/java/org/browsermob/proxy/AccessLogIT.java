@@ -0,0 +1,118 @@
+package org.browsermob.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the access logs of two {@link ProxyServer}s, each to its own file.
+ */
+public class AccessLogIT {
+    private HttpServer origin;
+    private File logs;
+
+    @Before
+    public void startOrigin() throws Exception {
+        origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        origin.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "Hello".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        origin.start();
+
+        logs = File.createTempFile("access", "logs");
+        logs.delete();
+        logs.mkdirs();
+    }
+
+    @After
+    public void stopOrigin() {
+        origin.stop(0);
+        for (File file : logs.listFiles()) {
+            file.delete();
+        }
+        logs.delete();
+    }
+
+    @Test
+    public void logsEveryRequestOfEachProxyToItsOwnFile() throws Exception {
+        ProxyServer first = startProxy(new File(logs, "first.log"));
+        ProxyServer second = startProxy(new File(logs, "second.log"));
+        try {
+            for (int i = 0; i < 5; i++) {
+                get(first, "/first/" + i);
+            }
+            get(second, "/second");
+        } finally {
+            first.stop();
+            second.stop();
+        }
+
+        List<String> firstLines = lines(new File(logs, "first.log"));
+        assertEquals(5, firstLines.size());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(firstLines.get(i), firstLines.get(i).contains("\"GET http://127.0.0.1:" + origin.getAddress().getPort() + "/first/" + i + " HTTP/1.1\" 200"));
+        }
+        assertEquals(1, lines(new File(logs, "second.log")).size());
+        assertEquals(5, first.getAccessLog().getLogged());
+        assertEquals(0, first.getAccessLog().getDropped());
+    }
+
+    private ProxyServer startProxy(File log) throws Exception {
+        ProxyServer proxy = new ProxyServer(0);
+        proxy.setAccessLog(log.getAbsolutePath());
+        proxy.start();
+        proxy.remapHost("localhost", "127.0.0.1");
+        return proxy;
+    }
+
+    private void get(ProxyServer proxy, String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + origin.getAddress().getPort() + path);
+        Proxy viaProxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", proxy.getPort()));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection(viaProxy);
+        assertEquals(200, connection.getResponseCode());
+        InputStream in = connection.getInputStream();
+        while (in.read() != -1) {
+            // drain the body so the connection can be reused
+        }
+        in.close();
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            in.close();
+        }
+    }
+}
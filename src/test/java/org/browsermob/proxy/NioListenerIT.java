@@ -0,0 +1,136 @@
+package org.browsermob.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Proxies plain HTTP through a {@link ProxyServer} using the selector-based listener.
+ */
+public class NioListenerIT {
+    private static HttpServer origin;
+    private static int originPort;
+
+    private ProxyServer proxy;
+
+    @BeforeClass
+    public static void startOrigin() throws Exception {
+        origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        origin.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = ("Hello " + exchange.getRequestURI()).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        origin.start();
+        originPort = origin.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopOrigin() {
+        origin.stop(0);
+    }
+
+    @Before
+    public void startProxy() throws Exception {
+        proxy = new ProxyServer(0);
+        proxy.setUseNio(true);
+        proxy.start();
+        // the client looks the loopback address up by name before it connects
+        proxy.remapHost("localhost", "127.0.0.1");
+        proxy.newHar("test");
+    }
+
+    @After
+    public void stopProxy() throws Exception {
+        proxy.stop();
+    }
+
+    @Test
+    public void servesSeveralRequestsOverOneConnection() throws Exception {
+        Socket socket = new Socket("127.0.0.1", proxy.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            for (int i = 0; i < 3; i++) {
+                // with pauses, so the connection is parked on the selector in between
+                Thread.sleep(100);
+                assertEquals("Hello /" + i, get(socket, in, "/" + i));
+            }
+        } finally {
+            socket.close();
+        }
+
+        assertEquals(3, proxy.getHar().getLog().getEntries().size());
+    }
+
+    @Test
+    public void idleConnectionsDontHoldThreads() throws Exception {
+        int before = Thread.activeCount();
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                sockets.add(new Socket("127.0.0.1", proxy.getPort()));
+            }
+            Thread.sleep(500);
+
+            assertTrue("Started " + (Thread.activeCount() - before) + " threads",
+                    Thread.activeCount() - before < 20);
+
+            // and they can all still be used
+            Socket socket = sockets.get(sockets.size() - 1);
+            socket.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertEquals("Hello /last", get(socket, in, "/last"));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private String get(Socket socket, BufferedReader in, String path) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET http://127.0.0.1:" + originPort + path + " HTTP/1.1\r\n" +
+                "Host: 127.0.0.1:" + originPort + "\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+
+        String status = in.readLine();
+        assertEquals("HTTP/1.1 200 OK", status);
+        int length = -1;
+        String line;
+        while ((line = in.readLine()).length() > 0) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+
+        char[] body = new char[length];
+        int read = 0;
+        while (read < length) {
+            read += in.read(body, read, length - read);
+        }
+        return new String(body);
+    }
+}
@@ -0,0 +1,37 @@
+package org.browsermob.proxy;
+
+import org.browsermob.proxy.selenium.KeyPairPool;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProxyManagerTest {
+    private final KeyPairPool keyPairs = new KeyPairPool();
+
+    @After
+    public void releasePool() {
+        keyPairs.release();
+    }
+
+    @Test
+    public void parsesTheKeyAlgorithmAndSize() {
+        ProxyManager.setKeyAlgorithm(keyPairs, "ec:384");
+        assertEquals(KeyPairPool.EC, keyPairs.getAlgorithm());
+        assertEquals(384, keyPairs.getKeySize());
+    }
+
+    @Test
+    public void defaultsTheKeySizeForTheAlgorithm() {
+        ProxyManager.setKeyAlgorithm(keyPairs, "EC");
+        assertEquals(256, keyPairs.getKeySize());
+
+        ProxyManager.setKeyAlgorithm(keyPairs, "RSA");
+        assertEquals(2048, keyPairs.getKeySize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownAlgorithms() {
+        ProxyManager.setKeyAlgorithm(keyPairs, "ROT13:128");
+    }
+}
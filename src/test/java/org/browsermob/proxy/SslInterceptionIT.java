@@ -0,0 +1,320 @@
+package org.browsermob.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.browsermob.core.har.HarEntry;
+import org.browsermob.proxy.jetty.http.nio.TunnelSelector;
+import org.browsermob.proxy.selenium.CertificateCreator;
+import org.browsermob.proxy.selenium.KeyPairPool;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests HTTPS pages through a {@link ProxyServer} from an in-process HTTPS origin, checking that the browser is
+ * given a certificate for the host it asked for and that the decrypted requests are proxied and recorded.
+ */
+public class SslInterceptionIT {
+    private static final String SECURE_HOST = "secure.example.test";
+    // loopback addresses of their own, so that relays for different hosts are told apart in the counts
+    private static final String SECURE_ADDRESS = "127.0.0.2";
+    private static final String UNMAPPED_ADDRESS = "127.0.0.3";
+    private static final String OTHER_ADDRESS = "127.0.0.4";
+
+    private static HttpsServer origin;
+    private static int originPort;
+
+    private ProxyServer proxy;
+
+    @BeforeClass
+    public static void startOrigin() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate certificate = CertificateCreator.createTypicalMasterCert(keyPair);
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("origin", keyPair.getPrivate(), "password".toCharArray(), new Certificate[]{certificate});
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "password".toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+        origin = HttpsServer.create(new InetSocketAddress(0), 0);
+        origin.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        origin.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = ("Hello " + exchange.getRequestURI()).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        origin.start();
+        originPort = origin.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopOrigin() {
+        origin.stop(0);
+    }
+
+    @Before
+    public void startProxy() throws Exception {
+        proxy = new ProxyServer(0);
+        start(proxy);
+    }
+
+    private void start(ProxyServer proxy) throws Exception {
+        proxy.start();
+        proxy.remapHost(SECURE_HOST, SECURE_ADDRESS);
+        // the client looks the loopback address up by name before it connects
+        proxy.remapHost("localhost", "127.0.0.1");
+        proxy.newHar("test");
+    }
+
+    @After
+    public void stopProxy() throws Exception {
+        proxy.stop();
+    }
+
+    @Test
+    public void presentsACertificateForTheServerNameTheBrowserSent() throws Exception {
+        HttpsURLConnection connection = open("https://" + SECURE_HOST + ":" + originPort + "/sni?q=1");
+
+        assertEquals(SECURE_HOST, commonName(connection));
+        assertEquals("Hello /sni?q=1", read(connection));
+        assertRecorded("https://" + SECURE_ADDRESS + ":" + originPort + "/sni?q=1");
+    }
+
+    @Test
+    public void fallsBackToTheConnectHostWithoutServerName() throws Exception {
+        // clients don't send SNI for IP addresses
+        HttpsURLConnection connection = open("https://" + UNMAPPED_ADDRESS + ":" + originPort + "/ip");
+
+        assertEquals(UNMAPPED_ADDRESS, commonName(connection));
+        assertEquals("Hello /ip", read(connection));
+    }
+
+    @Test
+    public void servesSeveralRequestsOverOneConnection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Hello /" + i, read(open("https://" + SECURE_HOST + ":" + originPort + "/" + i)));
+        }
+    }
+
+    @Test
+    public void canShareAWildcardCertificateBetweenSiblings() throws Exception {
+        proxy.setWildcardCertificates(true);
+        proxy.remapHost("img1.example.com", SECURE_ADDRESS);
+        proxy.remapHost("img2.example.com", SECURE_ADDRESS);
+
+        for (String host : new String[]{"img1.example.com", "img2.example.com"}) {
+            HttpsURLConnection connection = open("https://" + host + ":" + originPort + "/img");
+            assertEquals("*.example.com", commonName(connection));
+            assertEquals("Hello /img", read(connection));
+        }
+    }
+
+    @Test
+    public void canForgeCertificatesWithEcKeys() throws Exception {
+        proxy.setCertificateKeyAlgorithm(KeyPairPool.EC, 256);
+        try {
+            proxy.remapHost("ec.example.test", SECURE_ADDRESS);
+            HttpsURLConnection connection = open("https://ec.example.test:" + originPort + "/ec");
+
+            connection.connect();
+            assertEquals("EC", connection.getServerCertificates()[0].getPublicKey().getAlgorithm());
+            assertEquals("Hello /ec", read(connection));
+        } finally {
+            proxy.setCertificateKeyAlgorithm(KeyPairPool.RSA, 2048);
+        }
+    }
+
+    @Test
+    public void canStillUseAnSslRelayPerHost() throws Exception {
+        proxy.setInterceptSslInProcess(false);
+
+        HttpsURLConnection connection = open("https://" + SECURE_HOST + ":" + originPort + "/relay");
+
+        assertEquals(SECURE_HOST, commonName(connection));
+        assertEquals("Hello /relay", read(connection));
+    }
+
+    @Test
+    public void forgesCertificatesForHostsMatchedBySuffixAndWildcardRules() throws Exception {
+        assertCertificatesForRemappedHosts();
+    }
+
+    @Test
+    public void forgesRelayCertificatesForHostsMatchedBySuffixAndWildcardRules() throws Exception {
+        proxy.setInterceptSslInProcess(false);
+        assertCertificatesForRemappedHosts();
+    }
+
+    private void assertCertificatesForRemappedHosts() throws Exception {
+        proxy.remapHost(".suffix.test", SECURE_ADDRESS);
+        proxy.remapHost("*.cdn.example.test", SECURE_ADDRESS);
+
+        for (String host : new String[]{"suffix.test", "www.suffix.test", "a.b.cdn.example.test"}) {
+            HttpsURLConnection connection = open("https://" + host + ":" + originPort + "/remapped");
+            assertEquals(host, commonName(connection));
+            assertEquals("Hello /remapped", read(connection));
+        }
+    }
+
+    @Test
+    public void interceptsOverTheNioListener() throws Exception {
+        proxy.stop();
+        proxy = new ProxyServer(0);
+        proxy.setUseNio(true);
+        start(proxy);
+
+        for (int i = 0; i < 3; i++) {
+            HttpsURLConnection connection = open("https://" + SECURE_HOST + ":" + originPort + "/nio" + i);
+            assertEquals(SECURE_HOST, commonName(connection));
+            assertEquals("Hello /nio" + i, read(connection));
+        }
+    }
+
+    @Test
+    public void relaysTunnelsOnTheTunnelSelector() throws Exception {
+        proxy.stop();
+        proxy = new ProxyServer(0);
+        proxy.setUseNio(true);
+        start(proxy);
+        proxy.setInterceptSslInProcess(false);
+
+        long opened = TunnelSelector.getTunnelsOpened();
+        for (int i = 0; i < 3; i++) {
+            HttpsURLConnection connection = open("https://" + SECURE_HOST + ":" + originPort + "/tunnel" + i);
+            assertEquals(SECURE_HOST, commonName(connection));
+            assertEquals("Hello /tunnel" + i, read(connection));
+        }
+        assertTrue(TunnelSelector.getTunnelsOpened() > opened);
+    }
+
+    @Test
+    public void stopsTheLeastRecentlyUsedIdleSslRelays() throws Exception {
+        proxy.setInterceptSslInProcess(false);
+        proxy.remapHost("relay.example.test", OTHER_ADDRESS);
+
+        for (String host : new String[]{SECURE_HOST, "relay.example.test"}) {
+            HttpsURLConnection connection = open("https://" + host + ":" + originPort + "/relay");
+            // so that the relay's thread is free once the response has been sent
+            connection.setRequestProperty("Connection", "close");
+            assertEquals("Hello /relay", read(connection));
+        }
+        assertEquals(2, proxy.getSslRelayCount());
+        assertEquals(2, proxy.getSslRelaysStarted());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        proxy.setMaxSslRelays(1);
+        while (proxy.getSslRelayCount() > 1 && System.currentTimeMillis() < deadline) {
+            // the relay is busy until it notices the connection was closed
+            Thread.sleep(50);
+            proxy.setMaxSslRelays(1);
+        }
+
+        assertEquals(1, proxy.getSslRelayCount());
+        assertEquals(1, proxy.getSslRelaysEvicted());
+    }
+
+    private HttpsURLConnection open(String url) throws Exception {
+        SSLContext trustEverything = SSLContext.getInstance("TLS");
+        trustEverything.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+
+        HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection(
+                new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", proxy.getPort())));
+        connection.setSSLSocketFactory(trustEverything.getSocketFactory());
+        connection.setHostnameVerifier(new HostnameVerifier() {
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return true;
+            }
+        });
+
+        return connection;
+    }
+
+    private static String read(HttpsURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        in.close();
+
+        return out.toString("UTF-8");
+    }
+
+    private static String commonName(HttpsURLConnection connection) throws Exception {
+        connection.connect();
+        String subject = ((X509Certificate) connection.getServerCertificates()[0]).getSubjectX500Principal().getName();
+        for (String part : subject.split(",")) {
+            if (part.startsWith("CN=")) {
+                return part.substring(3);
+            }
+        }
+
+        return null;
+    }
+
+    private void assertRecorded(String url) {
+        List<HarEntry> entries = proxy.getHar().getLog().getEntries();
+        boolean found = false;
+        for (HarEntry entry : entries) {
+            found |= entry.getRequest().getUrl().equals(url);
+        }
+        assertTrue("No HAR entry for " + url, found);
+    }
+}
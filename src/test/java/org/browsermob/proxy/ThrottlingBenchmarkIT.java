@@ -0,0 +1,303 @@
+package org.browsermob.proxy;
+
+import org.browsermob.proxy.util.BandwidthSimulator;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how closely the bandwidth simulation hits its target.
+ * <p/>
+ * Payloads of several sizes are pulled through a {@link ProxyServer} from an in-process origin server, over one or
+ * more concurrent connections and at several target rates, with the limits applied to either the upstream or the
+ * browser-facing leg. For every combination the achieved per-connection throughput, its error against the target
+ * and the CPU time burnt by the proxy threads are printed, so changes to the throttling code can be compared
+ * against a known baseline.
+ */
+public class ThrottlingBenchmarkIT {
+    private static final int[] BODY_SIZES = {64 * 1024, 256 * 1024};
+    private static final int[] CONNECTIONS = {1, 4};
+    private static final long[] TARGET_KBPS = {512, 2048, 8192};
+
+    // shaping must never let traffic through faster than the target; allow a little slack for timer granularity
+    private static final double MAX_OVERSHOOT_PERCENT = 10;
+
+    private static Server origin;
+    private static int originPort;
+
+    @BeforeClass
+    public static void startOrigin() throws Exception {
+        origin = new Server(0);
+        origin.setHandler(new PayloadHandler());
+        origin.start();
+        originPort = origin.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterClass
+    public static void stopOrigin() throws Exception {
+        origin.stop();
+    }
+
+    @Test
+    public void upstreamLegAccuracy() throws Exception {
+        runMatrix(false);
+    }
+
+    @Test
+    public void browserLegAccuracy() throws Exception {
+        runMatrix(true);
+    }
+
+    @Test
+    public void bandwidthSimulatorAccuracy() throws Exception {
+        System.out.println();
+        System.out.println("BandwidthSimulator (in memory)");
+        System.out.println(String.format("%10s %10s %12s %12s %8s", "size", "target", "achieved", "elapsed", "error"));
+
+        for (long kbps : TARGET_KBPS) {
+            for (int size : BODY_SIZES) {
+                BandwidthSimulator simulator = new BandwidthSimulator((int) (kbps * 1000));
+                InputStream in = new ByteArrayInputStream(new byte[size]);
+                byte[] buffer = new byte[size];
+
+                long start = System.nanoTime();
+                int position = 0;
+                while (position < size) {
+                    int allowed = simulator.maximumBytes(position);
+                    int read = in.read(buffer, 0, Math.min(allowed, size - position));
+                    if (read == -1) {
+                        break;
+                    }
+                    position += read;
+                }
+                long elapsedNanos = System.nanoTime() - start;
+
+                double achievedKbps = kbps(size, elapsedNanos);
+                System.out.println(String.format("%10d %10d %12.1f %10dms %7.1f%%",
+                        size, kbps, achievedKbps, elapsedNanos / 1000000, error(achievedKbps, kbps)));
+            }
+        }
+    }
+
+    private void runMatrix(boolean browserLeg) throws Exception {
+        System.out.println();
+        System.out.println("ProxyServer, limits on the " + (browserLeg ? "browser" : "upstream") + " leg");
+        System.out.println(String.format("%10s %6s %10s %12s %8s %8s %12s",
+                "size", "conns", "target", "achieved", "error", "failed", "proxy cpu"));
+
+        for (long kbps : TARGET_KBPS) {
+            // a fresh proxy per rate: limits are captured when a connection is opened, so pooled keep-alive
+            // connections would otherwise carry the previous rate into the next run
+            ProxyServer proxy = new ProxyServer(0);
+            proxy.start();
+            try {
+                // HttpClient reverse-resolves 127.0.0.1 before handing it to the resolver; keep that off the network
+                proxy.remapHost("localhost", "127.0.0.1");
+                proxy.setThrottleBrowserLeg(browserLeg);
+                proxy.setDownstreamKbps(kbps);
+
+                for (int size : BODY_SIZES) {
+                    for (int connections : CONNECTIONS) {
+                        Result result = measure(proxy.getPort(), size, connections);
+
+                        double achievedKbps = result.achievedKbps();
+                        double error = error(achievedKbps, kbps);
+                        System.out.println(String.format("%10d %6d %10d %12.1f %7.1f%% %7.1f%% %10.2fms",
+                                size, connections, kbps, achievedKbps, error, result.failedPercent(),
+                                result.proxyCpuNanos / 1000000.0));
+
+                        assertTrue("No requests should fail", result.failed == 0);
+                        assertTrue("Throughput of " + achievedKbps + " kbps overshot the target of " + kbps + " kbps",
+                                error <= MAX_OVERSHOOT_PERCENT);
+                    }
+                }
+            } finally {
+                proxy.stop();
+            }
+        }
+    }
+
+    private Result measure(final int proxyPort, final int size, int connections) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(connections, new ClientThreadFactory());
+        try {
+            List<Callable<Long>> fetches = new ArrayList<Callable<Long>>();
+            for (int i = 0; i < connections; i++) {
+                fetches.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return fetch(proxyPort, size);
+                    }
+                });
+            }
+
+            Map<Long, Long> before = proxyThreadCpu();
+            List<Future<Long>> futures = executor.invokeAll(fetches);
+            Map<Long, Long> after = proxyThreadCpu();
+
+            Result result = new Result(connections);
+            for (Future<Long> future : futures) {
+                try {
+                    result.elapsedNanos += future.get();
+                    result.bytes += size;
+                } catch (Exception e) {
+                    result.failed++;
+                }
+            }
+
+            for (Map.Entry<Long, Long> entry : after.entrySet()) {
+                Long previous = before.get(entry.getKey());
+                result.proxyCpuNanos += entry.getValue() - (previous == null ? 0 : previous);
+            }
+
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long fetch(int proxyPort, int size) throws IOException {
+        // use the IP rather than localhost: BrowserMobProxyHandler hands localhost URLs to the unthrottled URLConnection path
+        URL url = new URL("http://127.0.0.1:" + originPort + "/?size=" + size);
+        Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", proxyPort));
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            if (total != size) {
+                throw new IOException("Expected " + size + " bytes but read " + total);
+            }
+        } finally {
+            in.close();
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * CPU time per live thread, excluding the benchmark client and the origin server. Threads that exit during a run
+     * are not counted, but the proxy's pool threads outlive a single measurement.
+     */
+    private static Map<Long, Long> proxyThreadCpu() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Map<Long, Long> cpu = new HashMap<Long, Long>();
+        for (long id : threads.getAllThreadIds()) {
+            ThreadInfo info = threads.getThreadInfo(id);
+            if (info == null || info.getThreadName().startsWith(ClientThreadFactory.PREFIX)
+                    || info.getThreadName().startsWith("qtp") || id == Thread.currentThread().getId()) {
+                continue;
+            }
+
+            long time = threads.getThreadCpuTime(id);
+            if (time != -1) {
+                cpu.put(id, time);
+            }
+        }
+
+        return cpu;
+    }
+
+    private static double kbps(long bytes, long elapsedNanos) {
+        return (bytes * 8 / 1000.0) / (elapsedNanos / 1000000000.0);
+    }
+
+    private static double error(double achievedKbps, long targetKbps) {
+        return (achievedKbps - targetKbps) * 100 / targetKbps;
+    }
+
+    private static class Result {
+        private final int connections;
+        private long bytes;
+        private long elapsedNanos;
+        private long proxyCpuNanos;
+        private int failed;
+
+        private Result(int connections) {
+            this.connections = connections;
+        }
+
+        // average throughput of a single connection, since the limits are applied per connection
+        private double achievedKbps() {
+            int succeeded = connections - failed;
+            if (succeeded == 0) {
+                return 0;
+            }
+
+            return kbps(bytes / succeeded, elapsedNanos / succeeded);
+        }
+
+        private double failedPercent() {
+            return failed * 100.0 / connections;
+        }
+    }
+
+    private static class ClientThreadFactory implements ThreadFactory {
+        private static final String PREFIX = "throttling-benchmark-client-";
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, PREFIX + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class PayloadHandler extends AbstractHandler {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException, ServletException {
+            int size = Integer.parseInt(request.getParameter("size"));
+            byte[] chunk = new byte[8192];
+
+            response.setContentType("application/octet-stream");
+            response.setContentLength(size);
+            response.setStatus(HttpServletResponse.SC_OK);
+            baseRequest.setHandled(true);
+
+            OutputStream out = response.getOutputStream();
+            int remaining = size;
+            while (remaining > 0) {
+                int length = Math.min(chunk.length, remaining);
+                out.write(chunk, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.browsermob.proxy.http;
+
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BrowserMobHostNameResolverTest {
+    @Test
+    public void coalescesConcurrentLookupsOfTheSameName() throws Exception {
+        SlowResolver dns = new SlowResolver();
+        final BrowserMobHostNameResolver resolver = new BrowserMobHostNameResolver(new HostNameCache(), dns);
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Callable<InetAddress>> requests = new ArrayList<Callable<InetAddress>>();
+            for (int i = 0; i < 6; i++) {
+                requests.add(new Callable<InetAddress>() {
+                    @Override
+                    public InetAddress call() throws Exception {
+                        return resolver.resolve("example.com");
+                    }
+                });
+            }
+
+            for (Future<InetAddress> future : executor.invokeAll(requests)) {
+                assertEquals("1.2.3.4", future.get().getHostAddress());
+            }
+        } finally {
+            executor.shutdown();
+            resolver.getCache().release();
+        }
+
+        assertEquals(1, dns.queries.get());
+    }
+
+    @Test
+    public void countsOneMissPerColdLookup() throws Exception {
+        SlowResolver dns = new SlowResolver();
+        HostNameCache cache = new HostNameCache();
+        BrowserMobHostNameResolver resolver = new BrowserMobHostNameResolver(cache, dns);
+        try {
+            resolver.resolve("example.com");
+            assertEquals(1, cache.getMisses());
+            assertEquals(0, cache.getHits());
+
+            resolver.resolve("example.com");
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+
+            resolver.resolve("example.org");
+            assertEquals(2, cache.getMisses());
+            assertEquals(1, cache.getHits());
+        } finally {
+            cache.release();
+        }
+    }
+
+    @Test
+    public void interleavesFamiliesAndRotatesWithinThem() throws Exception {
+        InetAddress v4a = InetAddress.getByName("10.0.0.1");
+        InetAddress v4b = InetAddress.getByName("10.0.0.2");
+        InetAddress v6a = InetAddress.getByName("::1");
+        InetAddress v6b = InetAddress.getByName("::2");
+        InetAddress[] addresses = {v6a, v6b, v4a, v4b};
+
+        assertArrayEquals(new InetAddress[]{v6a, v4a, v6b, v4b}, BrowserMobHostNameResolver.order(addresses, 0));
+        assertArrayEquals(new InetAddress[]{v6b, v4b, v6a, v4a}, BrowserMobHostNameResolver.order(addresses, 1));
+    }
+
+    /**
+     * Answers A queries with 1.2.3.4 and everything else with no data, after a delay long enough for concurrent
+     * requests to pile up. Only A queries are counted.
+     */
+    private static class SlowResolver implements Resolver {
+        private final AtomicInteger queries = new AtomicInteger();
+
+        @Override
+        public Message send(Message query) throws IOException {
+            Record question = query.getQuestion();
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            response.addRecord(question, Section.QUESTION);
+
+            if (question.getType() == Type.A) {
+                queries.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                response.addRecord(new ARecord(question.getName(), DClass.IN, 60,
+                        InetAddress.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+            }
+
+            return response;
+        }
+
+        @Override
+        public Object sendAsync(Message query, ResolverListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setPort(int port) {
+        }
+
+        public void setTCP(boolean flag) {
+        }
+
+        public void setIgnoreTruncation(boolean flag) {
+        }
+
+        public void setEDNS(int level) {
+        }
+
+        public void setEDNS(int level, int payloadSize, int flags, List options) {
+        }
+
+        public void setTSIGKey(TSIG key) {
+        }
+
+        public void setTimeout(int secs, int msecs) {
+        }
+
+        public void setTimeout(int secs) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.browsermob.proxy.http;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HostNameCacheTest {
+    private HostNameCache cache = new HostNameCache();
+
+    @After
+    public void releaseCache() {
+        cache.release();
+    }
+
+    @Test
+    public void countsHitsAndMisses() throws Exception {
+        InetAddress[] addresses = {InetAddress.getByAddress("example.com", new byte[]{1, 2, 3, 4})};
+
+        assertNull(cache.get("example.com"));
+        cache.put("example.com", addresses, 60);
+        assertArrayEquals(addresses, cache.get("example.com"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void maxTtlOfZeroDisablesCaching() throws Exception {
+        cache.setMaxTtl(0);
+        cache.put("example.com", new InetAddress[0], 60);
+
+        assertFalse(cache.contains("example.com"));
+    }
+
+    @Test
+    public void evictsExpiredEntries() throws Exception {
+        cache.put("example.com", new InetAddress[0], 1);
+        assertTrue(cache.contains("example.com"));
+
+        Thread.sleep(1100);
+
+        assertFalse(cache.contains("example.com"));
+        assertEquals(1, cache.evictExpired());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void findsHotEntriesAboutToExpire() throws Exception {
+        InetAddress[] addresses = {InetAddress.getByAddress("example.com", new byte[]{1, 2, 3, 4})};
+        cache.put("example.com", addresses, 1);
+        cache.put("example.org", addresses, 1);
+        cache.put("example.net", addresses, 60);
+        for (String hostname : new String[]{"example.com", "example.com", "example.org", "example.net", "example.net"}) {
+            cache.get(hostname);
+        }
+
+        assertEquals(Arrays.asList("example.com"), cache.getExpiringEntries(2, 2000));
+    }
+
+    @Test
+    public void hidesEntriesStoredBeforeAClearOrOlderThanTheMaximumAge() throws Exception {
+        InetAddress[] addresses = {InetAddress.getByAddress("example.com", new byte[]{1, 2, 3, 4})};
+        cache.put("example.com", addresses, 60);
+        long clearedAt = System.currentTimeMillis();
+
+        assertNull(cache.get("example.com", clearedAt, -1));
+        assertNull(cache.get("example.com", Long.MIN_VALUE, 0));
+        assertArrayEquals(addresses, cache.get("example.com", Long.MIN_VALUE, 60000));
+        assertTrue(cache.contains("example.com"));
+    }
+}
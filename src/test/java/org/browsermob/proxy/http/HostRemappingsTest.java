@@ -0,0 +1,47 @@
+package org.browsermob.proxy.http;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HostRemappingsTest {
+    private HostRemappings remappings = new HostRemappings();
+
+    @Test
+    public void matchesExactNamesBeforeWildcards() {
+        remappings.put("*.example.com", "1.1.1.1");
+        remappings.put("www.example.com", "2.2.2.2");
+
+        assertEquals("2.2.2.2", remappings.get("www.example.com"));
+        assertEquals("1.1.1.1", remappings.get("static.example.com"));
+        assertEquals("1.1.1.1", remappings.get("a.b.example.com"));
+        assertNull(remappings.get("example.com"));
+        assertNull(remappings.get("example.org"));
+    }
+
+    @Test
+    public void prefersTheLongestWildcard() {
+        remappings.put("*", "0.0.0.0");
+        remappings.put(".example.com", "1.1.1.1");
+        remappings.put("*.cdn.example.com", "2.2.2.2");
+
+        assertEquals("0.0.0.0", remappings.get("example.org"));
+        assertEquals("1.1.1.1", remappings.get("EXAMPLE.com"));
+        assertEquals("1.1.1.1", remappings.get("cdn.example.com"));
+        assertEquals("2.2.2.2", remappings.get("img.cdn.example.com."));
+    }
+
+    @Test
+    public void tracksTheSourcesOfEachTarget() {
+        Map<String, String> mappings = new HashMap<String, String>();
+        mappings.put(".example.com", "1.1.1.1");
+        remappings.putAll(mappings);
+
+        assertEquals(Arrays.asList("example.com", "*.example.com"), remappings.getSources("1.1.1.1"));
+    }
+}
@@ -0,0 +1,121 @@
+package org.browsermob.proxy.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiplexedUdpResolverTest {
+    private DatagramSocket server;
+    private Thread serverThread;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Drops the very first query, then answers queries in pairs, in the reverse order they arrived. Each name is
+     * answered with an address made of its first label, so a mismatched answer is easy to spot.
+     */
+    private void serve() {
+        try {
+            byte[] buffer = new byte[512];
+            DatagramPacket first = new DatagramPacket(buffer, buffer.length);
+            server.receive(first);
+
+            while (true) {
+                DatagramPacket[] pair = new DatagramPacket[2];
+                for (int i = 0; i < pair.length; i++) {
+                    pair[i] = new DatagramPacket(new byte[512], 512);
+                    server.receive(pair[i]);
+                }
+
+                for (int i = pair.length - 1; i >= 0; i--) {
+                    Message query = new Message(pair[i].getData());
+                    Name name = query.getQuestion().getName();
+                    Message response = new Message(query.getHeader().getID());
+                    response.getHeader().setFlag(Flags.QR);
+                    response.addRecord(query.getQuestion(), Section.QUESTION);
+                    byte last = (byte) Integer.parseInt(name.getLabelString(0));
+                    response.addRecord(new ARecord(name, DClass.IN, 60,
+                            InetAddress.getByAddress(new byte[]{10, 0, 0, last})), Section.ANSWER);
+
+                    byte[] out = response.toWire();
+                    server.send(new DatagramPacket(out, out.length, pair[i].getSocketAddress()));
+                }
+            }
+        } catch (Exception e) {
+            // the socket was closed
+        }
+    }
+
+    @Test
+    public void matchesResponsesToQueriesAndRetries() throws Exception {
+        final MultiplexedUdpResolver resolver = new MultiplexedUdpResolver(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), server.getLocalPort()));
+        resolver.setTimeout(4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Callable<Record[]>> lookups = new ArrayList<Callable<Record[]>>();
+            for (final String name : new String[]{"1.example.com.", "2.example.com."}) {
+                lookups.add(new Callable<Record[]>() {
+                    @Override
+                    public Record[] call() throws Exception {
+                        Message response = resolver.send(Message.newQuery(
+                                Record.newRecord(Name.fromString(name), Type.A, DClass.IN)));
+                        return response.getSectionArray(Section.ANSWER);
+                    }
+                });
+            }
+
+            List<Future<Record[]>> results = executor.invokeAll(lookups);
+            assertEquals("10.0.0.1", ((ARecord) results.get(0).get()[0]).getAddress().getHostAddress());
+            assertEquals("10.0.0.2", ((ARecord) results.get(1).get()[0]).getAddress().getHostAddress());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void givesUpAfterTheTimeout() throws Exception {
+        DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            MultiplexedUdpResolver resolver = new MultiplexedUdpResolver(
+                    new InetSocketAddress(InetAddress.getByName("127.0.0.1"), silent.getLocalPort()));
+            resolver.setTimeout(0, 400);
+            resolver.setRetries(1);
+            resolver.send(Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN)));
+        } finally {
+            silent.close();
+        }
+    }
+}
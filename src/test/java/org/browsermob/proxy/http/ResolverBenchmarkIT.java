@@ -0,0 +1,298 @@
+package org.browsermob.proxy.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures {@link BrowserMobHostNameResolver} against a {@link StubDnsServer}, so the numbers don't depend on the
+ * network or on whatever name server the machine happens to use.
+ * <p/>
+ * Every scenario prints the lookups per second, the cache hit rate, the latency percentiles seen by callers and the
+ * number of queries that reached the server, so changes to the resolver, its cache or the UDP client can be compared
+ * against a known baseline.
+ */
+public class ResolverBenchmarkIT {
+    private static final String ZONE = "bench.test.";
+    private static final long SERVER_LATENCY_MS = 5;
+    private static final int THREADS = 8;
+
+    private StubDnsServer server;
+    private BrowserMobHostNameResolver resolver;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StubDnsServer(ZONE);
+        server.setLatency(SERVER_LATENCY_MS);
+        server.addHost("*." + ZONE, 300, "10.0.0.1", "10.0.0.2");
+        server.addHost("*.short." + ZONE, 5, "10.0.1.1");
+
+        resolver = new BrowserMobHostNameResolver(new HostNameCache(), server.newResolver());
+    }
+
+    @After
+    public void stopServer() {
+        resolver.release();
+        server.stop();
+    }
+
+    @Test
+    public void hotNames() throws Exception {
+        List<String> names = names("hot", 50);
+        Result result = run(names, THREADS, 5000);
+        print("50 hot names, " + THREADS + " threads", result);
+
+        assertEquals(0, result.failures);
+        assertTrue("Hot names should nearly always come from the cache", result.hitRate() > 0.99);
+    }
+
+    @Test
+    public void coldNames() throws Exception {
+        Result result = run(names("cold", THREADS * 200), THREADS, 200);
+        print("unique names, " + THREADS + " threads", result);
+
+        assertEquals(0, result.failures);
+    }
+
+    @Test
+    public void burstsOnFreshNames() throws Exception {
+        int bursts = 50;
+        int concurrency = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Result result = new Result();
+        try {
+            for (int i = 0; i < bursts; i++) {
+                final String name = "burst" + i + "." + ZONE;
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Callable<long[]>> lookups = new ArrayList<Callable<long[]>>();
+                for (int j = 0; j < concurrency; j++) {
+                    lookups.add(new Callable<long[]>() {
+                        @Override
+                        public long[] call() throws Exception {
+                            start.await();
+                            return time(Arrays.asList(name), 1);
+                        }
+                    });
+                }
+
+                List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+                for (Callable<long[]> lookup : lookups) {
+                    futures.add(executor.submit(lookup));
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                result.collect(futures);
+                result.elapsedNanos += System.nanoTime() - begin;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        result.queries = server.getQueries();
+        result.hits = resolver.getCache().getHits();
+        result.misses = resolver.getCache().getMisses();
+        print(bursts + " bursts of " + concurrency + " lookups of a fresh name", result);
+
+        assertEquals(0, result.failures);
+        // an A and an AAAA query per name, however many callers wanted it at once
+        assertTrue("Concurrent lookups should be coalesced", result.queries <= bursts * 2);
+    }
+
+    @Test
+    public void shortTtlsWithAndWithoutPrefetching() throws Exception {
+        List<String> names = names("ttl", 10, "short." + ZONE);
+
+        for (boolean prefetch : new boolean[]{false, true}) {
+            resolver.release();
+            resolver = new BrowserMobHostNameResolver(new HostNameCache(), server.newResolver());
+            resolver.setPrefetchEnabled(prefetch);
+            long queriesBefore = server.getQueries();
+
+            Result result = runFor(names, 4, 12000);
+            result.queries = server.getQueries() - queriesBefore;
+            print("10 names with a 5s TTL for 12s, prefetching " + (prefetch ? "on" : "off"), result);
+
+            assertEquals(0, result.failures);
+        }
+    }
+
+    private List<String> names(String prefix, int count) {
+        return names(prefix, count, ZONE);
+    }
+
+    private List<String> names(String prefix, int count, String domain) {
+        List<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i + "." + domain);
+        }
+
+        return names;
+    }
+
+    /**
+     * Splits the names between the threads, each of which resolves its share round robin for the given number of
+     * lookups.
+     */
+    private Result run(final List<String> names, int threads, final int lookupsPerThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<long[]>> workers = new ArrayList<Callable<long[]>>();
+            final int share = Math.max(1, names.size() / threads);
+            for (int i = 0; i < threads; i++) {
+                final int from = (i * share) % names.size();
+                workers.add(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        List<String> mine = names.size() >= share * 2
+                                ? names.subList(from, Math.min(names.size(), from + share)) : names;
+                        return time(mine, lookupsPerThread);
+                    }
+                });
+            }
+
+            long begin = System.nanoTime();
+            Result result = new Result();
+            result.collect(executor.invokeAll(workers));
+            result.elapsedNanos = System.nanoTime() - begin;
+            result.queries = server.getQueries();
+            result.hits = resolver.getCache().getHits();
+            result.misses = resolver.getCache().getMisses();
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Result runFor(final List<String> names, int threads, final long durationMs) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<long[]>> workers = new ArrayList<Callable<long[]>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        List<Long> timings = new ArrayList<Long>();
+                        long end = System.currentTimeMillis() + durationMs;
+                        while (System.currentTimeMillis() < end) {
+                            for (long timing : time(names, names.size())) {
+                                timings.add(timing);
+                            }
+                            Thread.sleep(20);
+                        }
+
+                        long[] result = new long[timings.size()];
+                        for (int i = 0; i < result.length; i++) {
+                            result[i] = timings.get(i);
+                        }
+                        return result;
+                    }
+                });
+            }
+
+            long begin = System.nanoTime();
+            Result result = new Result();
+            result.collect(executor.invokeAll(workers));
+            result.elapsedNanos = System.nanoTime() - begin;
+            result.hits = resolver.getCache().getHits();
+            result.misses = resolver.getCache().getMisses();
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Resolves the names round robin, returning the time each lookup took in nanoseconds, or -1 where it failed.
+     */
+    private long[] time(List<String> names, int lookups) {
+        long[] timings = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            long start = System.nanoTime();
+            try {
+                resolver.resolveAll(names.get(i % names.size()));
+                timings[i] = System.nanoTime() - start;
+            } catch (Exception e) {
+                timings[i] = -1;
+            }
+        }
+
+        return timings;
+    }
+
+    private static void print(String scenario, Result result) {
+        System.out.println();
+        System.out.println(scenario);
+        System.out.println(String.format("%12s %10s %9s %9s %9s %9s %9s %8s",
+                "lookups", "per sec", "hit rate", "p50", "p99", "p99.9", "max", "queries"));
+        System.out.println(String.format("%12d %10.0f %8.2f%% %7.3fms %7.3fms %7.3fms %7.3fms %8d",
+                result.lookups(), result.lookups() / (result.elapsedNanos / 1000000000.0), result.hitRate() * 100,
+                result.percentile(50), result.percentile(99), result.percentile(99.9), result.percentile(100),
+                result.queries));
+    }
+
+    private static class Result {
+        private final List<long[]> timings = new ArrayList<long[]>();
+        private long[] sorted;
+        private long elapsedNanos;
+        private long queries;
+        private long hits;
+        private long misses;
+        private int failures;
+
+        private void collect(List<Future<long[]>> futures) throws Exception {
+            for (Future<long[]> future : futures) {
+                long[] times = future.get();
+                timings.add(times);
+                for (long time : times) {
+                    if (time < 0) {
+                        failures++;
+                    }
+                }
+            }
+            sorted = null;
+        }
+
+        private int lookups() {
+            int lookups = 0;
+            for (long[] times : timings) {
+                lookups += times.length;
+            }
+
+            return lookups;
+        }
+
+        private double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        private double percentile(double percentile) {
+            if (sorted == null) {
+                sorted = new long[lookups()];
+                int i = 0;
+                for (long[] times : timings) {
+                    System.arraycopy(times, 0, sorted, i, times.length);
+                    i += times.length;
+                }
+                Arrays.sort(sorted);
+            }
+
+            if (sorted.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000000.0;
+        }
+    }
+}
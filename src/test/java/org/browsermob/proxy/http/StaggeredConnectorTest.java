@@ -0,0 +1,42 @@
+package org.browsermob.proxy.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+public class StaggeredConnectorTest {
+    private ServerSocket server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void failsOverToTheNextAddress() throws Exception {
+        // nothing listens on 127.0.0.2, so the first attempt is refused
+        InetAddress[] addresses = {InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1")};
+
+        RequestInfo.clear();
+        Socket socket = StaggeredConnector.connect(addresses, server.getLocalPort(), null, 5000);
+        try {
+            assertEquals(addresses[1], socket.getInetAddress());
+            assertEquals("127.0.0.1", RequestInfo.get().getResolvedAddress());
+        } finally {
+            socket.close();
+        }
+    }
+}
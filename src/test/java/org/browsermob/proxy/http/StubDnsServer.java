@@ -0,0 +1,172 @@
+package org.browsermob.proxy.http;
+
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process, authoritative DNS server for tests and benchmarks, answering UDP queries on the loopback interface
+ * out of a {@link Zone}.
+ * <p/>
+ * Hosts are added with {@link #addHost(String, long, String...)}, where a name such as *.example.test. adds a
+ * wildcard. Every answer can be held back by a fixed latency, to stand in for a real name server some distance away,
+ * without holding up the other queries.
+ */
+public class StubDnsServer {
+    private final Zone zone;
+    private final DatagramSocket socket;
+    private final ScheduledExecutorService responder;
+    private final AtomicLong queries = new AtomicLong();
+    private volatile long latency;
+
+    /**
+     * @param origin the zone to serve, such as example.test.
+     */
+    public StubDnsServer(String origin) throws IOException {
+        Name name = Name.fromString(origin, Name.root);
+        Name host = Name.fromString("ns", name);
+        zone = new Zone(name, new Record[]{
+                new SOARecord(name, DClass.IN, 3600, host, Name.fromString("hostmaster", name), 1, 3600, 600, 86400, 60),
+                new NSRecord(name, DClass.IN, 3600, host)
+        });
+
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        responder = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StubDnsServer Responder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "StubDnsServer Receive Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds A records, or AAAA records for IPv6 addresses, for the host.
+     *
+     * @param hostname an absolute name within the zone, possibly starting with *.
+     */
+    public void addHost(String hostname, long ttl, String... addresses) throws IOException {
+        Name name = Name.fromString(hostname, Name.root);
+        for (String address : addresses) {
+            InetAddress inetAddress = InetAddress.getByName(address);
+            if (inetAddress.getAddress().length == 16) {
+                zone.addRecord(new AAAARecord(name, DClass.IN, ttl, inetAddress));
+            } else {
+                zone.addRecord(new ARecord(name, DClass.IN, ttl, inetAddress));
+            }
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    /**
+     * A resolver that sends its queries here.
+     */
+    public MultiplexedUdpResolver newResolver() {
+        return new MultiplexedUdpResolver(getAddress());
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * The number of queries received so far.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public void stop() {
+        socket.close();
+        responder.shutdownNow();
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[Message.MAXLENGTH];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queries.incrementAndGet();
+
+                byte[] in = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), 0, in, 0, in.length);
+                final SocketAddress client = packet.getSocketAddress();
+                final byte[] out = respond(new Message(in)).toWire(512);
+
+                responder.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            socket.send(new DatagramPacket(out, out.length, client));
+                        } catch (IOException e) {
+                            // the server was stopped
+                        }
+                    }
+                }, latency, TimeUnit.MILLISECONDS);
+            } catch (SocketException e) {
+                // the server was stopped
+            } catch (IOException e) {
+                // a malformed query, ignore it like a real server would
+            }
+        }
+    }
+
+    private Message respond(Message query) {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AA);
+
+        Record question = query.getQuestion();
+        if (question == null) {
+            response.getHeader().setRcode(Rcode.FORMERR);
+            return response;
+        }
+        response.addRecord(question, Section.QUESTION);
+
+        SetResponse answer = zone.findRecords(question.getName(), question.getType());
+        if (answer.isSuccessful()) {
+            for (RRset rrset : answer.answers()) {
+                for (Iterator it = rrset.rrs(); it.hasNext(); ) {
+                    // wildcard matches come back under the wildcard name; answer for the name that was asked
+                    response.addRecord(((Record) it.next()).withName(question.getName()), Section.ANSWER);
+                }
+            }
+        } else {
+            if (answer.isNXDOMAIN()) {
+                response.getHeader().setRcode(Rcode.NXDOMAIN);
+            } else if (!answer.isNXRRSET()) {
+                response.getHeader().setRcode(Rcode.REFUSED);
+                return response;
+            }
+            response.addRecord(zone.getSOA(), Section.AUTHORITY);
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,130 @@
+package org.browsermob.proxy.http;
+
+import org.apache.http.params.BasicHttpParams;
+import org.browsermob.core.har.HarTimings;
+import org.browsermob.proxy.selenium.CertificateAuthority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TrustingSSLSocketFactoryTest {
+    private SSLServerSocket server;
+    private TrustingSSLSocketFactory factory;
+
+    @Before
+    public void startServer() throws Exception {
+        KeyStore.PrivateKeyEntry certificate = CertificateAuthority.getCyberVillains().getCertificate("127.0.0.1");
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", certificate.getPrivateKey(), "password".toCharArray(), certificate.getCertificateChain());
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "password".toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+        server = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+        server.setEnabledProtocols(server.getSupportedProtocols());
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        try {
+                            // a byte of application data, behind which TLS 1.3 sends its session tickets
+                            socket.getOutputStream().write('!');
+                            socket.getOutputStream().flush();
+                            socket.getInputStream().read();
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // the server was stopped, or the client gave up
+                    }
+                }
+            }
+        }, "TLS Test Server");
+        thread.setDaemon(true);
+        thread.start();
+
+        factory = new TrustingSSLSocketFactory(null);
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void negotiatesTls12OrLater() throws Exception {
+        SSLSocket socket = connect();
+        try {
+            String protocol = socket.getSession().getProtocol();
+            assertTrue(protocol, protocol.equals("TLSv1.2") || protocol.equals("TLSv1.3"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void resumesSessions() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            connect().close();
+        }
+
+        assertEquals(3, factory.getHandshakes());
+        assertEquals(2, factory.getResumedHandshakes());
+    }
+
+    @Test
+    public void timesTheHandshake() throws Exception {
+        RequestInfo.clear("https://127.0.0.1/");
+        connect().close();
+        RequestInfo.get().finish();
+
+        HarTimings timings = RequestInfo.get().getTimings();
+        assertTrue(timings.getSsl() >= 0);
+        assertTrue(timings.getConnect() >= timings.getSsl());
+    }
+
+    @Test
+    public void offersStrongCipherSuitesFirst() {
+        String[] ordered = TrustingSSLSocketFactory.orderCipherSuites(new String[]{
+                "TLS_RSA_WITH_AES_128_CBC_SHA", "SSL_RSA_WITH_RC4_128_MD5", "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_AES_128_GCM_SHA256", "TLS_EMPTY_RENEGOTIATION_INFO_SCSV",
+                "SSL_DH_anon_WITH_DES_CBC_SHA"});
+
+        assertEquals(Arrays.asList("TLS_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256", "TLS_RSA_WITH_AES_128_CBC_SHA"), Arrays.asList(ordered));
+    }
+
+    @Test
+    public void leavesOutUnsupportedProtocols() {
+        factory.setProtocols("TLSv1.2", "TLSv9");
+
+        assertEquals(Arrays.asList("TLSv1.2"), Arrays.asList(factory.getProtocols()));
+    }
+
+    private SSLSocket connect() throws IOException {
+        SSLSocket socket = (SSLSocket) factory.connectSocket(null, "127.0.0.1", server.getLocalPort(), null, 0,
+                new BasicHttpParams());
+        // read what the server sent, taking in any session tickets along the way
+        assertEquals('!', socket.getInputStream().read());
+        return socket;
+    }
+}
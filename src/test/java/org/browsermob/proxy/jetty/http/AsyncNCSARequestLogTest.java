@@ -0,0 +1,94 @@
+package org.browsermob.proxy.jetty.http;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncNCSARequestLogTest {
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> batches = new CopyOnWriteArrayList<String>();
+
+    private final AsyncNCSARequestLog log = new AsyncNCSARequestLog() {
+        @Override
+        protected void writeBatch(String lines) throws IOException {
+            writing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            batches.add(lines);
+        }
+    };
+
+    @After
+    public void stopLog() {
+        release.countDown();
+        log.stop();
+    }
+
+    @Test
+    public void writesQueuedLinesInBatches() throws Exception {
+        log.setQueueSize(10);
+        log.start();
+
+        log.write("first\n");
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            log.write("line " + i + "\n");
+        }
+        assertEquals(5, log.getQueued());
+
+        release.countDown();
+        log.stop();
+
+        assertEquals(2, batches.size());
+        assertEquals("first\n", batches.get(0));
+        assertEquals("line 0\nline 1\nline 2\nline 3\nline 4\n", batches.get(1));
+        assertEquals(6, log.getLogged());
+        assertEquals(2, log.getBatches());
+        assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    public void dropsLinesWhenTheQueueIsFull() throws Exception {
+        log.setQueueSize(2);
+        log.start();
+
+        log.write("first\n");
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            log.write("line " + i + "\n");
+        }
+
+        release.countDown();
+        log.stop();
+
+        assertEquals(3, log.getLogged());
+        assertEquals(3, log.getDropped());
+        assertEquals("line 0\nline 1\n", batches.get(1));
+    }
+
+    @Test
+    public void countsLinesLoggedOnceStoppedAsDropped() throws Exception {
+        log.start();
+        release.countDown();
+        log.write("first\n");
+        log.stop();
+
+        log.write("late\n");
+
+        assertEquals(1, log.getLogged());
+        assertEquals(1, log.getDropped());
+        assertEquals(0, log.getQueued());
+    }
+}
@@ -0,0 +1,146 @@
+package org.browsermob.proxy.jetty.http;
+
+import org.browsermob.proxy.jetty.util.LineInput;
+import org.browsermob.proxy.jetty.util.StringUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares how fast {@link HttpFields#read(LineInput)} parses the headers browsers send, and how much it allocates
+ * doing so, when reading the bytes of the connection against decoding each line to characters first.
+ * <p/>
+ * Each scenario reads the headers of many requests from one LineInput into one HttpFields, recycled between
+ * requests as a keep-alive connection does, and looks at the fields the proxy always looks at. The line parser is
+ * what any encoding other than ISO-8859-1 gets; the alias ISO8859_1 gives it the same decoding as the byte parser.
+ */
+public class HeaderParsingBenchmarkIT {
+    private static final int REQUESTS_PER_CONNECTION = 1000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+    private static final int ALLOCATION_NOISE = 8;
+
+    private static final String FIREFOX_IMAGE = "Host: static.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0\r\n" +
+            "Accept: image/avif,image/webp,*/*\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Referer: https://www.example.com/\r\n" +
+            "Sec-Fetch-Dest: image\r\n" +
+            "Sec-Fetch-Mode: no-cors\r\n" +
+            "Sec-Fetch-Site: same-site\r\n" +
+            "If-None-Match: \"5f2b-60c1f3a1\"\r\n" +
+            "\r\n";
+
+    private static final String XHR_WITH_COOKIES = "Host: api.example.com\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Content-Length: 42\r\n" +
+            "Accept: application/json, text/plain, */*\r\n" +
+            "X-Requested-With: XMLHttpRequest\r\n" +
+            "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Safari/605.1.15\r\n" +
+            "Content-Type: application/json\r\n" +
+            "Origin: https://www.example.com\r\n" +
+            "Referer: https://www.example.com/account\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Accept-Language: en-GB,en;q=0.9\r\n" +
+            "Cookie: session=0123456789abcdef0123456789abcdef; csrf=fedcba9876543210; _ga=GA1.2.1234567890.1234567890; _gid=GA1.2.987654321.987654321; consent=yes\r\n" +
+            "\r\n";
+
+    @Test
+    public void chromeNavigation() throws Exception {
+        compare("Chrome navigation", HttpFieldsTest.CHROME_HEADERS);
+    }
+
+    @Test
+    public void firefoxImage() throws Exception {
+        compare("Firefox image", FIREFOX_IMAGE);
+    }
+
+    @Test
+    public void xhrWithCookies() throws Exception {
+        compare("XHR with cookies", XHR_WITH_COOKIES);
+    }
+
+    private static void compare(String scenario, String headers) throws Exception {
+        StringBuilder connection = new StringBuilder();
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+            connection.append(headers);
+        }
+        byte[] bytes = connection.toString().getBytes("ISO-8859-1");
+
+        // warm both parsers up before measuring either, so that neither is charged for compiling the code they share
+        warmUp(bytes, "ISO8859_1");
+        warmUp(bytes, StringUtil.__ISO_8859_1);
+
+        Result lines = run(bytes, "ISO8859_1");
+        Result parsed = run(bytes, StringUtil.__ISO_8859_1);
+
+        System.out.println();
+        System.out.println(scenario);
+        System.out.println(String.format("%8s %12s %12s", "parser", "ns/request", "bytes/request"));
+        print("lines", lines);
+        print("bytes", parsed);
+
+        // allocations are only counted on JVMs that can count them, and both parsers share
+        // a floor of a few bytes a request for the LineInput and HttpFields themselves
+        if (lines.bytes > 0) {
+            assertTrue("Reading the bytes should not allocate more than decoding lines",
+                    parsed.bytes <= lines.bytes + ALLOCATION_NOISE);
+        }
+    }
+
+    private static void warmUp(byte[] connection, String encoding) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parse(connection, encoding);
+        }
+    }
+
+    private static Result run(byte[] connection, String encoding) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            parse(connection, encoding);
+        }
+        Result result = new Result();
+        result.nanos = (System.nanoTime() - start) / (double) (ROUNDS * REQUESTS_PER_CONNECTION);
+        result.bytes = (allocatedBytes(threads) - allocatedBefore) / (double) (ROUNDS * REQUESTS_PER_CONNECTION);
+        return result;
+    }
+
+    private static int parse(byte[] connection, String encoding) throws Exception {
+        LineInput in = new LineInput(new ByteArrayInputStream(connection), 4096, encoding);
+        HttpFields fields = new HttpFields();
+        int seen = 0;
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+            fields.clear();
+            fields.read(in);
+            // what every request is asked about on its way through the proxy
+            seen += fields.get(HttpFields.__Host).length();
+            seen += fields.get(HttpFields.__Connection).length();
+            seen += fields.get(HttpFields.__UserAgent).length();
+        }
+        return seen;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void print(String parser, Result result) {
+        System.out.println(String.format("%8s %12.0f %12.0f", parser, result.nanos, result.bytes));
+    }
+
+    private static class Result {
+        double nanos;
+        double bytes;
+    }
+}
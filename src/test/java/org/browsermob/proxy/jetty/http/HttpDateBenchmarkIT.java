@@ -0,0 +1,167 @@
+package org.browsermob.proxy.jetty.http;
+
+import org.browsermob.proxy.jetty.util.DateCache;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how many HTTP dates the proxy formats and parses a millisecond as more threads do so at once, which is
+ * what every response and access log line does.
+ * <p/>
+ * Formatting compares {@link DateCache} behind one lock, as it was, with the lock free DateCache and with
+ * {@link HttpFields#formatDate(long, boolean)}. Parsing compares a SimpleDateFormat per thread, as
+ * {@link HttpFields#getDateField(String)} used for every date, with its RFC 1123 fast path.
+ */
+public class HttpDateBenchmarkIT {
+    private static final int[] THREADS = {1, 4, 16};
+    private static final long WARMUP_MS = 500;
+    private static final long RUN_MS = 1000;
+    private static final String DATE = "Sun, 06 Nov 1994 08:49:37 GMT";
+
+    // keeps the results alive so that the work isn't optimized away
+    private static volatile int sink;
+
+    @Test
+    public void formattingTheCurrentSecond() throws Exception {
+        final DateCache locked = newDateCache();
+        final DateCache lockFree = newDateCache();
+
+        System.out.println();
+        System.out.println("Formatting the current second");
+        header("locked", "lock free", "formatDate");
+        for (int threads : THREADS) {
+            double lockedRate = measure(threads, new Task() {
+                @Override
+                public int run() {
+                    synchronized (locked) {
+                        return locked.format(System.currentTimeMillis()).length();
+                    }
+                }
+            });
+            double lockFreeRate = measure(threads, new Task() {
+                @Override
+                public int run() {
+                    return lockFree.format(System.currentTimeMillis()).length();
+                }
+            });
+            double formatDateRate = measure(threads, new Task() {
+                @Override
+                public int run() {
+                    return HttpFields.formatDate(System.currentTimeMillis(), false).length();
+                }
+            });
+            row(threads, lockedRate, lockFreeRate, formatDateRate);
+        }
+    }
+
+    @Test
+    public void parsingRfc1123Dates() throws Exception {
+        final ThreadLocal<SimpleDateFormat> formats = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return format;
+            }
+        };
+
+        System.out.println();
+        System.out.println("Parsing RFC 1123 dates");
+        header("SimpleDateFormat", "fast path", "getDateField");
+        double slowest = Double.MAX_VALUE;
+        double fastest = 0;
+        for (int threads : THREADS) {
+            double simpleDateFormatRate = measure(threads, new Task() {
+                @Override
+                public int run() throws ParseException {
+                    return (int) formats.get().parse(DATE).getTime();
+                }
+            });
+            double fastPathRate = measure(threads, new Task() {
+                @Override
+                public int run() {
+                    return (int) HttpFields.parseRFC1123Date(DATE);
+                }
+            });
+            final HttpFields fields = new HttpFields();
+            fields.put(HttpFields.__IfModifiedSince, DATE);
+            double getDateFieldRate = measure(threads, new Task() {
+                @Override
+                public int run() {
+                    return (int) fields.getDateField(HttpFields.__IfModifiedSince);
+                }
+            });
+            row(threads, simpleDateFormatRate, fastPathRate, getDateFieldRate);
+            slowest = Math.min(slowest, fastPathRate);
+            fastest = Math.max(fastest, simpleDateFormatRate);
+        }
+
+        assertTrue("The fast path should parse faster than SimpleDateFormat", slowest > fastest);
+    }
+
+    private static DateCache newDateCache() {
+        DateCache cache = new DateCache("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        cache.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return cache;
+    }
+
+    /**
+     * @return how many times a millisecond all the threads together ran the task
+     */
+    private static double measure(int threads, Task task) throws Exception {
+        run(threads, task, WARMUP_MS);
+        return run(threads, task, RUN_MS) / (double) RUN_MS;
+    }
+
+    private static long run(int threads, final Task task, final long durationMs) throws Exception {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long end = System.currentTimeMillis() + durationMs;
+                        long count = 0;
+                        int seen = 0;
+                        while (System.currentTimeMillis() < end) {
+                            seen += task.run();
+                            count++;
+                        }
+                        total.addAndGet(count);
+                        sink = seen;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+
+    private static void header(String a, String b, String c) {
+        System.out.println(String.format("%8s %16s %16s %16s", "threads", a, b, c));
+    }
+
+    private static void row(int threads, double a, double b, double c) {
+        System.out.println(String.format("%8d %16.0f %16.0f %16.0f", threads, a, b, c));
+    }
+
+    private interface Task {
+        int run() throws Exception;
+    }
+}
@@ -0,0 +1,162 @@
+package org.browsermob.proxy.jetty.http;
+
+import org.browsermob.proxy.jetty.util.LineInput;
+import org.browsermob.proxy.jetty.util.StringUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class HttpFieldsTest {
+    static final String CHROME_HEADERS = "Host: www.example.com\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Cache-Control: max-age=0\r\n" +
+            "Upgrade-Insecure-Requests: 1\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n" +
+            "Sec-Fetch-Site: none\r\n" +
+            "Sec-Fetch-Mode: navigate\r\n" +
+            "Sec-Fetch-User: ?1\r\n" +
+            "Sec-Fetch-Dest: document\r\n" +
+            "Accept-Encoding: gzip, deflate, br\r\n" +
+            "Accept-Language: en-GB,en;q=0.9\r\n" +
+            "Cookie: session=0123456789abcdef; theme=dark; _ga=GA1.2.1234567890.1234567890\r\n" +
+            "X-Custom-Header:   padded value   \r\n" +
+            "\r\n";
+
+    @Test
+    public void readsTheSameFieldsAsTheLineParser() throws Exception {
+        HttpFields bytes = read(CHROME_HEADERS, StringUtil.__ISO_8859_1);
+        HttpFields lines = read(CHROME_HEADERS, "UTF-8");
+
+        assertEquals(names(lines), names(bytes));
+        for (String name : names(lines)) {
+            assertEquals(name, lines.get(name), bytes.get(name));
+        }
+        assertEquals("padded value", bytes.get("x-custom-header"));
+        assertEquals("keep-alive", bytes.get(HttpFields.__Connection));
+    }
+
+    @Test
+    public void joinsContinuationLinesAndRepeatedFields() throws Exception {
+        HttpFields fields = read("Accept: text/html\r\nX-Long: one\r\n  two\r\nAccept: image/png\r\n\r\n",
+                StringUtil.__ISO_8859_1);
+
+        assertEquals("one two", fields.get("X-Long"));
+        List<String> accepts = Collections.list(fields.getValues(HttpFields.__Accept));
+        assertEquals(2, accepts.size());
+        assertEquals("text/html", accepts.get(0));
+        assertEquals("image/png", accepts.get(1));
+    }
+
+    @Test
+    public void keepsValuesThatDontChangeBetweenRequests() throws Exception {
+        HttpFields fields = new HttpFields();
+        fields.read(lineInput(CHROME_HEADERS + CHROME_HEADERS, StringUtil.__ISO_8859_1));
+        String userAgent = fields.get(HttpFields.__UserAgent);
+
+        fields.clear();
+        LineInput in = lineInput(CHROME_HEADERS.replace("none", "same-origin"), StringUtil.__ISO_8859_1);
+        fields.read(in);
+
+        assertSame(userAgent, fields.get(HttpFields.__UserAgent));
+        assertEquals("same-origin", fields.get(HttpFields.__SecFetchSite));
+    }
+
+    @Test
+    public void formatsDatesLikeSimpleDateFormat() throws Exception {
+        SimpleDateFormat http = gmt("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+        SimpleDateFormat cookie = gmt("EEE, dd-MMM-yy HH:mm:ss 'GMT'");
+        Random random = new Random(1);
+        long[] dates = new long[1000];
+        dates[0] = 0;
+        dates[1] = -1;
+        dates[2] = 951782400000L; // 29 Feb 2000
+        dates[3] = 4107542399000L; // 31 Dec 2099 23:59:59
+        dates[4] = System.currentTimeMillis();
+        for (int i = 5; i < dates.length; i++) {
+            dates[i] = (random.nextLong() % 4000000000000L);
+        }
+
+        for (long date : dates) {
+            assertEquals(http.format(new Date(date)), HttpFields.formatDate(date, false));
+            assertEquals(cookie.format(new Date(date)), HttpFields.formatDate(date, true));
+        }
+    }
+
+    @Test
+    public void parsesDatesInEveryFormatHttpAllows() throws Exception {
+        long date = 784111777000L;
+        HttpFields fields = new HttpFields();
+
+        fields.put(HttpFields.__IfModifiedSince, "Sun, 06 Nov 1994 08:49:37 GMT");
+        assertEquals(date, fields.getDateField(HttpFields.__IfModifiedSince));
+        fields.put(HttpFields.__IfModifiedSince, "Sunday, 06-Nov-94 08:49:37 GMT");
+        assertEquals(date, fields.getDateField(HttpFields.__IfModifiedSince));
+        fields.put(HttpFields.__IfModifiedSince, "Sun Nov  6 08:49:37 1994");
+        assertEquals(date, fields.getDateField(HttpFields.__IfModifiedSince));
+        fields.put(HttpFields.__IfModifiedSince, "Sun, 06 Nov 1994 08:49:37 GMT; length=1234");
+        assertEquals(date, fields.getDateField(HttpFields.__IfModifiedSince));
+    }
+
+    @Test
+    public void parsesWhatItFormats() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            long date = (Math.abs(random.nextLong()) % 4000000000000L) / 1000 * 1000;
+            String formatted = HttpFields.formatDate(date, false);
+            assertEquals(formatted, date, HttpFields.parseRFC1123Date(formatted));
+        }
+        assertEquals(-1, HttpFields.parseRFC1123Date("Sun, 06 Nov 1994 08:49:37 PST"));
+        assertEquals(-1, HttpFields.parseRFC1123Date("Sun, 06 Nox 1994 08:49:37 GMT"));
+        assertEquals(-1, HttpFields.parseRFC1123Date("Sun, 06 Nov 1994 25:49:37 GMT"));
+        assertEquals(-1, HttpFields.parseRFC1123Date("Sun, 06 Nov 20x4 08:49:37 GMT"));
+        assertEquals(-1, HttpFields.parseRFC1123Date("Sun, 06 Nov x994 08:49:37 GMT"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDatesWithBadDigits() throws Exception {
+        HttpFields fields = new HttpFields();
+        fields.put(HttpFields.__IfModifiedSince, "Sun, 06 Nov 20x4 08:49:37 GMT");
+        fields.getDateField(HttpFields.__IfModifiedSince);
+    }
+
+    private static SimpleDateFormat gmt(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("GMT"), Locale.US);
+        // HTTP dates use the Gregorian calendar all the way back
+        calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+        format.setCalendar(calendar);
+        return format;
+    }
+
+    static HttpFields read(String headers, String encoding) throws Exception {
+        HttpFields fields = new HttpFields();
+        fields.read(lineInput(headers, encoding));
+        return fields;
+    }
+
+    static LineInput lineInput(String headers, String encoding) throws Exception {
+        return new LineInput(new ByteArrayInputStream(headers.getBytes("ISO-8859-1")), 4096, encoding);
+    }
+
+    private static List<String> names(HttpFields fields) {
+        List<String> names = new ArrayList<String>();
+        Enumeration e = fields.getFieldNames();
+        while (e.hasMoreElements()) {
+            names.add((String) e.nextElement());
+        }
+        return names;
+    }
+}
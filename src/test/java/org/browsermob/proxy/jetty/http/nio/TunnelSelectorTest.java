@@ -0,0 +1,106 @@
+package org.browsermob.proxy.jetty.http.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TunnelSelectorTest {
+    private ServerSocketChannel server;
+    private Socket browser;
+    private Socket origin;
+
+    @Before
+    public void openTunnelEnds() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void closeTunnelEnds() throws Exception {
+        if (browser != null) {
+            browser.close();
+        }
+        if (origin != null) {
+            origin.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void relaysBothWaysUntilBothEndsAreDone() throws Exception {
+        relay(0);
+
+        browser.getOutputStream().write("hello".getBytes("US-ASCII"));
+        assertEquals("hello", read(origin, 5));
+        byte[] large = new byte[1024 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        origin.getOutputStream().write(large);
+        assertEquals(large.length, read(browser, large.length).length());
+
+        // a half close is passed on, and the other way keeps working
+        browser.shutdownOutput();
+        assertEquals(-1, origin.getInputStream().read());
+        origin.getOutputStream().write("bye".getBytes("US-ASCII"));
+        assertEquals("bye", read(browser, 3));
+
+        origin.shutdownOutput();
+        assertEquals(-1, browser.getInputStream().read());
+    }
+
+    @Test
+    public void closesIdleTunnels() throws Exception {
+        long timedOut = TunnelSelector.getTunnelsTimedOut();
+        relay(100);
+
+        browser.setSoTimeout(10000);
+        assertEquals(-1, browser.getInputStream().read());
+        assertEquals(timedOut + 1, TunnelSelector.getTunnelsTimedOut());
+    }
+
+    @Test
+    public void closesTheTunnelsOfAnOwner() throws Exception {
+        Object owner = relay(0);
+
+        TunnelSelector.close(owner);
+
+        browser.setSoTimeout(10000);
+        assertEquals(-1, browser.getInputStream().read());
+    }
+
+    private Object relay(long idleTimeoutMs) throws IOException {
+        browser = new Socket();
+        browser.connect(server.socket().getLocalSocketAddress());
+        SocketChannel client = server.accept();
+
+        SocketChannel upstream = SocketChannel.open(server.socket().getLocalSocketAddress());
+        origin = server.accept().socket();
+
+        Object owner = new Object();
+        TunnelSelector.relay(client, upstream, idleTimeoutMs, owner);
+        return owner;
+    }
+
+    private static String read(Socket socket, int length) throws IOException {
+        socket.setSoTimeout(10000);
+        InputStream in = socket.getInputStream();
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int len = in.read(bytes, read, length - read);
+            assertTrue(len > 0);
+            read += len;
+        }
+        return new String(bytes, "US-ASCII");
+    }
+}
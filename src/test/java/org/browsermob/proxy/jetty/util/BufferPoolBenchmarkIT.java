@@ -0,0 +1,118 @@
+package org.browsermob.proxy.jetty.util;
+
+import org.browsermob.proxy.selenium.ModifiedIO;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how many bytes copying responses through the proxy allocates as more threads do it at once, with copy
+ * buffers taken from {@link ByteArrayPool} against allocating a buffer for each copy as the proxy used to.
+ * <p/>
+ * Each copy moves a small response body, the common case, so the copy buffer is most of what is allocated.
+ */
+public class BufferPoolBenchmarkIT {
+    private static final int[] THREADS = {1, 4, 16};
+    private static final int COPIES = 20000;
+    private static final byte[] BODY = new byte[2048];
+
+    @Test
+    public void copyingResponses() throws Exception {
+        System.out.println();
+        System.out.println("Copying " + BODY.length + " byte responses");
+        System.out.println(String.format("%8s %16s %16s %16s", "threads", "allocating", "pooled", "reuses"));
+
+        for (int threads : THREADS) {
+            long reuses = ByteArrayPool.getReuses();
+            // warm up both before measuring
+            run(threads, false);
+            run(threads, true);
+
+            double allocating = run(threads, false);
+            double pooled = run(threads, true);
+            System.out.println(String.format("%8d %16.0f %16.0f %16d", threads, allocating, pooled,
+                    ByteArrayPool.getReuses() - reuses));
+
+            // allocations are only counted on JVMs that can count them
+            if (allocating > 0) {
+                assertTrue("Pooled buffers should allocate much less", pooled * 4 < allocating);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes allocated a copy
+     */
+    private static double run(int threads, final boolean pooled) throws Exception {
+        final AtomicLong allocated = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long before = allocatedBytes();
+                        InputStream in = new ByteArrayInputStream(BODY);
+                        OutputStream out = new NullOutputStream();
+                        for (int c = 0; c < COPIES; c++) {
+                            in.reset();
+                            if (pooled) {
+                                ModifiedIO.copy(in, out);
+                            } else {
+                                copyWithNewBuffer(in, out);
+                            }
+                        }
+                        allocated.addAndGet(allocatedBytes() - before);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return allocated.get() / (double) (threads * COPIES);
+    }
+
+    private static long copyWithNewBuffer(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[IO.bufferSize];
+        long copied = 0;
+        int len;
+        while ((len = in.read(buffer, 0, buffer.length)) >= 0) {
+            copied += len;
+            out.write(buffer, 0, len);
+        }
+        return copied;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
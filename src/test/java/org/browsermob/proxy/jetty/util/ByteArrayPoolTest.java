@@ -0,0 +1,77 @@
+package org.browsermob.proxy.jetty.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteArrayPoolTest {
+    private final boolean debug = ByteArrayPool.isDebug();
+
+    @After
+    public void restoreDebug() {
+        ByteArrayPool.setDebug(debug);
+    }
+
+    @Test
+    public void reusesReturnedArrays() {
+        byte[] bytes = ByteArrayPool.getByteArray(32768);
+        long reuses = ByteArrayPool.getReuses();
+
+        ByteArrayPool.returnByteArray(bytes);
+
+        assertSame(bytes, ByteArrayPool.getByteArray(32768));
+        assertEquals(reuses + 1, ByteArrayPool.getReuses());
+        ByteArrayPool.returnByteArray(bytes);
+
+        char[] chars = ByteArrayPool.getCharArray(32768);
+        ByteArrayPool.returnCharArray(chars);
+        assertSame(chars, ByteArrayPool.getCharArray(32768));
+        ByteArrayPool.returnCharArray(chars);
+    }
+
+    @Test
+    public void roundsUpToTheSizeClass() {
+        assertEquals(512, ByteArrayPool.getByteArrayAtLeast(1).length);
+        assertEquals(4096, ByteArrayPool.getByteArrayAtLeast(4096).length);
+        assertEquals(8192, ByteArrayPool.getByteArrayAtLeast(4097).length);
+        assertEquals(100000, ByteArrayPool.getByteArrayAtLeast(100000).length);
+    }
+
+    @Test
+    public void allocatesSizesItDoesNotPool() {
+        byte[] bytes = ByteArrayPool.getByteArray(1000);
+        assertEquals(1000, bytes.length);
+        ByteArrayPool.returnByteArray(bytes);
+
+        long allocations = ByteArrayPool.getAllocations();
+        assertNotSame(bytes, ByteArrayPool.getByteArray(1000));
+        assertEquals(allocations + 1, ByteArrayPool.getAllocations());
+    }
+
+    @Test
+    public void refusesArraysReturnedTwiceInDebugMode() {
+        ByteArrayPool.setDebug(true);
+        byte[] bytes = ByteArrayPool.getByteArray(16384);
+
+        ByteArrayPool.returnByteArray(bytes);
+        ByteArrayPool.returnByteArray(bytes);
+
+        assertSame(bytes, ByteArrayPool.getByteArray(16384));
+        assertNotSame(bytes, ByteArrayPool.getByteArray(16384));
+    }
+
+    @Test
+    public void countsArraysNeverReturnedInDebugMode() throws Exception {
+        ByteArrayPool.setDebug(true);
+        long leaks = ByteArrayPool.getLeaks();
+
+        ByteArrayPool.getByteArray(2048);
+
+        for (int i = 0; i < 100 && ByteArrayPool.getLeaks() == leaks; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(ByteArrayPool.getLeaks() > leaks);
+    }
+}
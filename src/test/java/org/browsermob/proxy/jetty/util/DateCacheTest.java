@@ -0,0 +1,99 @@
+package org.browsermob.proxy.jetty.util;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DateCacheTest {
+    private static final String HTTP_FORMAT = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+    private static final long NOW = 1700000000000L;
+
+    @Test
+    public void formatsLikeSimpleDateFormat() {
+        assertFormatsLikeSimpleDateFormat(HTTP_FORMAT);
+        assertFormatsLikeSimpleDateFormat("dd/MMM/yyyy:HH:mm:ss.SSS ZZZ");
+    }
+
+    @Test
+    public void returnsTheSameStringWithinASecond() {
+        DateCache cache = cache(HTTP_FORMAT);
+
+        String formatted = cache.format(NOW);
+
+        assertSame(formatted, cache.format(NOW + 999));
+        assertNotSame(formatted, cache.format(NOW + 1000));
+    }
+
+    @Test
+    public void formatsDatesOutsideTheCachedHour() {
+        DateCache cache = cache(HTTP_FORMAT);
+        SimpleDateFormat format = simpleDateFormat(HTTP_FORMAT);
+        cache.format(NOW);
+
+        assertEquals(format.format(new Date(NOW - 86400000L)), cache.format(NOW - 86400000L));
+        assertEquals(format.format(new Date(NOW + 86400000L)), cache.format(NOW + 86400000L));
+        assertEquals(format.format(new Date(NOW)), cache.format(NOW));
+    }
+
+    @Test
+    public void formatsConcurrentlyAcrossSeconds() throws Exception {
+        final DateCache cache = cache(HTTP_FORMAT);
+        final SimpleDateFormat format = simpleDateFormat(HTTP_FORMAT);
+        final List<String> wrong = new CopyOnWriteArrayList<String>();
+        int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (long date = NOW; date < NOW + 120000; date += 250) {
+                            String formatted = cache.format(date);
+                            String expected;
+                            synchronized (format) {
+                                expected = format.format(new Date(date));
+                            }
+                            if (!expected.equals(formatted)) {
+                                wrong.add(formatted + " for " + expected);
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, wrong.size());
+    }
+
+    private static void assertFormatsLikeSimpleDateFormat(String pattern) {
+        DateCache cache = cache(pattern);
+        SimpleDateFormat format = simpleDateFormat(pattern);
+        for (long date = NOW; date < NOW + 180000; date += 777) {
+            assertEquals(format.format(new Date(date)), cache.format(date));
+        }
+    }
+
+    private static DateCache cache(String pattern) {
+        DateCache cache = new DateCache(pattern, Locale.US);
+        cache.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return cache;
+    }
+
+    private static SimpleDateFormat simpleDateFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern.replace("ZZZ", "'+0000'"), Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
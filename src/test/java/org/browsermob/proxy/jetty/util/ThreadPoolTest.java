@@ -0,0 +1,152 @@
+package org.browsermob.proxy.jetty.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ThreadPoolTest {
+    private final List<Object> stopped = new CopyOnWriteArrayList<Object>();
+    private final ThreadPool pool = new ThreadPool() {
+        @Override
+        protected void stopJob(Thread thread, Object job) {
+            stopped.add(job);
+        }
+    };
+
+    @After
+    public void stopPool() throws Exception {
+        pool.stop();
+    }
+
+    @Test
+    public void runsJobsOnItsOwnThreads() throws Exception {
+        pool.setName("Test");
+        pool.start();
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        pool.run(new Runnable() {
+            @Override
+            public void run() {
+                thread[0] = Thread.currentThread().getName();
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertTrue(thread[0], thread[0].startsWith("Test-"));
+    }
+
+    @Test
+    public void rejectsJobsWhenEveryThreadIsBusy() throws Exception {
+        pool.setMinThreads(0);
+        pool.setMaxThreads(1);
+        pool.setMaxIdleTimeMs(100);
+        pool.start();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.run(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // the pool is stopping
+                }
+            }
+        });
+
+        Runnable waiting = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        pool.run(waiting);
+        release.countDown();
+
+        assertEquals(1, pool.getRejectedJobs());
+        assertEquals(waiting, stopped.get(0));
+    }
+
+    @Test
+    public void rejectsJobsBeforeStartAndAfterStop() throws Exception {
+        Runnable early = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        pool.run(early);
+
+        pool.start();
+        pool.stop();
+        Runnable late = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        pool.run(late);
+
+        assertEquals(2, pool.getRejectedJobs());
+        assertEquals(early, stopped.get(0));
+        assertEquals(late, stopped.get(1));
+    }
+
+    @Test
+    public void canRunJobsOnAnotherExecutor() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        pool.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+        });
+        pool.start();
+
+        final AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            pool.run(new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+
+        assertEquals(3, executed.get());
+        assertEquals(3, ran.get());
+        assertEquals(0, pool.getThreads());
+        assertEquals(0, pool.getQueueSize());
+    }
+
+    @Test
+    public void stopsJobsStillRunningWhenStopped() throws Exception {
+        pool.start();
+
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    // the pool is stopping
+                }
+            }
+        };
+        pool.run(job);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        pool.stop();
+        assertEquals(job, stopped.get(0));
+    }
+}
@@ -0,0 +1,128 @@
+package org.browsermob.proxy.selenium;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class CertificateAuthorityTest {
+    private static X509Certificate caCert;
+    private static KeyPair caKeyPair;
+
+    @BeforeClass
+    public static void createCA() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        caKeyPair = generator.generateKeyPair();
+        caCert = CertificateCreator.createTypicalMasterCert(caKeyPair);
+    }
+
+    @Test
+    public void mintsCertificatesSignedByTheCA() throws Exception {
+        CertificateAuthority ca = new CertificateAuthority(caCert, caKeyPair.getPrivate());
+
+        KeyStore.PrivateKeyEntry certificate = ca.getCertificate("www.example.com");
+        X509Certificate leaf = (X509Certificate) certificate.getCertificate();
+
+        leaf.verify(caKeyPair.getPublic());
+        assertTrue(leaf.getSubjectX500Principal().getName().startsWith("CN=www.example.com,"));
+        assertEquals(caCert, certificate.getCertificateChain()[1]);
+        assertEquals(leaf.getPublicKey().getAlgorithm(), certificate.getPrivateKey().getAlgorithm());
+    }
+
+    @Test
+    public void cachesCertificatesByHostname() throws Exception {
+        CertificateAuthority ca = new CertificateAuthority(caCert, caKeyPair.getPrivate());
+
+        KeyStore.PrivateKeyEntry first = ca.getCertificate("www.example.com");
+        assertSame(first, ca.getCertificate("www.example.com"));
+        assertNotSame(first, ca.getCertificate("www.example.org"));
+
+        assertEquals(2, ca.getCertificatesMinted());
+        assertEquals(1, ca.getCacheHits());
+        assertFalse(((X509Certificate) first.getCertificate()).getSerialNumber().equals(
+                ((X509Certificate) ca.getCertificate("www.example.org").getCertificate()).getSerialNumber()));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedCertificate() throws Exception {
+        CertificateAuthority ca = new CertificateAuthority(caCert, caKeyPair.getPrivate());
+        ca.setMaxCertificates(2);
+
+        KeyStore.PrivateKeyEntry a = ca.getCertificate("a.example.com");
+        ca.getCertificate("b.example.com");
+        ca.getCertificate("a.example.com");
+        ca.getCertificate("c.example.com");
+
+        assertEquals(2, ca.getCertificateCount());
+        assertSame(a, ca.getCertificate("a.example.com"));
+        assertEquals(3, ca.getCertificatesMinted());
+
+        ca.getCertificate("b.example.com");
+        assertEquals(4, ca.getCertificatesMinted());
+    }
+
+    @Test
+    public void mintsOneCertificateForConcurrentRequests() throws Exception {
+        final CertificateAuthority ca = new CertificateAuthority(caCert, caKeyPair.getPrivate());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<KeyStore.PrivateKeyEntry>> requests = new ArrayList<Callable<KeyStore.PrivateKeyEntry>>();
+            for (int i = 0; i < 8; i++) {
+                requests.add(new Callable<KeyStore.PrivateKeyEntry>() {
+                    @Override
+                    public KeyStore.PrivateKeyEntry call() throws Exception {
+                        return ca.getCertificate("www.example.com");
+                    }
+                });
+            }
+
+            List<Future<KeyStore.PrivateKeyEntry>> certificates = executor.invokeAll(requests);
+            for (Future<KeyStore.PrivateKeyEntry> certificate : certificates) {
+                assertSame(certificates.get(0).get(), certificate.get());
+            }
+            assertEquals(1, ca.getCertificatesMinted());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sharesWildcardsBetweenSiblings() {
+        assertEquals("*.example.com", CertificateAuthority.getWildcardHostname("img1.example.com"));
+        assertEquals("*.example.co.uk", CertificateAuthority.getWildcardHostname("static.example.co.uk"));
+        assertEquals("*.cdn.example.com", CertificateAuthority.getWildcardHostname("a.cdn.example.com"));
+        assertEquals("*.example.com", CertificateAuthority.getWildcardHostname("*.example.com"));
+    }
+
+    @Test
+    public void keepsNamesAWildcardCannotCover() {
+        assertEquals("example.com", CertificateAuthority.getWildcardHostname("example.com"));
+        assertEquals("example.co.uk", CertificateAuthority.getWildcardHostname("example.co.uk"));
+        assertEquals("127.0.0.1", CertificateAuthority.getWildcardHostname("127.0.0.1"));
+        assertEquals("::1", CertificateAuthority.getWildcardHostname("::1"));
+        assertEquals("localhost", CertificateAuthority.getWildcardHostname("localhost"));
+        assertEquals("secure.example.test", CertificateAuthority.getWildcardHostname("secure.example.test"));
+    }
+
+    @Test
+    public void loadsTheCyberVillainsCAOnce() throws Exception {
+        assertSame(CertificateAuthority.getCyberVillains(), CertificateAuthority.getCyberVillains());
+        assertTrue(CertificateAuthority.getCyberVillains().getCACertificate().getSubjectX500Principal().getName()
+                .contains("CyberVillians"));
+    }
+}
@@ -0,0 +1,144 @@
+package org.browsermob.proxy.selenium;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CertificateStoreTest {
+    private static KeyPair caKeyPair;
+    private static X509Certificate caCert;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CertificateAuthority ca;
+
+    @BeforeClass
+    public static void createCA() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        caKeyPair = generator.generateKeyPair();
+        caCert = CertificateCreator.createTypicalMasterCert(caKeyPair);
+    }
+
+    @Before
+    public void createAuthority() throws Exception {
+        ca = newAuthority(caCert);
+    }
+
+    @Test
+    public void keepsCertificatesAcrossRestarts() throws Exception {
+        CertificateStore store = new CertificateStore(folder.getRoot());
+        ca.setStore(store);
+        KeyStore.PrivateKeyEntry minted = ca.getCertificate("www.example.com");
+        store.flush();
+
+        // a new store and CA, as after a restart
+        CertificateAuthority restarted = newAuthority(caCert);
+        restarted.setStore(new CertificateStore(folder.getRoot()));
+        KeyStore.PrivateKeyEntry loaded = restarted.getCertificate("www.example.com");
+
+        assertEquals(minted.getCertificate(), loaded.getCertificate());
+        assertEquals(minted.getPrivateKey(), loaded.getPrivateKey());
+        assertEquals(1, restarted.getCertificatesLoaded());
+        assertEquals(0, restarted.getCertificatesMinted());
+    }
+
+    @Test
+    public void mintsSerialNumbersUnlikeTheStoredOnes() throws Exception {
+        CertificateStore store = new CertificateStore(folder.getRoot());
+        ca.setStore(store);
+        for (int i = 0; i < 5; i++) {
+            ca.getCertificate("www" + i + ".example.com");
+        }
+        store.flush();
+
+        // as after a restart, or in another process sharing the store
+        CertificateAuthority restarted = newAuthority(caCert);
+        restarted.setStore(new CertificateStore(folder.getRoot()));
+        Set<BigInteger> serials = new HashSet<BigInteger>();
+        for (int i = 0; i < 5; i++) {
+            serials.add(serial(restarted.getCertificate("www" + i + ".example.com")));
+            serials.add(serial(restarted.getCertificate("www" + i + ".example.org")));
+        }
+
+        assertEquals(5, restarted.getCertificatesLoaded());
+        assertEquals(5, restarted.getCertificatesMinted());
+        assertEquals(10, serials.size());
+    }
+
+    @Test
+    public void keepsEachCAsCertificatesApart() throws Exception {
+        CertificateStore store = new CertificateStore(folder.getRoot());
+        ca.setStore(store);
+        ca.getCertificate("www.example.com");
+        store.flush();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        X509Certificate otherCert = CertificateCreator.createTypicalMasterCert(generator.generateKeyPair());
+
+        assertNull(store.get(otherCert, "www.example.com"));
+        assertNotNull(store.get(caCert, "www.example.com"));
+    }
+
+    @Test
+    public void skipsDamagedIndexLines() throws Exception {
+        CertificateStore store = new CertificateStore(folder.getRoot());
+        ca.setStore(store);
+        ca.getCertificate("www.example.com");
+        store.flush();
+
+        File[] caDirectories = folder.getRoot().listFiles();
+        assertEquals(1, caDirectories.length);
+        FileWriter index = new FileWriter(new File(caDirectories[0], "index"), true);
+        index.write("www.example.org half-a-li");
+        index.close();
+
+        CertificateStore reopened = new CertificateStore(folder.getRoot());
+        assertNotNull(reopened.get(caCert, "www.example.com"));
+        assertNull(reopened.get(caCert, "www.example.org"));
+    }
+
+    @Test
+    public void mintsAgainWhenTheKeyAlgorithmChanged() throws Exception {
+        CertificateStore store = new CertificateStore(folder.getRoot());
+        ca.setStore(store);
+        ca.getCertificate("www.example.com");
+        store.flush();
+
+        CertificateAuthority restarted = newAuthority(caCert);
+        restarted.setStore(store);
+        restarted.getKeyPairPool().setAlgorithm(KeyPairPool.EC, 256);
+
+        assertEquals("EC", restarted.getCertificate("www.example.com").getPrivateKey().getAlgorithm());
+        assertEquals(1, restarted.getCertificatesMinted());
+    }
+
+    private static BigInteger serial(KeyStore.PrivateKeyEntry certificate) {
+        return ((X509Certificate) certificate.getCertificate()).getSerialNumber();
+    }
+
+    private CertificateAuthority newAuthority(X509Certificate caCert) {
+        CertificateAuthority ca = new CertificateAuthority(caCert, caKeyPair.getPrivate());
+        ca.getKeyPairPool().setSize(0);
+        return ca;
+    }
+}
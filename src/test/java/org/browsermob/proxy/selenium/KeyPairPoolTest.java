@@ -0,0 +1,77 @@
+package org.browsermob.proxy.selenium;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+
+import static org.junit.Assert.*;
+
+public class KeyPairPoolTest {
+    private KeyPairPool pool = new KeyPairPool();
+
+    @After
+    public void releasePool() {
+        pool.release();
+    }
+
+    @Test
+    public void refillsInTheBackground() throws Exception {
+        pool.setAlgorithm(KeyPairPool.RSA, 1024);
+        pool.setSize(2);
+        waitForKeyPairs(2);
+
+        KeyPair first = pool.take();
+        KeyPair second = pool.take();
+
+        assertNotSame(first, second);
+        assertEquals(1024, ((RSAPublicKey) first.getPublic()).getModulus().bitLength());
+        assertEquals(0, pool.getMisses());
+        waitForKeyPairs(2);
+    }
+
+    @Test
+    public void generatesOnTheCallersThreadWhenEmpty() throws Exception {
+        pool.setSize(0);
+
+        assertEquals(KeyPairPool.RSA, pool.take().getPublic().getAlgorithm());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void discardsKeysOfTheWrongKind() throws Exception {
+        pool.setAlgorithm(KeyPairPool.RSA, 1024);
+        pool.setSize(1);
+        waitForKeyPairs(1);
+
+        pool.setAlgorithm(KeyPairPool.EC, 256);
+
+        assertEquals(KeyPairPool.EC, pool.take().getPublic().getAlgorithm());
+    }
+
+    @Test
+    public void canReuseOneKeyPair() throws Exception {
+        pool.setAlgorithm(KeyPairPool.EC, 256);
+        pool.setReuseKey(true);
+
+        assertSame(pool.take(), pool.take());
+
+        pool.setAlgorithm(KeyPairPool.RSA, 1024);
+        assertEquals(KeyPairPool.RSA, pool.take().getPublic().getAlgorithm());
+    }
+
+    @Test(expected = java.security.NoSuchAlgorithmException.class)
+    public void rejectsUnknownAlgorithms() throws Exception {
+        pool.setAlgorithm("ROT13", 13);
+    }
+
+    private void waitForKeyPairs(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (pool.getAvailable() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getAvailable());
+    }
+}